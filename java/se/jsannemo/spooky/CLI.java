@@ -14,14 +14,19 @@ import se.jsannemo.spooky.compiler.ir.IrProgram;
 import se.jsannemo.spooky.compiler.ir.ToIr;
 import se.jsannemo.spooky.compiler.parser.Parser;
 import se.jsannemo.spooky.compiler.parser.Tokenizer;
+import se.jsannemo.spooky.vm.RunStatus;
 import se.jsannemo.spooky.vm.SpookyVm;
-import se.jsannemo.spooky.vm.VmException;
 import se.jsannemo.spooky.vm.code.Executable;
 import se.jsannemo.spooky.vm.code.ExecutableParser;
 import se.jsannemo.spooky.vm.code.InstructionException;
 import se.jsannemo.spooky.vm.code.Instructions;
 
 public class CLI {
+  /** The default number of instructions a program may execute when run. */
+  private static final long DEFAULT_FUEL = 10_000_000_000L;
+  /** The default number of milliseconds a program may run for. */
+  private static final long DEFAULT_TIME_LIMIT = 60_000;
+
   public static void main(String... args) {
     if (args.length == 0) {
       usage();
@@ -71,8 +76,25 @@ public class CLI {
   }
 
   private static void run(String... args) {
-    if (args.length != 2) {
-      System.err.println("usage: spooky run exec.spook");
+    if (args.length < 2 || args.length > 4) {
+      System.err.println("usage: spooky run exec.spook [max instructions] [time limit ms]");
+      return;
+    }
+    long fuel = DEFAULT_FUEL;
+    long timeLimit = DEFAULT_TIME_LIMIT;
+    try {
+      if (args.length > 2) {
+        fuel = Long.parseLong(args[2]);
+      }
+      if (args.length > 3) {
+        timeLimit = Long.parseLong(args[3]);
+      }
+    } catch (NumberFormatException e) {
+      System.err.println("Invalid limit: " + e.getMessage());
+      return;
+    }
+    if (fuel < 0 || timeLimit < 0) {
+      System.err.println("Limits must be non-negative");
       return;
     }
     byte[] execBytes;
@@ -89,13 +111,32 @@ public class CLI {
       System.err.println("Malformatted executable: " + e.getMessage());
       return;
     }
-    SpookyVm vm = SpookyVm.newBuilder(executable).addStdLib().setMemorySize(1000).build();
-    while (true) {
-      try {
-        if (!vm.executeInstruction()) break;
-      } catch (VmException e) {
-        System.err.println("Run-time error: " + e.getMessage());
-      }
+    SpookyVm vm;
+    try {
+      vm =
+          SpookyVm.newBuilder(executable)
+              .addStdLib()
+              .setMemorySize(1000)
+              .setPeepholeOptimization(true)
+              .setFuel(fuel)
+              .setTimeLimit(timeLimit)
+              .build();
+    } catch (IllegalStateException e) {
+      System.err.println("Could not link executable: " + e.getMessage());
+      return;
+    }
+    switch (vm.runUntilHalt()) {
+      case FAULTED:
+        System.err.println("Run-time error: " + vm.getFault().getMessage());
+        break;
+      case OUT_OF_FUEL:
+        System.err.println("Program exceeded " + fuel + " instructions");
+        break;
+      case DEADLINE_EXCEEDED:
+        System.err.println("Program exceeded " + timeLimit + " ms");
+        break;
+      default:
+        break;
     }
   }
 
@@ -1,6 +1,5 @@
 package se.jsannemo.spooky.compiler.codegen;
 
-import com.google.common.collect.ImmutableList;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -63,14 +62,14 @@ public final class CodeGen {
         });
 
     for (Entry<Integer, String> label : funcLabelFills.entrySet()) {
-      Instructions.Jump jum = (Jump) ins.get(label.getKey());
+      Instructions.Call call = (Instructions.Call) ins.get(label.getKey());
       ins.set(
           label.getKey(),
-          Instructions.Jump.create(jum.flag(), funcAddresses.get(label.getValue())));
+          Instructions.Call.create(call.frame(), funcAddresses.get(label.getValue())));
     }
 
     code.addAll(ins);
-    code.add(Instructions.Data.create(ImmutableList.of(0, 1)));
+    code.add(Instructions.Data.create(0, 1));
     return code;
   }
 
@@ -117,31 +116,54 @@ public final class CodeGen {
         code.add(Instructions.Const.create(-1, addressTo(store.addr())));
       } else if (st instanceof IrStatement.IrAdd) {
         IrStatement.IrAdd add = (IrStatement.IrAdd) st;
-
         code.add(
-            Instructions.Add.create(
-                addressTo(add.a()), addressTo(add.b()), addressTo(add.result())));
+            binary(
+                add.a(),
+                add.b(),
+                add.result(),
+                Instructions.Add::create,
+                Instructions.AddImmediate::create,
+                Instructions.AddImmediate::create));
       } else if (st instanceof IrStatement.IrSub) {
         IrStatement.IrSub sub = (IrStatement.IrSub) st;
-
         code.add(
-            Instructions.Sub.create(
-                addressTo(sub.a()), addressTo(sub.b()), addressTo(sub.result())));
+            binary(
+                sub.a(),
+                sub.b(),
+                sub.result(),
+                Instructions.Sub::create,
+                Instructions.SubImmediate::create,
+                null));
       } else if (st instanceof IrStatement.IrMul) {
         IrStatement.IrMul mul = (IrStatement.IrMul) st;
         code.add(
-            Instructions.Mul.create(
-                addressTo(mul.a()), addressTo(mul.b()), addressTo(mul.result())));
+            binary(
+                mul.a(),
+                mul.b(),
+                mul.result(),
+                Instructions.Mul::create,
+                Instructions.MulImmediate::create,
+                Instructions.MulImmediate::create));
       } else if (st instanceof IrStatement.IrDiv) {
         IrStatement.IrDiv div = (IrStatement.IrDiv) st;
         code.add(
-            Instructions.Div.create(
-                addressTo(div.a()), addressTo(div.b()), addressTo(div.result())));
+            binary(
+                div.a(),
+                div.b(),
+                div.result(),
+                Instructions.Div::create,
+                Instructions.DivImmediate::create,
+                null));
       } else if (st instanceof IrStatement.IrMod) {
         IrStatement.IrMod mod = (IrStatement.IrMod) st;
         code.add(
-            Instructions.Mod.create(
-                addressTo(mod.a()), addressTo(mod.b()), addressTo(mod.result())));
+            binary(
+                mod.a(),
+                mod.b(),
+                mod.result(),
+                Instructions.Mod::create,
+                Instructions.ModImmediate::create,
+                null));
       } else if (st instanceof IrStatement.IrCopy) {
         IrStatement.IrCopy copy = (IrStatement.IrCopy) st;
         code.add(Instructions.Move.create(addressTo(copy.from()), addressTo(copy.to())));
@@ -160,53 +182,57 @@ public final class CodeGen {
       } else if (st instanceof IrJmpAdr) {
         IrJmpAdr jmp = (IrJmpAdr) st;
         code.add(Instructions.JumpAddress.create(addressTo(jmp.addr())));
+      } else if (st instanceof IrStatement.IrRet) {
+        code.add(Instructions.Return.create());
       } else if (st instanceof IrStatement.IrLabel) {
         IrLabel label = (IrLabel) st;
         labelAddresses.put(label, code.size());
       } else if (st instanceof IrStatement.IrLessThan) {
         IrStatement.IrLessThan lt = (IrStatement.IrLessThan) st;
         code.add(
-            Instructions.LessThan.create(
-                addressTo(lt.a()), addressTo(lt.b()), addressTo(lt.result())));
+            binary(
+                lt.a(),
+                lt.b(),
+                lt.result(),
+                Instructions.LessThan::create,
+                Instructions.LessThanImmediate::create,
+                Instructions.GreaterThanImmediate::create));
       } else if (st instanceof IrStatement.IrLessEquals) {
         IrStatement.IrLessEquals leq = (IrStatement.IrLessEquals) st;
         code.add(
-            Instructions.LessEquals.create(
-                addressTo(leq.a()), addressTo(leq.b()), addressTo(leq.result())));
+            binary(
+                leq.a(),
+                leq.b(),
+                leq.result(),
+                Instructions.LessEquals::create,
+                Instructions.LessEqualsImmediate::create,
+                Instructions.GreaterEqualsImmediate::create));
       } else if (st instanceof IrStatement.IrEquals) {
         IrStatement.IrEquals eq = (IrStatement.IrEquals) st;
         code.add(
-            Instructions.Equals.create(
-                addressTo(eq.a()), addressTo(eq.b()), addressTo(eq.result())));
+            binary(
+                eq.a(),
+                eq.b(),
+                eq.result(),
+                Instructions.Equals::create,
+                Instructions.EqualsImmediate::create,
+                Instructions.EqualsImmediate::create));
       } else if (st instanceof IrStatement.IrNotEquals) {
         IrStatement.IrNotEquals neq = (IrStatement.IrNotEquals) st;
         code.add(
-            Instructions.NotEquals.create(
-                addressTo(neq.a()), addressTo(neq.b()), addressTo(neq.result())));
+            binary(
+                neq.a(),
+                neq.b(),
+                neq.result(),
+                Instructions.NotEquals::create,
+                Instructions.NotEqualsImmediate::create,
+                Instructions.NotEqualsImmediate::create));
       } else if (st instanceof IrStatement.IrCall) {
-        // New stack pointer. Optimize changes for no-arg calls.
+        // The call moves the stack pointer by the frame, and the return moves it back.
         IrStatement.IrCall call = (IrStatement.IrCall) st;
-
-        if (call.spOffset() != 0) {
-          code.add(Instructions.Const.create(call.spOffset(), addressTo(IrAddr.REG_1)));
-          code.add(
-              Instructions.Add.create(
-                  addressTo(IrAddr.STACK_POINTER),
-                  addressTo(IrAddr.REG_1),
-                  addressTo(IrAddr.STACK_POINTER)));
-        }
         funcLabelFills.put(code.size(), call.name());
         // Placeholder address; the real address is filled in once all functions are laid out.
-        code.add(Instructions.Jump.create(addressTo(IrAddr.CONST_ZERO), -1));
-        labelAddresses.put(call.jumpAfter(), code.size());
-        if (call.spOffset() != 0) {
-          code.add(Instructions.Const.create(call.spOffset(), addressTo(IrAddr.REG_1)));
-          code.add(
-              Instructions.Sub.create(
-                  addressTo(IrAddr.STACK_POINTER),
-                  addressTo(IrAddr.REG_1),
-                  addressTo(IrAddr.STACK_POINTER)));
-        }
+        code.add(Instructions.Call.create(call.spOffset(), -1));
       } else if (st instanceof IrStatement.IrBitAnd) {
         IrStatement.IrBitAnd bitAnd = (IrStatement.IrBitAnd) st;
         code.add(
@@ -242,6 +268,56 @@ public final class CodeGen {
     }
   }
 
+  /** Creates an instruction of a binary operation on two addresses. */
+  private interface BinaryFactory {
+    Instruction create(Address op1, Address op2, Address target);
+  }
+
+  /** Creates an instruction of a binary operation on an address and an immediate value. */
+  private interface ImmediateFactory {
+    Instruction create(Address op1, int value, Address target);
+  }
+
+  /**
+   * Returns the instruction computing the binary operation {@code a op b} into {@code result}.
+   *
+   * <p>If {@code b} is a known constant, the instruction created by {@code immediate} is used
+   * instead. If {@code a} is a known constant, the instruction created by {@code mirrored} is used
+   * with the operands swapped, unless it is {@code null} since the operation has no such form.
+   */
+  private static Instruction binary(
+      IrAddr a,
+      IrAddr b,
+      IrAddr result,
+      BinaryFactory regular,
+      ImmediateFactory immediate,
+      ImmediateFactory mirrored) {
+    Integer value = constantValue(b);
+    if (value != null) {
+      return immediate.create(addressTo(a), value, addressTo(result));
+    }
+    value = constantValue(a);
+    if (value != null && mirrored != null) {
+      return mirrored.create(addressTo(b), value, addressTo(result));
+    }
+    return regular.create(addressTo(a), addressTo(b), addressTo(result));
+  }
+
+  /** Returns the value of {@code addr} if it is known at compile time, or {@code null} otherwise. */
+  private static Integer constantValue(IrAddr addr) {
+    if (addr.kind() == IrAddr.AddrKind.IMMEDIATE) {
+      return addr.immediate();
+    }
+    // The data segment starts with these constants, see codegen().
+    if (addr.equals(IrAddr.CONST_ZERO)) {
+      return 0;
+    }
+    if (addr.equals(IrAddr.CONST_ONE)) {
+      return 1;
+    }
+    return null;
+  }
+
   private static Address addressTo(IrAddr addr) {
     switch (addr.kind()) {
       case REL_SP:
@@ -250,6 +326,8 @@ public final class CodeGen {
         return Address.baseAndOffset(IrAddr.CONST_ZERO.absData(), addr.absData());
       case ABS_STACK:
         return Address.baseAndOffset(IrAddr.CONST_ZERO.absData(), addr.absStack());
+      case IMMEDIATE:
+        throw new IllegalArgumentException("Immediate " + addr + " is not an address");
       default:
         throw new IllegalArgumentException();
     }
@@ -19,6 +19,7 @@ public abstract class IrAddr {
     REL_SP,
     ABS_DATA,
     ABS_STACK,
+    IMMEDIATE,
   }
 
   public abstract AddrKind kind();
@@ -35,6 +36,12 @@ public abstract class IrAddr {
   /** Returns the absolute address in the stack space. */
   public abstract int absStack();
 
+  /**
+   * Returns the value of an operand that is a known constant rather than an address. Only the
+   * operands of arithmetic and comparisons may be immediate.
+   */
+  public abstract int immediate();
+
   public static IrAddr relSp(int addr) {
     return AutoOneOf_IrAddr.relSp(addr);
   }
@@ -47,6 +54,10 @@ public abstract class IrAddr {
     return AutoOneOf_IrAddr.absStack(addr);
   }
 
+  public static IrAddr immediate(int value) {
+    return AutoOneOf_IrAddr.immediate(value);
+  }
+
   @Override
   public String toString() {
     switch (kind()) {
@@ -56,6 +67,8 @@ public abstract class IrAddr {
         return "[" + absStack() + "]";
       case REL_SP:
         return "[SP+" + relSp() + "]";
+      case IMMEDIATE:
+        return "#" + immediate();
       default:
         throw new IllegalArgumentException();
     }
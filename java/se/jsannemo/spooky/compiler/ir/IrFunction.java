@@ -16,8 +16,6 @@ public final class IrFunction {
   // Stack pointer offset of where to store the return value of the function.
   public int retValue;
 
-  // Stack pointer-relative address of what instruction address to jump to upon returning.
-  public int retAddress;
   public boolean isMain;
 
   @Override
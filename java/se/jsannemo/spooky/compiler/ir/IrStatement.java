@@ -62,10 +62,8 @@ public class IrStatement {
 
     public abstract int spOffset();
 
-    public abstract IrLabel jumpAfter();
-
-    public static IrCall of(String name, int spOffset, IrLabel label) {
-      return new AutoValue_IrStatement_IrCall(name, spOffset, label);
+    public static IrCall of(String name, int spOffset) {
+      return new AutoValue_IrStatement_IrCall(name, spOffset);
     }
 
     @Override
@@ -74,6 +72,20 @@ public class IrStatement {
     }
   }
 
+  @AutoValue
+  public abstract static class IrRet extends IrStatement {
+    IrRet() {}
+
+    public static IrRet of() {
+      return new AutoValue_IrStatement_IrRet();
+    }
+
+    @Override
+    public String toString() {
+      return "RET";
+    }
+  }
+
   @AutoValue
   public abstract static class IrJmpZero extends IrStatement {
     IrJmpZero() {}
@@ -103,8 +103,6 @@ public final class ToIr {
       IrValue var = IrValue.ofTypeAndAddress(type, IrAddr.relSp(offset));
       cur.addVal(pName, var);
     }
-    offset -= IrType.INT.memSize();
-    ctx.function.retAddress = offset;
     offset -= ctx.function.returnSignature.memSize();
     ctx.function.retValue = offset;
 
@@ -208,7 +206,7 @@ public final class ToIr {
       ctx.function.newStatement(
           IrStatement.IrCopy.fromTo(IrAddr.relSp(pos), IrAddr.relSp(ctx.function.retValue)));
     }
-    ctx.function.newStatement(IrStatement.IrJmpAdr.of(IrAddr.relSp(ctx.function.retAddress)));
+    ctx.function.newStatement(IrStatement.IrRet.of());
   }
 
   private void loop(Loop loop) {
@@ -387,16 +385,9 @@ public final class ToIr {
       return IrType.ERROR;
     }
 
-    IrStatement.IrLabel retLabel = ctx.function.newLabel();
-    // Reserve return value space.
+    // Reserve return value space. The return address is kept by the VM, not on the stack.
     ctx.scope.spOffset += func.returnSignature.memSize();
     int retValSp = ctx.scope.spOffset;
-    // Reserve return pointer space.
-    if (!func.extern) {
-      ctx.function.newStatement(
-          IrStatement.IrStoreLabel.of(IrAddr.relSp(ctx.scope.spOffset), retLabel));
-      ctx.scope.spOffset += IrType.INT.memSize();
-    }
     if (functionCall.params().size() != func.paramSignature.size()) {
       errors.error(
           functionCall.pos(),
@@ -413,7 +404,7 @@ public final class ToIr {
     if (func.extern) {
       ctx.function.newStatement(IrStatement.IrExtern.of(mName, ctx.scope.spOffset));
     } else {
-      ctx.function.newStatement(IrStatement.IrCall.of(mName, ctx.scope.spOffset, retLabel));
+      ctx.function.newStatement(IrStatement.IrCall.of(mName, ctx.scope.spOffset));
     }
     ctx.scope.spOffset = retValSp;
     return func.returnSignature;
@@ -502,27 +493,22 @@ public final class ToIr {
   private IrType arithmetic(BinaryOp op, Expression left, Expression right) {
     IrContext.Scope cur = ctx.scope;
     int addr1 = evalType(left, IrType.INT);
-    int addr2 = evalType(right, IrType.INT);
+    IrAddr operand2 = evalOperand(right, IrType.INT);
     if (op == BinaryOp.ADD) {
       ctx.function.newStatement(
-          IrStatement.IrAdd.forTermsAndTarget(
-              IrAddr.relSp(addr1), IrAddr.relSp(addr2), IrAddr.relSp(addr1)));
+          IrStatement.IrAdd.forTermsAndTarget(IrAddr.relSp(addr1), operand2, IrAddr.relSp(addr1)));
     } else if (op == BinaryOp.SUBTRACT) {
       ctx.function.newStatement(
-          IrStatement.IrSub.forTermsAndTarget(
-              IrAddr.relSp(addr1), IrAddr.relSp(addr2), IrAddr.relSp(addr1)));
+          IrStatement.IrSub.forTermsAndTarget(IrAddr.relSp(addr1), operand2, IrAddr.relSp(addr1)));
     } else if (op == BinaryOp.MULTIPLY) {
       ctx.function.newStatement(
-          IrStatement.IrMul.forTermsAndTarget(
-              IrAddr.relSp(addr1), IrAddr.relSp(addr2), IrAddr.relSp(addr1)));
+          IrStatement.IrMul.forTermsAndTarget(IrAddr.relSp(addr1), operand2, IrAddr.relSp(addr1)));
     } else if (op == BinaryOp.DIVIDE) {
       ctx.function.newStatement(
-          IrStatement.IrDiv.forTermsAndTarget(
-              IrAddr.relSp(addr1), IrAddr.relSp(addr2), IrAddr.relSp(addr1)));
+          IrStatement.IrDiv.forTermsAndTarget(IrAddr.relSp(addr1), operand2, IrAddr.relSp(addr1)));
     } else if (op == BinaryOp.MODULO) {
       ctx.function.newStatement(
-          IrStatement.IrMod.forTermsAndTarget(
-              IrAddr.relSp(addr1), IrAddr.relSp(addr2), IrAddr.relSp(addr1)));
+          IrStatement.IrMod.forTermsAndTarget(IrAddr.relSp(addr1), operand2, IrAddr.relSp(addr1)));
     }
     cur.spOffset = addr1 + IrType.INT.memSize();
     return IrType.INT;
@@ -550,31 +536,31 @@ public final class ToIr {
   private IrType comparison(BinaryOp op, Expression left, Expression right) {
     IrContext.Scope cur = ctx.scope;
     int addr1 = evalType(left, IrType.INT);
-    int addr2 = evalType(right, IrType.INT);
+    IrAddr operand2 = evalOperand(right, IrType.INT);
     if (op == BinaryOp.LESS_THAN) {
       ctx.function.newStatement(
           IrStatement.IrLessThan.forTermsAndTarget(
-              IrAddr.relSp(addr1), IrAddr.relSp(addr2), IrAddr.relSp(addr1)));
+              IrAddr.relSp(addr1), operand2, IrAddr.relSp(addr1)));
     } else if (op == BinaryOp.GREATER_THAN) {
       ctx.function.newStatement(
           IrStatement.IrLessThan.forTermsAndTarget(
-              IrAddr.relSp(addr2), IrAddr.relSp(addr1), IrAddr.relSp(addr1)));
+              operand2, IrAddr.relSp(addr1), IrAddr.relSp(addr1)));
     } else if (op == BinaryOp.LESS_EQUALS) {
       ctx.function.newStatement(
           IrStatement.IrLessEquals.forTermsAndTarget(
-              IrAddr.relSp(addr1), IrAddr.relSp(addr2), IrAddr.relSp(addr1)));
+              IrAddr.relSp(addr1), operand2, IrAddr.relSp(addr1)));
     } else if (op == BinaryOp.GREATER_EQUALS) {
       ctx.function.newStatement(
           IrStatement.IrLessEquals.forTermsAndTarget(
-              IrAddr.relSp(addr2), IrAddr.relSp(addr1), IrAddr.relSp(addr1)));
+              operand2, IrAddr.relSp(addr1), IrAddr.relSp(addr1)));
     } else if (op == BinaryOp.EQUALS) {
       ctx.function.newStatement(
           IrStatement.IrEquals.forTermsAndTarget(
-              IrAddr.relSp(addr1), IrAddr.relSp(addr2), IrAddr.relSp(addr1)));
+              IrAddr.relSp(addr1), operand2, IrAddr.relSp(addr1)));
     } else if (op == BinaryOp.NOT_EQUALS) {
       ctx.function.newStatement(
           IrStatement.IrNotEquals.forTermsAndTarget(
-              IrAddr.relSp(addr1), IrAddr.relSp(addr2), IrAddr.relSp(addr1)));
+              IrAddr.relSp(addr1), operand2, IrAddr.relSp(addr1)));
     } else {
       throw new AssertionError("Unexpected arithmetic op?");
     }
@@ -582,6 +568,19 @@ public final class ToIr {
     return IrType.BOOL;
   }
 
+  /**
+   * Returns the operand holding the value of {@code e}, which is an immediate if {@code e} is an
+   * integer literal and otherwise evaluated onto the stack like with {@link #evalType}.
+   */
+  private IrAddr evalOperand(Expression e, IrType expected) {
+    if (expected.equals(IrType.INT)
+        && e.kind() == Expression.Kind.VALUE
+        && e.value().kind() == Value.Kind.INT_LIT) {
+      return IrAddr.immediate(e.value().intLit().value());
+    }
+    return IrAddr.relSp(evalType(e, expected));
+  }
+
   private int evalType(Expression e, IrType expected) {
     int sp = ctx.scope.spOffset;
     IrType type = expr(e);
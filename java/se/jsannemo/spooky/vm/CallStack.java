@@ -0,0 +1,107 @@
+package se.jsannemo.spooky.vm;
+
+import java.util.Arrays;
+
+/**
+ * The return addresses of the calls that a {@link SpookyVm} is executing, together with the size of
+ * their frames.
+ *
+ * <p>Call instructions push onto the stack and return instructions pop from it, so that programs
+ * do not need to keep return addresses in their own memory. The entries are kept as pairs in a
+ * single growable int array, and the depth of the stack is bounded so that runaway recursion faults
+ * rather than exhausting the memory of the host.
+ */
+public final class CallStack {
+
+  private static final int INITIAL_CAPACITY = 16;
+
+  private final int maxDepth;
+  /** The return address and frame size of every call, outermost first. */
+  private int[] entries = new int[2 * INITIAL_CAPACITY];
+
+  private int depth;
+
+  CallStack(int maxDepth) {
+    this.maxDepth = maxDepth;
+  }
+
+  /** Returns the number of calls that the stack can hold. */
+  int maxDepth() {
+    return maxDepth;
+  }
+
+  /** Returns the number of calls on the stack. */
+  public int depth() {
+    return depth;
+  }
+
+  /** Returns whether a push would overflow the stack. */
+  public boolean isFull() {
+    return depth >= maxDepth;
+  }
+
+  public boolean isEmpty() {
+    return depth == 0;
+  }
+
+  /**
+   * Pushes a call that returns to the instruction {@code returnAddress}, with a frame of {@code
+   * frame} cells.
+   *
+   * @throws VmException if the stack is full.
+   */
+  public void push(int returnAddress, int frame) throws VmException {
+    if (isFull()) {
+      throw new VmException("Call stack overflow");
+    }
+    if (2 * depth == entries.length) {
+      entries = Arrays.copyOf(entries, 2 * entries.length);
+    }
+    entries[2 * depth] = returnAddress;
+    entries[2 * depth + 1] = frame;
+    depth++;
+  }
+
+  /**
+   * Returns the frame size of the innermost call.
+   *
+   * @throws VmException if the stack is empty.
+   */
+  public int frame() throws VmException {
+    if (depth == 0) {
+      throw new VmException("Return without call");
+    }
+    return entries[2 * depth - 1];
+  }
+
+  /** Pops the innermost call, which must exist, returning its return address. */
+  public int pop() {
+    depth--;
+    return entries[2 * depth];
+  }
+
+  /** Returns a copy of the entries of the stack, which {@link #restore(int[])} accepts. */
+  int[] entries() {
+    return Arrays.copyOf(entries, 2 * depth);
+  }
+
+  /** Replaces the calls on the stack with {@code saved}, as returned by {@link #entries()}. */
+  void restore(int[] saved) {
+    if (saved.length > entries.length) {
+      entries = Arrays.copyOf(saved, saved.length);
+    } else {
+      System.arraycopy(saved, 0, entries, 0, saved.length);
+    }
+    depth = saved.length / 2;
+  }
+
+  /** Removes all calls from the stack. */
+  void clear() {
+    depth = 0;
+  }
+
+  /** Returns the return address of the call at {@code depth}, counting from the outermost. */
+  int returnAddress(int depth) {
+    return entries[2 * depth];
+  }
+}
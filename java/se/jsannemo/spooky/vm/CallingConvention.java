@@ -36,7 +36,19 @@ public final class CallingConvention {
    * @throws VmException if not enough stack is reserved for the return value.
    */
   public static void setReturn(SpookyVm vm, int argSize, int value) throws VmException {
-    int sp = vm.getM(STACK_POINTER_STACK);
-    vm.setM(sp - 1 - argSize, value);
+    vm.setM(returnPosition(vm, argSize), value);
+  }
+
+  /**
+   * Returns the memory position of the return value of a call, where the parameters of the call had
+   * size {@code argSize}.
+   *
+   * <p>Externs that set their return value after the VM has continued must use the position from
+   * when they were called, since the stack pointer may have changed.
+   *
+   * @throws VmException if the stack pointer is out of bounds.
+   */
+  public static int returnPosition(SpookyVm vm, int argSize) throws VmException {
+    return vm.getM(STACK_POINTER_STACK) - 1 - argSize;
   }
 }
@@ -0,0 +1,804 @@
+package se.jsannemo.spooky.vm;
+
+import se.jsannemo.spooky.vm.code.DecodedCode;
+import se.jsannemo.spooky.vm.code.Executable;
+
+/**
+ * A {@link CodeCompiler} turning every instruction into a pre-linked node object, so that
+ * instructions are decoded only once rather than on every execution.
+ *
+ * <p>Every opcode has its own node class, and the addresses of operands are turned into closures
+ * specialized on how the address is resolved: a constant from the data segment, a fixed memory
+ * cell, or a cell relative to the value of another one. Each node is linked directly to the node
+ * of the instruction following it and to the target of its jump, if any.
+ *
+ * <p>Compilation is a single linear pass over the instructions, so this compiler can be used with
+ * a compile threshold of 0 to run every function in this mode from the start, as a faster
+ * alternative to the interpreter that is still cheap enough for short programs.
+ */
+public final class ClosureCompiler implements CodeCompiler {
+
+  @Override
+  public CompiledCode compile(
+      Executable executable,
+      DecodedCode code,
+      int start,
+      int end,
+      int memoryCells,
+      boolean trackMemory) {
+    return new ClosureCode(code, start, end, memoryCells, trackMemory);
+  }
+
+  /** Reads the value of an operand. */
+  private interface Operand {
+    int read(ExecutionState state) throws VmException;
+  }
+
+  /** Writes the result of an instruction. */
+  private interface Target {
+    void write(ExecutionState state, int value) throws VmException;
+  }
+
+  private static final class ClosureCode implements CompiledCode {
+    private final DecodedCode code;
+    private final int[] data;
+    private final int memoryCells;
+    private final boolean trackMemory;
+    private final int start;
+    private final Node[] nodes;
+
+    ClosureCode(DecodedCode code, int start, int end, int memoryCells, boolean trackMemory) {
+      this.code = code;
+      this.data = code.data();
+      this.memoryCells = memoryCells;
+      this.trackMemory = trackMemory;
+      this.start = start;
+      this.nodes = new Node[end - start];
+      int[] ins = code.code();
+      for (int ip = start; ip < end; ip++) {
+        nodes[ip - start] = node(ins, ip);
+      }
+      for (int ip = start; ip < end; ip++) {
+        nodes[ip - start].link(this);
+      }
+    }
+
+    @Override
+    public boolean execute(ExecutionState state) throws VmException {
+      Node node = node(state.ip);
+      Node current = null;
+      long limit = state.limit;
+      try {
+        while (node != null) {
+          if (state.executed >= limit) {
+            state.ip = node.ip;
+            return false;
+          }
+          state.executed++;
+          current = node;
+          node = node.execute(state);
+        }
+      } catch (VmException e) {
+        state.ip = current.ip + 1;
+        throw e;
+      }
+      return current instanceof Halt;
+    }
+
+    /** Returns the instruction that a jump to the code address {@code address} continues at. */
+    int relocate(int address) {
+      return code.relocate(address);
+    }
+
+    /** Returns the node of the instruction at {@code ip}, or {@code null} if it is not compiled. */
+    Node node(int ip) {
+      return start <= ip && ip < start + nodes.length ? nodes[ip - start] : null;
+    }
+
+    private Node node(int[] ins, int ip) {
+      int pc = ip * DecodedCode.STRIDE;
+      switch (ins[pc]) {
+        case DecodedCode.MOV:
+          return new Move(ip, operand(ins, pc + DecodedCode.OP1_BASE), target(ins, pc));
+        case DecodedCode.CONST:
+          return new Const(ip, ins[pc + DecodedCode.IMMEDIATE], target(ins, pc));
+        case DecodedCode.JMP:
+        case DecodedCode.JMPN:
+          return new Jump(
+              ip,
+              operand(ins, pc + DecodedCode.OP1_BASE),
+              ins[pc + DecodedCode.IMMEDIATE],
+              ins[pc] == DecodedCode.JMPN);
+        case DecodedCode.JMPADR:
+          return new JumpAddress(ip, operand(ins, pc + DecodedCode.OP1_BASE));
+        case DecodedCode.EXTERN:
+          return new Extern(ip, ins[pc + DecodedCode.IMMEDIATE]);
+        case DecodedCode.HALT:
+          return new Halt(ip);
+        case DecodedCode.CALL:
+          return new Call(
+              ip, stackPointer(), ins[pc + DecodedCode.FRAME], ins[pc + DecodedCode.IMMEDIATE]);
+        case DecodedCode.RET:
+          return new Return(ip, stackPointer());
+        case DecodedCode.ADDSP:
+        case DecodedCode.SUBSP:
+          {
+            int constant = ins[pc + DecodedCode.IMMEDIATE];
+            return new AdjustStackPointer(
+                ip,
+                stackPointer(),
+                target(ins, pc),
+                constant,
+                ins[pc] == DecodedCode.ADDSP ? constant : -constant);
+          }
+        case DecodedCode.EXTERNSP:
+          return new ExternFrame(
+              ip,
+              ins[pc + DecodedCode.IMMEDIATE],
+              stackPointer(),
+              target(ins, pc),
+              ins[pc + DecodedCode.FRAME]);
+        default:
+          return binary(ins, pc, ip);
+      }
+    }
+
+    /** Returns the stack pointer, which fused stack pointer adjustments read and write. */
+    private StackPointer stackPointer() {
+      return new StackPointer(
+          cell(CallingConvention.STACK_POINTER_STACK),
+          cellTarget(CallingConvention.STACK_POINTER_STACK));
+    }
+
+    private Node binary(int[] ins, int pc, int ip) {
+      Operand a = operand(ins, pc + DecodedCode.OP1_BASE);
+      Operand b = operand(ins, pc + DecodedCode.OP2_BASE);
+      Target t = target(ins, pc);
+      switch (ins[pc]) {
+        case DecodedCode.ADD:
+          return new Add(ip, a, b, t);
+        case DecodedCode.SUB:
+          return new Sub(ip, a, b, t);
+        case DecodedCode.MUL:
+          return new Mul(ip, a, b, t);
+        case DecodedCode.DIV:
+          return new Div(ip, a, b, t);
+        case DecodedCode.MOD:
+          return new Mod(ip, a, b, t);
+        case DecodedCode.LT:
+          return new LessThan(ip, a, b, t);
+        case DecodedCode.LEQ:
+          return new LessEquals(ip, a, b, t);
+        case DecodedCode.EQ:
+          return new Equals(ip, a, b, t);
+        case DecodedCode.NEQ:
+          return new NotEquals(ip, a, b, t);
+        case DecodedCode.BITAND:
+          return new BitAnd(ip, a, b, t);
+        case DecodedCode.BITOR:
+          return new BitOr(ip, a, b, t);
+        case DecodedCode.LTJMP:
+          return new LessThanJump(ip, a, b, t, ins[pc + DecodedCode.IMMEDIATE]);
+        case DecodedCode.LEQJMP:
+          return new LessEqualsJump(ip, a, b, t, ins[pc + DecodedCode.IMMEDIATE]);
+        case DecodedCode.EQJMP:
+          return new EqualsJump(ip, a, b, t, ins[pc + DecodedCode.IMMEDIATE]);
+        case DecodedCode.NEQJMP:
+          return new NotEqualsJump(ip, a, b, t, ins[pc + DecodedCode.IMMEDIATE]);
+        default:
+          throw new IllegalArgumentException("Invalid operation in VM: " + ins[pc]);
+      }
+    }
+
+    private Operand operand(int[] ins, int pos) {
+      int mode = ins[pos];
+      int offset = ins[pos + 1];
+      if (mode == DecodedCode.CONSTANT) {
+        return state -> offset;
+      }
+      if (mode == DecodedCode.ABSOLUTE || mode == DecodedCode.INVALID_BASE) {
+        // Reading from an invalid base faults just like reading from an invalid address.
+        return cell(offset);
+      }
+      int base = mode == DecodedCode.SP_RELATIVE ? CallingConvention.STACK_POINTER_STACK : mode;
+      if (trackMemory) {
+        return state -> trackedLoad(state, trackedLoad(state, base) + offset);
+      }
+      return state -> load(state, load(state, base) + offset);
+    }
+
+    private Operand cell(int pos) {
+      if (isData(pos)) {
+        int value = data[-(pos + 1)];
+        return state -> value;
+      }
+      if (0 <= pos && pos < memoryCells) {
+        if (trackMemory) {
+          return state -> {
+            track(state, pos);
+            return state.memory[pos];
+          };
+        }
+        return state -> state.memory[pos];
+      }
+      return state -> state.load(pos);
+    }
+
+    private Target target(int[] ins, int pc) {
+      int mode = ins[pc + DecodedCode.TARGET_BASE];
+      int offset = ins[pc + DecodedCode.TARGET_OFFSET];
+      if (mode == DecodedCode.ABSOLUTE) {
+        return cellTarget(offset);
+      }
+      if (mode == DecodedCode.INVALID_BASE) {
+        return (state, value) -> state.load(offset);
+      }
+      int base = mode == DecodedCode.SP_RELATIVE ? CallingConvention.STACK_POINTER_STACK : mode;
+      if (trackMemory) {
+        return (state, value) -> trackedStore(state, trackedLoad(state, base) + offset, value);
+      }
+      return (state, value) -> store(state, load(state, base) + offset, value);
+    }
+
+    private Target cellTarget(int pos) {
+      if (0 <= pos && pos < memoryCells) {
+        if (trackMemory) {
+          return (state, value) -> {
+            track(state, pos);
+            state.memory[pos] = value;
+          };
+        }
+        return (state, value) -> state.memory[pos] = value;
+      }
+      return (state, value) -> state.store(pos, value);
+    }
+
+    private boolean isData(int pos) {
+      return -data.length <= pos && pos < 0;
+    }
+  }
+
+  private static int load(ExecutionState state, int pos) throws VmException {
+    int[] memory = state.memory;
+    if (0 <= pos && pos < memory.length) {
+      return memory[pos];
+    }
+    return state.load(pos);
+  }
+
+  private static int trackedLoad(ExecutionState state, int pos) throws VmException {
+    int[] memory = state.memory;
+    if (0 <= pos && pos < memory.length) {
+      track(state, pos);
+      return memory[pos];
+    }
+    return state.load(pos);
+  }
+
+  private static void store(ExecutionState state, int pos, int value) throws VmException {
+    int[] memory = state.memory;
+    if (0 <= pos && pos < memory.length) {
+      memory[pos] = value;
+    } else {
+      state.store(pos, value);
+    }
+  }
+
+  private static void trackedStore(ExecutionState state, int pos, int value) throws VmException {
+    int[] memory = state.memory;
+    if (0 <= pos && pos < memory.length) {
+      track(state, pos);
+      memory[pos] = value;
+    } else {
+      state.store(pos, value);
+    }
+  }
+
+  /** Records an access to the main memory at position {@code pos}. */
+  private static void track(ExecutionState state, int pos) {
+    if (pos > state.maxMemoryUsed) {
+      state.maxMemoryUsed = pos;
+    }
+  }
+
+  /**
+   * The compiled form of the instruction at {@link #ip}.
+   *
+   * <p>Executing a node returns the node to execute next. If execution should leave the compiled
+   * code, {@code null} is returned after setting the instruction pointer of the state.
+   */
+  private abstract static class Node {
+    final int ip;
+    private Node next;
+
+    Node(int ip) {
+      this.ip = ip;
+    }
+
+    void link(ClosureCode code) {
+      next = code.node(ip + 1);
+    }
+
+    /** Returns the node of the following instruction. */
+    final Node next(ExecutionState state) {
+      if (next == null) {
+        state.ip = ip + 1;
+      }
+      return next;
+    }
+
+    abstract Node execute(ExecutionState state) throws VmException;
+  }
+
+  private static final class Move extends Node {
+    private final Operand source;
+    private final Target target;
+
+    Move(int ip, Operand source, Target target) {
+      super(ip);
+      this.source = source;
+      this.target = target;
+    }
+
+    @Override
+    Node execute(ExecutionState state) throws VmException {
+      target.write(state, source.read(state));
+      return next(state);
+    }
+  }
+
+  private static final class Const extends Node {
+    private final int value;
+    private final Target target;
+
+    Const(int ip, int value, Target target) {
+      super(ip);
+      this.value = value;
+      this.target = target;
+    }
+
+    @Override
+    Node execute(ExecutionState state) throws VmException {
+      target.write(state, value);
+      return next(state);
+    }
+  }
+
+  private abstract static class Binary extends Node {
+    final Operand a;
+    final Operand b;
+    final Target target;
+
+    Binary(int ip, Operand a, Operand b, Target target) {
+      super(ip);
+      this.a = a;
+      this.b = b;
+      this.target = target;
+    }
+  }
+
+  private static final class Add extends Binary {
+    Add(int ip, Operand a, Operand b, Target target) {
+      super(ip, a, b, target);
+    }
+
+    @Override
+    Node execute(ExecutionState state) throws VmException {
+      target.write(state, a.read(state) + b.read(state));
+      return next(state);
+    }
+  }
+
+  private static final class Sub extends Binary {
+    Sub(int ip, Operand a, Operand b, Target target) {
+      super(ip, a, b, target);
+    }
+
+    @Override
+    Node execute(ExecutionState state) throws VmException {
+      target.write(state, a.read(state) - b.read(state));
+      return next(state);
+    }
+  }
+
+  private static final class Mul extends Binary {
+    Mul(int ip, Operand a, Operand b, Target target) {
+      super(ip, a, b, target);
+    }
+
+    @Override
+    Node execute(ExecutionState state) throws VmException {
+      target.write(state, a.read(state) * b.read(state));
+      return next(state);
+    }
+  }
+
+  private static final class Div extends Binary {
+    Div(int ip, Operand a, Operand b, Target target) {
+      super(ip, a, b, target);
+    }
+
+    @Override
+    Node execute(ExecutionState state) throws VmException {
+      int denominator = b.read(state);
+      if (denominator == 0) {
+        throw ExecutionState.divisionByZero();
+      }
+      target.write(state, a.read(state) / denominator);
+      return next(state);
+    }
+  }
+
+  private static final class Mod extends Binary {
+    Mod(int ip, Operand a, Operand b, Target target) {
+      super(ip, a, b, target);
+    }
+
+    @Override
+    Node execute(ExecutionState state) throws VmException {
+      int denominator = b.read(state);
+      if (denominator == 0) {
+        throw ExecutionState.divisionByZero();
+      }
+      target.write(state, a.read(state) % denominator);
+      return next(state);
+    }
+  }
+
+  private static final class LessThan extends Binary {
+    LessThan(int ip, Operand a, Operand b, Target target) {
+      super(ip, a, b, target);
+    }
+
+    @Override
+    Node execute(ExecutionState state) throws VmException {
+      target.write(state, a.read(state) < b.read(state) ? 1 : 0);
+      return next(state);
+    }
+  }
+
+  private static final class LessEquals extends Binary {
+    LessEquals(int ip, Operand a, Operand b, Target target) {
+      super(ip, a, b, target);
+    }
+
+    @Override
+    Node execute(ExecutionState state) throws VmException {
+      target.write(state, a.read(state) <= b.read(state) ? 1 : 0);
+      return next(state);
+    }
+  }
+
+  private static final class Equals extends Binary {
+    Equals(int ip, Operand a, Operand b, Target target) {
+      super(ip, a, b, target);
+    }
+
+    @Override
+    Node execute(ExecutionState state) throws VmException {
+      target.write(state, a.read(state) == b.read(state) ? 1 : 0);
+      return next(state);
+    }
+  }
+
+  private static final class NotEquals extends Binary {
+    NotEquals(int ip, Operand a, Operand b, Target target) {
+      super(ip, a, b, target);
+    }
+
+    @Override
+    Node execute(ExecutionState state) throws VmException {
+      target.write(state, a.read(state) != b.read(state) ? 1 : 0);
+      return next(state);
+    }
+  }
+
+  private static final class BitAnd extends Binary {
+    BitAnd(int ip, Operand a, Operand b, Target target) {
+      super(ip, a, b, target);
+    }
+
+    @Override
+    Node execute(ExecutionState state) throws VmException {
+      target.write(state, a.read(state) & b.read(state));
+      return next(state);
+    }
+  }
+
+  private static final class BitOr extends Binary {
+    BitOr(int ip, Operand a, Operand b, Target target) {
+      super(ip, a, b, target);
+    }
+
+    @Override
+    Node execute(ExecutionState state) throws VmException {
+      target.write(state, a.read(state) | b.read(state));
+      return next(state);
+    }
+  }
+
+  /** A comparison fused with a jump on its result, taken if the comparison is false. */
+  private abstract static class CompareJump extends Binary {
+    private final int targetIp;
+    private Node jumpTarget;
+
+    CompareJump(int ip, Operand a, Operand b, Target target, int targetIp) {
+      super(ip, a, b, target);
+      this.targetIp = targetIp;
+    }
+
+    @Override
+    void link(ClosureCode code) {
+      super.link(code);
+      jumpTarget = code.node(targetIp);
+    }
+
+    abstract boolean compare(int a, int b);
+
+    @Override
+    final Node execute(ExecutionState state) throws VmException {
+      boolean result = compare(a.read(state), b.read(state));
+      target.write(state, result ? 1 : 0);
+      if (result) {
+        return next(state);
+      }
+      if (jumpTarget == null) {
+        state.ip = targetIp;
+      }
+      return jumpTarget;
+    }
+  }
+
+  private static final class LessThanJump extends CompareJump {
+    LessThanJump(int ip, Operand a, Operand b, Target target, int targetIp) {
+      super(ip, a, b, target, targetIp);
+    }
+
+    @Override
+    boolean compare(int a, int b) {
+      return a < b;
+    }
+  }
+
+  private static final class LessEqualsJump extends CompareJump {
+    LessEqualsJump(int ip, Operand a, Operand b, Target target, int targetIp) {
+      super(ip, a, b, target, targetIp);
+    }
+
+    @Override
+    boolean compare(int a, int b) {
+      return a <= b;
+    }
+  }
+
+  private static final class EqualsJump extends CompareJump {
+    EqualsJump(int ip, Operand a, Operand b, Target target, int targetIp) {
+      super(ip, a, b, target, targetIp);
+    }
+
+    @Override
+    boolean compare(int a, int b) {
+      return a == b;
+    }
+  }
+
+  private static final class NotEqualsJump extends CompareJump {
+    NotEqualsJump(int ip, Operand a, Operand b, Target target, int targetIp) {
+      super(ip, a, b, target, targetIp);
+    }
+
+    @Override
+    boolean compare(int a, int b) {
+      return a != b;
+    }
+  }
+
+  private static final class Jump extends Node {
+    private final Operand flag;
+    private final int targetIp;
+    private final boolean jumpIfNonZero;
+    private Node target;
+
+    Jump(int ip, Operand flag, int targetIp, boolean jumpIfNonZero) {
+      super(ip);
+      this.flag = flag;
+      this.targetIp = targetIp;
+      this.jumpIfNonZero = jumpIfNonZero;
+    }
+
+    @Override
+    void link(ClosureCode code) {
+      super.link(code);
+      target = code.node(targetIp);
+    }
+
+    @Override
+    Node execute(ExecutionState state) throws VmException {
+      if ((flag.read(state) != 0) != jumpIfNonZero) {
+        return next(state);
+      }
+      if (target == null) {
+        state.ip = targetIp;
+      }
+      return target;
+    }
+  }
+
+  private static final class JumpAddress extends Node {
+    private final Operand address;
+    private ClosureCode code;
+
+    JumpAddress(int ip, Operand address) {
+      super(ip);
+      this.address = address;
+    }
+
+    @Override
+    void link(ClosureCode code) {
+      this.code = code;
+    }
+
+    @Override
+    Node execute(ExecutionState state) throws VmException {
+      int targetIp = code.relocate(address.read(state));
+      Node target = code.node(targetIp);
+      if (target == null) {
+        state.ip = targetIp;
+      }
+      return target;
+    }
+  }
+
+  private static final class Extern extends Node {
+    private final int extern;
+
+    Extern(int ip, int extern) {
+      super(ip);
+      this.extern = extern;
+    }
+
+    @Override
+    Node execute(ExecutionState state) throws VmException {
+      state.ip = ip + 1;
+      if (state.callExtern(extern)) {
+        return null;
+      }
+      return next(state);
+    }
+  }
+
+  /** The memory cell of the stack pointer, as read and written by fused instructions. */
+  private static final class StackPointer {
+    private final Operand read;
+    private final Target write;
+
+    StackPointer(Operand read, Target write) {
+      this.read = read;
+      this.write = write;
+    }
+
+    /** Writes {@code value} to {@code scratch} and adds {@code delta} to the stack pointer. */
+    void adjust(ExecutionState state, Target scratch, int value, int delta) throws VmException {
+      scratch.write(state, value);
+      move(state, delta);
+    }
+
+    /** Adds {@code delta} to the stack pointer. */
+    void move(ExecutionState state, int delta) throws VmException {
+      write.write(state, read.read(state) + delta);
+    }
+  }
+
+  private static final class Call extends Node {
+    private final StackPointer sp;
+    private final int frame;
+    private final int targetIp;
+    private Node target;
+
+    Call(int ip, StackPointer sp, int frame, int targetIp) {
+      super(ip);
+      this.sp = sp;
+      this.frame = frame;
+      this.targetIp = targetIp;
+    }
+
+    @Override
+    void link(ClosureCode code) {
+      super.link(code);
+      target = code.node(targetIp);
+    }
+
+    @Override
+    Node execute(ExecutionState state) throws VmException {
+      state.calls.push(ip + 1, frame);
+      sp.move(state, frame);
+      if (target == null) {
+        state.ip = targetIp;
+      }
+      return target;
+    }
+  }
+
+  private static final class Return extends Node {
+    private final StackPointer sp;
+    private ClosureCode code;
+
+    Return(int ip, StackPointer sp) {
+      super(ip);
+      this.sp = sp;
+    }
+
+    @Override
+    void link(ClosureCode code) {
+      this.code = code;
+    }
+
+    @Override
+    Node execute(ExecutionState state) throws VmException {
+      sp.move(state, -state.calls.frame());
+      int targetIp = state.calls.pop();
+      Node target = code.node(targetIp);
+      if (target == null) {
+        state.ip = targetIp;
+      }
+      return target;
+    }
+  }
+
+  private static final class AdjustStackPointer extends Node {
+    private final StackPointer sp;
+    private final Target scratch;
+    private final int value;
+    private final int delta;
+
+    AdjustStackPointer(int ip, StackPointer sp, Target scratch, int value, int delta) {
+      super(ip);
+      this.sp = sp;
+      this.scratch = scratch;
+      this.value = value;
+      this.delta = delta;
+    }
+
+    @Override
+    Node execute(ExecutionState state) throws VmException {
+      sp.adjust(state, scratch, value, delta);
+      return next(state);
+    }
+  }
+
+  private static final class ExternFrame extends Node {
+    private final int extern;
+    private final StackPointer sp;
+    private final Target scratch;
+    private final int frame;
+
+    ExternFrame(int ip, int extern, StackPointer sp, Target scratch, int frame) {
+      super(ip);
+      this.extern = extern;
+      this.sp = sp;
+      this.scratch = scratch;
+      this.frame = frame;
+    }
+
+    @Override
+    Node execute(ExecutionState state) throws VmException {
+      sp.adjust(state, scratch, frame, frame);
+      state.ip = ip + 1;
+      boolean suspended = state.callExtern(extern);
+      sp.adjust(state, scratch, frame, -frame);
+      return suspended ? null : next(state);
+    }
+  }
+
+  private static final class Halt extends Node {
+    Halt(int ip) {
+      super(ip);
+    }
+
+    @Override
+    Node execute(ExecutionState state) {
+      state.ip = ip + 1;
+      return null;
+    }
+  }
+}
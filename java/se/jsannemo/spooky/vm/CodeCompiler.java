@@ -0,0 +1,30 @@
+package se.jsannemo.spooky.vm;
+
+import se.jsannemo.spooky.vm.code.DecodedCode;
+import se.jsannemo.spooky.vm.code.Executable;
+
+/**
+ * Compiles ranges of decoded instructions into {@link CompiledCode} that a {@link SpookyVm} can run
+ * in place of interpreting them.
+ */
+public interface CodeCompiler {
+
+  /**
+   * Compiles the instructions with indices in {@code [start, end)} of {@code code}, the decoded
+   * text segment of {@code executable}, for a VM with {@code memoryCells} cells of allocated
+   * memory. The allocated memory may grow while the code runs, but never shrinks.
+   *
+   * <p>If {@code trackMemory} is set, the compiled code must keep {@link
+   * ExecutionState#maxMemoryUsed} up to date with every read and write of the main memory.
+   * Otherwise, it must not spend any work on it.
+   *
+   * @return the compiled code, or {@code null} if the instructions could not be compiled.
+   */
+  CompiledCode compile(
+      Executable executable,
+      DecodedCode code,
+      int start,
+      int end,
+      int memoryCells,
+      boolean trackMemory);
+}
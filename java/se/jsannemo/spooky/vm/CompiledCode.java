@@ -0,0 +1,24 @@
+package se.jsannemo.spooky.vm;
+
+/**
+ * A range of instructions compiled by a {@link CodeCompiler}.
+ *
+ * <p>Compiled code must behave exactly like the interpreter of {@link SpookyVm} would when
+ * executing the same instructions: it must count executed instructions, never execute more
+ * instructions than allowed by {@link ExecutionState#limit} and fail with the same faults.
+ */
+public interface CompiledCode {
+
+  /**
+   * Executes instructions starting at {@link ExecutionState#ip}.
+   *
+   * <p>Execution continues until the program halts, the instruction pointer leaves the compiled
+   * range or points to an instruction that the code can not be entered at, the next block of
+   * instructions would exceed the instruction limit, or an extern suspends the VM. The state must
+   * be up to date when returning, when calling an extern and when throwing a fault.
+   *
+   * @return {@literal true} if and only if the program halted.
+   * @throws VmException if an instruction caused a run-time fault in the VM.
+   */
+  boolean execute(ExecutionState state) throws VmException;
+}
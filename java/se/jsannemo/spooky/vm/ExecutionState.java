@@ -0,0 +1,81 @@
+package se.jsannemo.spooky.vm;
+
+import se.jsannemo.spooky.vm.code.DecodedCode;
+
+/**
+ * The parts of the state of a {@link SpookyVm} that {@link CompiledCode} reads and updates.
+ *
+ * <p>The fields are copied from the VM before compiled code is executed, and copied back when it
+ * returns or calls an extern.
+ */
+public final class ExecutionState {
+
+  private final SpookyVm vm;
+  /**
+   * The allocated part of the main memory of the VM. The VM replaces it with a larger array when
+   * allocating more memory, which can only happen when compiled code calls out of itself.
+   */
+  public int[] memory;
+  /** The calls that have not yet returned. */
+  public final CallStack calls;
+  /** The index of the next instruction to execute. */
+  public int ip;
+  /** The number of instructions executed so far. */
+  public long executed;
+  /** The number of executed instructions at which execution must stop. */
+  public long limit;
+  /** The largest position of the main memory that has been accessed, if memory is tracked. */
+  public int maxMemoryUsed;
+
+  ExecutionState(SpookyVm vm, int[] memory, CallStack calls) {
+    this.vm = vm;
+    this.memory = memory;
+    this.calls = calls;
+  }
+
+  /**
+   * Returns the memory at position {@code pos}, for positions outside of the allocated main
+   * memory.
+   *
+   * @throws VmException if {@code pos} is neither in the main memory nor the data segment.
+   */
+  public int load(int pos) throws VmException {
+    return vm.getM(pos);
+  }
+
+  /**
+   * Writes to the position {@code pos}, which is outside of the allocated main memory. This either
+   * allocates more memory, replacing {@link #memory}, or faults.
+   *
+   * @throws VmException if {@code pos} is outside of the main memory.
+   */
+  public void store(int pos, int value) throws VmException {
+    vm.setM(pos, value);
+  }
+
+  /**
+   * Returns the index of the instruction that a jump to the code address {@code address}, as
+   * stored in memory by the program, continues at. See {@link DecodedCode#relocate(int)}.
+   */
+  public int relocate(int address) {
+    return vm.relocate(address);
+  }
+
+  /**
+   * Calls the extern with index {@code extern} in the decoded text segment.
+   *
+   * @return whether the extern suspended the VM, in which case compiled code must return once the
+   *     extern instruction completes.
+   */
+  public boolean callExtern(int extern) throws VmException {
+    vm.loadState(this);
+    boolean suspended = vm.callExtern(extern);
+    vm.storeState(this);
+    return suspended;
+  }
+
+  /** Returns the fault of a division by zero. */
+  public static VmException divisionByZero() {
+    return SpookyVm.divisionByZero();
+  }
+}
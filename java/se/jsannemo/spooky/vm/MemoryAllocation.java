@@ -0,0 +1,19 @@
+package se.jsannemo.spooky.vm;
+
+/** When a {@link SpookyVm} allocates the main memory of the program it runs. */
+public enum MemoryAllocation {
+  /** The whole memory is allocated when the VM is built. */
+  EAGER,
+  /**
+   * Only the first page of the memory, holding the bottom of the stack, and the cells that the
+   * program addresses at fixed positions are allocated when the VM is built. The rest is allocated
+   * in whole pages when first written to, at least doubling the allocated memory every time so
+   * that a growing stack is copied a bounded number of times. Reads of cells that have not been
+   * allocated return 0 without allocating them.
+   *
+   * <p>This lets VMs be given large memory limits that only cost the memory programs actually
+   * write to. The allocated memory is a single array, so accesses to it cost the same as with
+   * {@link #EAGER}; only the first write past it takes the slow path.
+   */
+  LAZY,
+}
@@ -0,0 +1,45 @@
+package se.jsannemo.spooky.vm;
+
+/**
+ * Storage for the main memory of a {@link SpookyVm} outside of the array that the VM accesses
+ * directly, e.g. off the Java heap where large memories do not slow down garbage collection. See
+ * {@link SpookyVm.Builder#setMemoryBackend(MemoryBackend, int)}.
+ *
+ * <p>Cells are read and written with the same contract as the main memory of a VM. The VM checks
+ * positions against its memory size before accessing the backend.
+ */
+public interface MemoryBackend {
+
+  /** Returns the number of cells of the backend. */
+  int size();
+
+  /**
+   * Returns the cell at position {@code pos}.
+   *
+   * @throws VmException if {@code pos} is outside of the backend.
+   */
+  int getM(int pos) throws VmException;
+
+  /**
+   * Sets the cell at position {@code pos}.
+   *
+   * @throws VmException if {@code pos} is outside of the backend.
+   */
+  void setM(int pos, int value) throws VmException;
+
+  /**
+   * Copies the {@code length} cells starting at position {@code pos} into {@code target}, starting
+   * at index {@code offset}.
+   *
+   * @throws VmException if any of the cells is outside of the backend.
+   */
+  void read(int pos, int[] target, int offset, int length) throws VmException;
+
+  /**
+   * Copies {@code length} values from {@code source}, starting at index {@code offset}, into the
+   * backend starting at position {@code pos}.
+   *
+   * @throws VmException if any of the cells is outside of the backend.
+   */
+  void write(int pos, int[] source, int offset, int length) throws VmException;
+}
@@ -0,0 +1,22 @@
+package se.jsannemo.spooky.vm;
+
+/** How a {@link SpookyVm} accounts for the memory used by the program it runs. */
+public enum MemoryTracking {
+  /**
+   * Memory accesses are not tracked at all, so that they cost nothing. The memory used is reported
+   * as the size of the memory, which bounds every access since they are all checked.
+   */
+  OFF,
+  /**
+   * Memory accesses are not tracked, but the memory is sampled whenever the memory used is queried.
+   * The highest memory cell holding a non-zero value at any sample is reported as the memory used.
+   * This also costs nothing during execution, but underestimates the memory used by programs that
+   * read cells that were never written, or zero out cells after using them.
+   */
+  SAMPLED,
+  /**
+   * Every read and write of the main memory is tracked, both when interpreting and when running
+   * compiled code. This reports the exact memory used, at the cost of extra work on every access.
+   */
+  EXACT,
+}
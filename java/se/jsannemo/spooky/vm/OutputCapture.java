@@ -0,0 +1,33 @@
+package se.jsannemo.spooky.vm;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/** An {@link OutputSink} that keeps all output in memory, e.g. for tests. */
+public final class OutputCapture extends OutputSink {
+
+  private byte[] captured = new byte[64];
+  private int length;
+
+  @Override
+  protected void write(byte[] bytes, int offset, int length) {
+    if (this.length + length > captured.length) {
+      captured = Arrays.copyOf(captured, Math.max(2 * captured.length, this.length + length));
+    }
+    System.arraycopy(bytes, offset, captured, this.length, length);
+    this.length += length;
+  }
+
+  /** Returns all output written to the sink. */
+  public byte[] toByteArray() {
+    flush();
+    return Arrays.copyOf(captured, length);
+  }
+
+  /** Returns all output written to the sink, decoded as UTF-8. */
+  @Override
+  public String toString() {
+    flush();
+    return new String(captured, 0, length, StandardCharsets.UTF_8);
+  }
+}
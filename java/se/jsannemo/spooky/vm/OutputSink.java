@@ -0,0 +1,163 @@
+package se.jsannemo.spooky.vm;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * Where a {@link SpookyVm} writes the output of the program it runs.
+ *
+ * <p>Output is encoded as UTF-8 into a reusable buffer, which is only handed on to the destination
+ * of the sink when it fills up or the sink is flushed. Printing a character or an integer thus
+ * costs a few array writes, without locking or allocating. The VM flushes its sink whenever a run
+ * returns.
+ *
+ * <p>Sinks are not thread-safe, and must only be written to by one VM at a time. VMs forked from
+ * each other, which may run on different threads, therefore each get a sink of their own, {@link
+ * #fork() forked} from the sink of the original VM. Only handing on output to the destination is
+ * synchronized, so output of different VMs interleaves a buffer at a time.
+ */
+public abstract class OutputSink {
+
+  private static final int DEFAULT_CAPACITY = 8192;
+  /** The longest encoding of anything written at once: the decimal digits of an int and a sign. */
+  private static final int MAX_WRITE = 11;
+
+  private final byte[] buffer;
+  private int size;
+
+  protected OutputSink() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /** Creates a sink that buffers up to {@code capacity} bytes between flushes. */
+  protected OutputSink(int capacity) {
+    if (capacity < MAX_WRITE) {
+      throw new IllegalArgumentException("Sink capacity must be at least " + MAX_WRITE);
+    }
+    this.buffer = new byte[capacity];
+  }
+
+  /** Returns a sink writing to {@code out}, which is flushed with the sink. */
+  public static OutputSink of(PrintStream out) {
+    return new OutputSink() {
+      @Override
+      protected void write(byte[] bytes, int offset, int length) {
+        out.write(bytes, offset, length);
+        out.flush();
+      }
+    };
+  }
+
+  /**
+   * Writes {@code length} bytes of {@code bytes} starting at {@code offset} to the destination of
+   * the sink. The bytes must not be retained after returning.
+   */
+  protected abstract void write(byte[] bytes, int offset, int length);
+
+  /** Writes the UTF-8 encoding of {@code c}, or a question mark for unpaired surrogates. */
+  public final void writeChar(char c) {
+    reserve(3);
+    if (c < 0x80) {
+      buffer[size++] = (byte) c;
+    } else if (c < 0x800) {
+      buffer[size++] = (byte) (0xc0 | (c >> 6));
+      buffer[size++] = (byte) (0x80 | (c & 0x3f));
+    } else if (c >= 0xd800 && c <= 0xdfff) {
+      buffer[size++] = '?';
+    } else {
+      buffer[size++] = (byte) (0xe0 | (c >> 12));
+      buffer[size++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+      buffer[size++] = (byte) (0x80 | (c & 0x3f));
+    }
+  }
+
+  /** Writes {@code value} in decimal. */
+  public final void writeInt(int value) {
+    reserve(MAX_WRITE);
+    // Digits are produced from a non-positive value, since -Integer.MIN_VALUE overflows.
+    if (value < 0) {
+      buffer[size++] = '-';
+    } else {
+      value = -value;
+    }
+    int digits = 1;
+    for (int rest = value / 10; rest != 0; rest /= 10) {
+      digits++;
+    }
+    size += digits;
+    for (int pos = size - 1; pos >= size - digits; pos--) {
+      buffer[pos] = (byte) ('0' - value % 10);
+      value /= 10;
+    }
+  }
+
+  /** Writes {@code length} bytes of {@code bytes} starting at {@code offset}. */
+  public final void writeBytes(byte[] bytes, int offset, int length) {
+    if (length > buffer.length - size) {
+      flushBuffer();
+      if (length > buffer.length) {
+        writeThrough(bytes, offset, length);
+        return;
+      }
+    }
+    System.arraycopy(bytes, offset, buffer, size, length);
+    size += length;
+  }
+
+  /** Writes all buffered output to the destination of the sink. */
+  public void flush() {
+    flushBuffer();
+  }
+
+  private void flushBuffer() {
+    if (size > 0) {
+      int length = size;
+      size = 0;
+      writeThrough(buffer, 0, length);
+    }
+  }
+
+  /** Writes to the destination, which sinks forked from this one write to concurrently. */
+  private void writeThrough(byte[] bytes, int offset, int length) {
+    synchronized (this) {
+      write(bytes, offset, length);
+    }
+  }
+
+  /**
+   * Returns a sink with a buffer of its own, handing on its output to the destination of this
+   * sink. The new sink may be written to on a different thread than this one.
+   */
+  OutputSink fork() {
+    OutputSink parent = this;
+    return new OutputSink(buffer.length) {
+      @Override
+      protected void write(byte[] bytes, int offset, int length) {
+        parent.writeThrough(bytes, offset, length);
+      }
+    };
+  }
+
+  private void reserve(int bytes) {
+    if (size + bytes > buffer.length) {
+      flushBuffer();
+    }
+  }
+
+  /** Returns a print stream writing to this sink. */
+  PrintStream asPrintStream() {
+    return new PrintStream(
+        new OutputStream() {
+          @Override
+          public void write(int b) {
+            reserve(1);
+            buffer[size++] = (byte) b;
+          }
+
+          @Override
+          public void write(byte[] bytes, int offset, int length) {
+            writeBytes(bytes, offset, length);
+          }
+        });
+  }
+}
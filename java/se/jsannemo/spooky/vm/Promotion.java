@@ -0,0 +1,27 @@
+package se.jsannemo.spooky.vm;
+
+import com.google.auto.value.AutoValue;
+import jsinterop.annotations.JsType;
+
+/** The promotion of a function from the interpreter to compiled code in a {@link SpookyVm}. */
+@AutoValue
+@JsType
+public abstract class Promotion {
+  Promotion() {}
+
+  static Promotion create(int functionEntry, long instructionsExecuted, boolean compiled) {
+    return new AutoValue_Promotion(functionEntry, instructionsExecuted, compiled);
+  }
+
+  /** The index of the first instruction of the promoted function. */
+  public abstract int functionEntry();
+
+  /** The number of instructions the VM had executed when the function was promoted. */
+  public abstract long instructionsExecuted();
+
+  /**
+   * Whether the function was compiled. If the compiler could not handle the function, it remains
+   * interpreted.
+   */
+  public abstract boolean compiled();
+}
@@ -0,0 +1,20 @@
+package se.jsannemo.spooky.vm;
+
+/** The reason a call to {@link SpookyVm#run(long)} returned. */
+public enum RunStatus {
+  /** The program executed a halt instruction. */
+  HALTED,
+  /** The instruction budget of the run was spent before the program halted. */
+  BUDGET_EXHAUSTED,
+  /** The program caused a run-time fault, available from {@link SpookyVm#getFault()}. */
+  FAULTED,
+  /**
+   * The fuel of the VM, i.e. the total number of instructions it may execute, was spent. See
+   * {@link SpookyVm#addFuel(long)}.
+   */
+  OUT_OF_FUEL,
+  /** The wall-clock deadline of the VM passed. See {@link SpookyVm#setTimeLimit(long)}. */
+  DEADLINE_EXCEEDED,
+  /** An extern suspended the VM, which continues after it. See {@link SpookyVm#suspend()}. */
+  SUSPENDED,
+}
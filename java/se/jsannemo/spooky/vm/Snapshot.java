@@ -0,0 +1,126 @@
+package se.jsannemo.spooky.vm;
+
+import java.util.Arrays;
+import se.jsannemo.spooky.vm.code.Executable;
+
+/**
+ * The state of a {@link SpookyVm} at some point of its execution, as taken by {@link
+ * SpookyVm#snapshot()}: its memory, instruction pointer, call stack, counters and random source.
+ *
+ * <p>Snapshots are immutable. Their memory is stored in pages, and a page that has not changed
+ * since the last snapshot the VM took or was restored to is shared with that snapshot rather than
+ * copied. Keeping many snapshots of a program that only touches a few pages between them therefore
+ * costs memory in proportion to the pages touched.
+ */
+public final class Snapshot {
+
+  /** The number of memory cells per page. */
+  static final int PAGE_SIZE = 256;
+
+  private static final int[] ZERO_PAGE = new int[PAGE_SIZE];
+
+  final Executable executable;
+  /** Whether the code of the VM was optimized, which changes its instruction indices. */
+  final boolean optimized;
+  final int memoryCells;
+  /** The number of cells at the start of the memory that may be non-zero. */
+  final int used;
+  /**
+   * The pages of the allocated memory, the last of which may be shorter than a page. Pages past
+   * them hold only zeros.
+   */
+  private final int[][] pages;
+
+  final int ip;
+  /** The entries of the call stack, as returned by {@link CallStack#entries()}. */
+  final int[] calls;
+
+  final long instructionsExecuted;
+  final int maxMemoryUsed;
+  final VmException fault;
+  final long randomState;
+
+  Snapshot(
+      Executable executable,
+      boolean optimized,
+      int[] memory,
+      int memoryCells,
+      int used,
+      Snapshot base,
+      int ip,
+      int[] calls,
+      long instructionsExecuted,
+      int maxMemoryUsed,
+      VmException fault,
+      long randomState) {
+    this.executable = executable;
+    this.optimized = optimized;
+    this.memoryCells = memoryCells;
+    this.used = used;
+    this.pages = new int[(memory.length + PAGE_SIZE - 1) / PAGE_SIZE][];
+    for (int page = 0; page < pages.length; page++) {
+      int start = page * PAGE_SIZE;
+      int length = Math.min(PAGE_SIZE, memory.length - start);
+      if (start >= used) {
+        pages[page] = ZERO_PAGE;
+      } else if (base != null
+          && page < base.pages.length
+          && equal(memory, start, base.pages[page], length)) {
+        pages[page] = base.pages[page];
+      } else if (equal(memory, start, ZERO_PAGE, length)) {
+        pages[page] = ZERO_PAGE;
+      } else {
+        pages[page] = Arrays.copyOfRange(memory, start, start + length);
+      }
+    }
+    this.ip = ip;
+    this.calls = calls;
+    this.instructionsExecuted = instructionsExecuted;
+    this.maxMemoryUsed = maxMemoryUsed;
+    this.fault = fault;
+    this.randomState = randomState;
+  }
+
+  private static boolean equal(int[] memory, int start, int[] page, int length) {
+    for (int i = 0; i < length; i++) {
+      if (memory[start + i] != page[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Copies the snapshot into {@code memory}, in which only the first {@code used} cells may be
+   * non-zero. The memory must be at least as long as the cells used by the snapshot.
+   */
+  void restoreMemory(int[] memory, int used) {
+    int end = Math.max(used, this.used);
+    for (int page = 0; page * PAGE_SIZE < end; page++) {
+      int start = page * PAGE_SIZE;
+      int[] source = page < pages.length ? pages[page] : ZERO_PAGE;
+      System.arraycopy(source, 0, memory, start, Math.min(PAGE_SIZE, memory.length - start));
+    }
+  }
+
+  /** Returns the number of pages of memory that are shared with {@code other}. */
+  int sharedPages(Snapshot other) {
+    int shared = 0;
+    for (int page = 0; page < Math.min(pages.length, other.pages.length); page++) {
+      if (pages[page] == other.pages[page]) {
+        shared++;
+      }
+    }
+    return shared;
+  }
+
+  /** Returns the instruction pointer of the VM when the snapshot was taken. */
+  public int getInstructionPointer() {
+    return ip;
+  }
+
+  /** Returns the number of instructions the VM had executed when the snapshot was taken. */
+  public long getInstructionsExecuted() {
+    return instructionsExecuted;
+  }
+}
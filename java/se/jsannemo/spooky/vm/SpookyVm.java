@@ -1,31 +1,20 @@
 package se.jsannemo.spooky.vm;
 
-import static com.google.common.base.Preconditions.checkState;
-
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.LongSupplier;
 import jsinterop.annotations.JsMethod;
+import se.jsannemo.spooky.vm.code.ControlFlow;
+import se.jsannemo.spooky.vm.code.DecodedCode;
 import se.jsannemo.spooky.vm.code.Executable;
-import se.jsannemo.spooky.vm.code.Instructions;
-import se.jsannemo.spooky.vm.code.Instructions.Add;
 import se.jsannemo.spooky.vm.code.Instructions.Address;
-import se.jsannemo.spooky.vm.code.Instructions.BitAnd;
-import se.jsannemo.spooky.vm.code.Instructions.BitOr;
-import se.jsannemo.spooky.vm.code.Instructions.Const;
-import se.jsannemo.spooky.vm.code.Instructions.Div;
-import se.jsannemo.spooky.vm.code.Instructions.Equals;
-import se.jsannemo.spooky.vm.code.Instructions.Extern;
-import se.jsannemo.spooky.vm.code.Instructions.Halt;
-import se.jsannemo.spooky.vm.code.Instructions.Jump;
-import se.jsannemo.spooky.vm.code.Instructions.JumpAddress;
-import se.jsannemo.spooky.vm.code.Instructions.JumpN;
-import se.jsannemo.spooky.vm.code.Instructions.LessEquals;
-import se.jsannemo.spooky.vm.code.Instructions.LessThan;
-import se.jsannemo.spooky.vm.code.Instructions.Mod;
-import se.jsannemo.spooky.vm.code.Instructions.Move;
-import se.jsannemo.spooky.vm.code.Instructions.Mul;
-import se.jsannemo.spooky.vm.code.Instructions.NotEquals;
-import se.jsannemo.spooky.vm.code.Instructions.Sub;
+import se.jsannemo.spooky.vm.code.Peephole;
+import se.jsannemo.spooky.vm.code.Verifier;
 
 /**
  * A virtual machine, executing parsed Spooky code.
@@ -35,126 +24,1064 @@ import se.jsannemo.spooky.vm.code.Instructions.Sub;
  */
 public final class SpookyVm {
 
-  private final ImmutableMap<String, ExternCall> externs;
-  private final int[] memory;
+  /** The externs called by the executable, indexed by the immediate of extern instructions. */
+  private final ExternCall[] externs;
+  /**
+   * The allocated part of the main memory, which is shorter than {@link #memoryCells} if it is
+   * allocated lazily or kept in {@link #backend}. Cells past it are in the backend if there is
+   * one, and have otherwise never been written to and hold 0.
+   */
+  private int[] memory;
+  /** The backend holding the cells of the main memory past {@link #memory}, if any. */
+  private final MemoryBackend backend;
+  /** The number of cells of the main memory. */
+  private final int memoryCells;
+  /** The calls that have not yet returned, bounded in depth by the maximum call depth. */
+  private final CallStack calls;
   /** The executable that we are currently executing instructions in. */
   private final Executable curExecutable;
+  /** The decoded text segment of {@link #curExecutable}. */
+  private final int[] code;
+
+  /** The data segment of {@link #curExecutable}; index {@code i} holds address {@code -(i + 1)}. */
+  private final int[] data;
+  private final int textSize;
   /**
    * The value of the instruction pointer, with the index of the text instructions in the current
    * executable that should be executed.
    */
   private int ip;
 
-  private final PrintStream stdOut;
-  private int instructionsExecuted = 0;
+  private final OutputSink output;
+  /** A print stream writing to {@link #output}, created when first requested. */
+  private PrintStream stdOut;
+  private long instructionsExecuted = 0;
+  /** The number of executed instructions at which the fuel of the VM is spent. */
+  private long fuelLimit;
+  /** The fuel and time limit that the VM was built with, restored by {@link #reset()}. */
+  private final long initialFuel;
+  private final long initialTimeLimit;
+  /** The time in milliseconds, as given by {@link #clock}, after which execution stops. */
+  private long deadline = NO_DEADLINE;
+
+  private final LongSupplier clock;
+  /**
+   * The seed that the VM was built with, restored by {@link #reset()}, or {@code null} if it was
+   * built without one and gets a new seed on every reset.
+   */
+  private final Long initialRandomSeed;
+  /** The state of the random source, advanced by every call to {@link #nextRandom()}. */
+  private long randomState;
   private int maxMemoryUsed = -1;
+  /** The fault that stopped the last call to {@link #run(long)}, if any. */
+  private VmException fault;
+  /** Whether an extern has suspended the VM during the current instruction. */
+  private boolean suspended;
+  /** The last snapshot taken of or restored into the VM, which new snapshots share pages with. */
+  private Snapshot lastSnapshot;
+
+  /**
+   * The compiled code that execution can enter at every instruction, or {@code null} if the VM
+   * only interprets instructions.
+   */
+  private final CompiledCode[] compiled;
+
+  private final CodeCompiler compiler;
+  private final DecodedCode decoded;
+  /** Whether {@link #decoded} was optimized, so that its instruction indices differ. */
+  private final boolean optimized;
+  private final ExecutionState state;
+  /** The index of the function every instruction belongs to. */
+  private final int[] functionOf;
+  /** The index of the first instruction of every function. */
+  private final int[] functionEntries;
+  /** The hotness of every function, as defined by {@link #getHotness()}. */
+  private final long[] hotness;
+  /** The hotness at which functions are promoted to compiled code. */
+  private final long compileThreshold;
+
+  private final List<Promotion> promotions = new ArrayList<>();
+
+  private final MemoryTracking memoryTracking;
+  /** Whether every access to the main memory updates {@link #maxMemoryUsed}. */
+  private final boolean trackMemory;
+  /**
+   * Whether the code is verified by {@link Verifier} and fits the memory, so that the interpreter
+   * can skip checks that the verifier has done: of the instruction pointer after instructions
+   * other than address jumps, and of addresses with a constant base.
+   */
+  private final boolean unchecked;
+
+  private static final long NO_DEADLINE = Long.MAX_VALUE;
+  /** The source of the seeds of VMs built without an explicit seed. */
+  private static final Random SEEDS = new Random();
+  /** The number of cells copied at a time when clearing or scanning a memory backend. */
+  private static final int BACKEND_CHUNK = 4096;
+  /**
+   * The number of instructions executed between checks of the deadline. Reading the clock is much
+   * more expensive than executing an instruction, so it is only read between slices of this many
+   * instructions rather than in the dispatch loops.
+   */
+  private static final long DEADLINE_CHECK_INTERVAL = 1 << 16;
 
   private SpookyVm(
       Executable executable,
       ImmutableMap<String, ExternCall> externs,
       int memoryCells,
-      PrintStream stdOut) {
-    this.externs = externs;
+      OutputSink output,
+      CodeCompiler compiler,
+      long compileThreshold,
+      MemoryTracking memoryTracking,
+      MemoryAllocation memoryAllocation,
+      MemoryBackend backend,
+      int heapCells,
+      boolean optimize,
+      long fuel,
+      long timeLimit,
+      LongSupplier clock,
+      Long randomSeed,
+      int maxCallDepth) {
+    this.fuelLimit = fuel;
+    this.initialFuel = fuel;
+    this.initialTimeLimit = timeLimit;
+    this.clock = clock;
+    if (timeLimit != NO_DEADLINE) {
+      setTimeLimit(timeLimit);
+    }
+    this.initialRandomSeed = randomSeed;
+    this.randomState = randomSeed != null ? randomSeed : SEEDS.nextLong();
+    this.memoryTracking = memoryTracking;
+    this.trackMemory = memoryTracking == MemoryTracking.EXACT;
     this.curExecutable = executable;
+    DecodedCode decoded = DecodedCode.decode(executable, memoryCells);
+    if (optimize) {
+      decoded = Peephole.optimize(decoded, memoryCells);
+    }
+    // Optimized code is new code, and is verified again.
+    this.unchecked =
+        executable.verified()
+            && (!optimize || Verifier.verify(decoded).isEmpty())
+            && decoded.highestFixedCell() < memoryCells;
+    this.code = decoded.code();
+    this.data = decoded.data();
+    this.externs = link(decoded.externs(), externs);
+    this.textSize = decoded.size();
     this.ip = 0;
-    this.memory = new int[memoryCells];
-    this.stdOut = stdOut;
+    this.memoryCells = memoryCells;
+    this.backend = backend;
+    int allocated = memoryCells;
+    if (backend != null) {
+      if (backend.size() < memoryCells) {
+        throw new IllegalArgumentException(
+            "Memory backend of " + backend.size() + " cells is smaller than the memory");
+      }
+      allocated =
+          Math.max(initialAllocation(decoded, memoryCells), Math.min(heapCells, memoryCells));
+    } else if (memoryAllocation == MemoryAllocation.LAZY) {
+      allocated = initialAllocation(decoded, memoryCells);
+    }
+    this.memory = new int[allocated];
+    if (backend != null) {
+      // The memory starts out with the contents of the backend.
+      readBackend(0, memory, 0, allocated);
+    }
+    this.calls = new CallStack(maxCallDepth);
+    this.output = output;
+    this.state = new ExecutionState(this, memory, calls);
+    this.compiler = compiler;
+    this.decoded = decoded;
+    this.optimized = optimize;
+    this.compileThreshold = compileThreshold;
+    if (compiler == null) {
+      this.compiled = null;
+      this.functionOf = null;
+      this.functionEntries = null;
+      this.hotness = null;
+      return;
+    }
+    this.compiled = new CompiledCode[textSize];
+    this.functionOf = new int[textSize];
+    ImmutableList<Integer> entries =
+        ControlFlow.analyze(decoded).functionEntries();
+    this.functionEntries = new int[entries.size()];
+    this.hotness = new long[entries.size()];
+    for (int function = 0; function < entries.size(); function++) {
+      functionEntries[function] = entries.get(function);
+      for (int i = functionEntries[function]; i < functionEnd(function); i++) {
+        functionOf[i] = function;
+      }
+    }
+    if (compileThreshold == 0) {
+      for (int function = 0; function < functionEntries.length; function++) {
+        promote(function);
+      }
+    }
+  }
+
+  /**
+   * Creates a VM running the same code as {@code parent}, sharing its decoded and compiled code but
+   * with memory that is all zero.
+   */
+  private SpookyVm(SpookyVm parent) {
+    this.externs = parent.externs;
+    this.memoryCells = parent.memoryCells;
+    this.memory = new int[parent.memory.length];
+    // A backend belongs to a single VM, so the memory of the child is allocated on the heap.
+    this.backend = null;
+    this.calls = new CallStack(parent.calls.maxDepth());
+    this.curExecutable = parent.curExecutable;
+    this.code = parent.code;
+    this.data = parent.data;
+    this.textSize = parent.textSize;
+    this.output = parent.output.fork();
+    this.fuelLimit = parent.fuelLimit;
+    // The fuel left after restoring a snapshot is measured from the instructions executed so far.
+    this.instructionsExecuted = parent.instructionsExecuted;
+    this.initialFuel = parent.initialFuel;
+    this.initialTimeLimit = parent.initialTimeLimit;
+    this.deadline = parent.deadline;
+    this.clock = parent.clock;
+    this.initialRandomSeed = parent.initialRandomSeed;
+    this.compiled = parent.compiled == null ? null : parent.compiled.clone();
+    this.compiler = parent.compiler;
+    this.decoded = parent.decoded;
+    this.optimized = parent.optimized;
+    this.state = new ExecutionState(this, memory, calls);
+    this.functionOf = parent.functionOf;
+    this.functionEntries = parent.functionEntries;
+    this.hotness = parent.hotness == null ? null : parent.hotness.clone();
+    this.compileThreshold = parent.compileThreshold;
+    this.promotions.addAll(parent.promotions);
+    this.memoryTracking = parent.memoryTracking;
+    this.trackMemory = parent.trackMemory;
+    this.unchecked = parent.unchecked;
+  }
+
+  /**
+   * Returns the number of cells of memory to allocate initially with {@link
+   * MemoryAllocation#LAZY}: the first page, and all cells that {@code decoded} accesses at fixed
+   * positions so that compiled code can access them without checks, rounded up to whole pages.
+   */
+  private static int initialAllocation(DecodedCode decoded, int memoryCells) {
+    long cells = Math.max(Snapshot.PAGE_SIZE, decoded.highestFixedCell() + 1L);
+    return (int) Math.min(memoryCells, pageAligned(cells));
+  }
+
+  /** Returns {@code cells} rounded up to a whole number of pages. */
+  private static long pageAligned(long cells) {
+    return (cells + Snapshot.PAGE_SIZE - 1) / Snapshot.PAGE_SIZE * Snapshot.PAGE_SIZE;
+  }
+
+  /**
+   * Allocates the memory up to and including the cell {@code pos}, which must be in the main
+   * memory but past the allocated part of it.
+   */
+  private void allocate(int pos) {
+    long cells = Math.max(2L * memory.length, pageAligned(pos + 1L));
+    memory = Arrays.copyOf(memory, (int) Math.min(memoryCells, cells));
+    state.memory = memory;
+  }
+
+  /**
+   * Resolves the extern {@code names} called by the executable to their implementations in {@code
+   * externs}.
+   *
+   * @throws IllegalStateException if any of the externs is not available.
+   */
+  private static ExternCall[] link(
+      ImmutableList<String> names, ImmutableMap<String, ExternCall> externs) {
+    ExternCall[] calls = new ExternCall[names.size()];
+    List<String> missing = new ArrayList<>();
+    for (int i = 0; i < calls.length; i++) {
+      calls[i] = externs.get(names.get(i));
+      if (calls[i] == null) {
+        missing.add(names.get(i));
+      }
+    }
+    if (!missing.isEmpty()) {
+      throw new IllegalStateException("Executable calls non-existent externs " + missing);
+    }
+    return calls;
+  }
+
+  private int functionEnd(int function) {
+    return function + 1 < functionEntries.length ? functionEntries[function + 1] : textSize;
+  }
+
+  /**
+   * Counts a jump from the instruction {@code from} to {@code to} towards the hotness of the
+   * target function, if it enters the function or jumps backwards within it.
+   *
+   * <p>This is called for every jump made by the interpreter when the VM has a compiler, and once
+   * the jump makes a function cross the compile threshold it is promoted.
+   *
+   * @return whether execution can continue in compiled code at {@code to}.
+   */
+  private boolean countJump(int from, int to) {
+    if (to < 0 || to >= textSize) {
+      return false;
+    }
+    int function = functionOf[to];
+    if (to == functionEntries[function] || (to <= from && functionOf[from] == function)) {
+      if (++hotness[function] == compileThreshold) {
+        promote(function);
+      }
+    }
+    return compiled[to] != null;
+  }
+
+  /** Compiles the function with index {@code function}, which remains interpreted on failure. */
+  private void promote(int function) {
+    int entry = functionEntries[function];
+    int end = functionEnd(function);
+    CompiledCode code =
+        compiler.compile(curExecutable, decoded, entry, end, memory.length, trackMemory);
+    for (int i = entry; i < end; i++) {
+      compiled[i] = code;
+    }
+    promotions.add(Promotion.create(entry, instructionsExecuted, code != null));
   }
 
   /**
    * Executes the current instruction of the VM, advancing the instruction pointer afterwards.
    *
    * <p>If the instruction pointer points to an invalid instruction (i.e. one that is smaller or
-   * larger than the amount of instructions in the current executable), an error is thrown.
+   * larger than the amount of instructions in the current executable), an error is thrown. The
+   * fuel and deadline of the VM are not applied to single instructions.
    *
    * @return {@literal false} if and only if the program halted.
    * @throws VmException if the instruction caused a run-time fault in the VM.
    */
   public boolean executeInstruction() throws VmException {
-    // Halt VM in case if an out-of-bounds instruction.
-    if (ip < 0 || ip >= curExecutable.text().size()) {
-      throw new VmException("Instruction pointer out-of-bounds");
-    }
-    instructionsExecuted++;
-    Instructions.Instruction ins = curExecutable.text().get(ip++);
-    checkState(ins.isExecutable());
-    if (ins instanceof Instructions.Move) {
-      Move mov = (Move) ins;
-      setM(mov.target(), getM(mov.source()));
-    } else if (ins instanceof Const) {
-      Const cnst = (Const) ins;
-      setM(cnst.target(), cnst.value());
-    } else if (ins instanceof Add) {
-      Add add = (Add) ins;
-      setM(add.target(), getM(add.op1()) + getM(add.op2()));
-    } else if (ins instanceof Sub) {
-      Sub sub = (Sub) ins;
-      setM(sub.target(), getM(sub.op1()) - getM(sub.op2()));
-    } else if (ins instanceof Mul) {
-      Mul mul = (Mul) ins;
-      setM(mul.target(), getM(mul.op1()) * getM(mul.op2()));
-    } else if (ins instanceof Div) {
-      Div div = (Div) ins;
-      int denominator = getM(div.op2());
-      if (denominator == 0) {
-        throw new VmException("Division by zero");
-      }
-      setM(div.target(), getM(div.op1()) / denominator);
-    } else if (ins instanceof Mod) {
-      Mod mod = (Mod) ins;
-      int denominator = getM(mod.op2());
-      if (denominator == 0) {
-        throw new VmException("Division by zero");
-      }
-      setM(mod.target(), getM(mod.op1()) % denominator);
-    } else if (ins instanceof LessThan) {
-      LessThan lt = (LessThan) ins;
-      setM(lt.target(), getM(lt.op1()) < getM(lt.op2()) ? 1 : 0);
-    } else if (ins instanceof LessEquals) {
-      LessEquals leq = (LessEquals) ins;
-      setM(leq.target(), getM(leq.op1()) <= getM(leq.op2()) ? 1 : 0);
-    } else if (ins instanceof Equals) {
-      Equals eq = (Equals) ins;
-      setM(eq.target(), getM(eq.op1()) == getM(eq.op2()) ? 1 : 0);
-    } else if (ins instanceof NotEquals) {
-      NotEquals neq = (NotEquals) ins;
-      setM(neq.target(), getM(neq.op1()) != getM(neq.op2()) ? 1 : 0);
-    } else if (ins instanceof BitOr) {
-      BitOr or = (BitOr) ins;
-      setM(or.target(), getM(or.op1()) | getM(or.op2()));
-    } else if (ins instanceof BitAnd) {
-      BitAnd and = (BitAnd) ins;
-      setM(and.target(), getM(and.op1()) & getM(and.op2()));
-    } else if (ins instanceof Jump) {
-      Jump jmp = (Jump) ins;
-      if (getM(jmp.flag()) == 0) {
-        ip = jmp.addr();
-      }
-    } else if (ins instanceof JumpN) {
-      JumpN jmp = (JumpN) ins;
-      if (getM(jmp.flag()) != 0) {
-        ip = jmp.addr();
-      }
-    } else if (ins instanceof JumpAddress) {
-      JumpAddress jmp = (JumpAddress) ins;
-      ip = getM(jmp.addr());
-    } else if (ins instanceof Extern) {
-      Extern ext = (Extern) ins;
-      callExtern(ext.name());
-    } else if (ins instanceof Halt) {
-      return false;
+    suspended = false;
+    try {
+      return !execute(1);
+    } finally {
+      output.flush();
+    }
+  }
+
+  /**
+   * Executes at most {@code budget} instructions, stopping early if the program halts or faults,
+   * or if the fuel or the deadline of the VM runs out.
+   *
+   * <p>A run that exhausted its budget can be continued by calling this method again, as can a run
+   * that ran out of fuel or time after calling {@link #addFuel(long)} or {@link
+   * #setTimeLimit(long)}. If the program faults, the fault that stopped it is available from {@link
+   * #getFault()}.
+   */
+  public RunStatus run(long budget) {
+    try {
+      return executeLimited(budget);
+    } catch (VmException e) {
+      fault = e;
+      return RunStatus.FAULTED;
+    } finally {
+      output.flush();
+    }
+  }
+
+  /**
+   * Executes at most {@code budget} instructions within the fuel and deadline of the VM.
+   *
+   * <p>The fuel is enforced by lowering the instruction limit that execution checks anyway, while
+   * the deadline is only checked between slices of {@link #DEADLINE_CHECK_INTERVAL} instructions.
+   * Execution may therefore overrun the deadline by one slice, or by the time spent in an extern.
+   */
+  private RunStatus executeLimited(long budget) throws VmException {
+    long limit = limit(budget);
+    suspended = false;
+    while (true) {
+      if (instructionsExecuted >= fuelLimit) {
+        return RunStatus.OUT_OF_FUEL;
+      }
+      if (instructionsExecuted >= limit) {
+        return RunStatus.BUDGET_EXHAUSTED;
+      }
+      long sliceLimit = Math.min(limit, fuelLimit);
+      if (deadline != NO_DEADLINE) {
+        if (clock.getAsLong() >= deadline) {
+          return RunStatus.DEADLINE_EXCEEDED;
+        }
+        sliceLimit = Math.min(sliceLimit, instructionsExecuted + DEADLINE_CHECK_INTERVAL);
+      }
+      if (execute(sliceLimit - instructionsExecuted)) {
+        return RunStatus.HALTED;
+      }
+      if (suspended) {
+        suspended = false;
+        return RunStatus.SUSPENDED;
+      }
+    }
+  }
+
+  /**
+   * Suspends the VM once the extern instruction currently executing completes, so that the running
+   * call to {@link #run(long)} returns {@link RunStatus#SUSPENDED}.
+   *
+   * <p>This lets an extern that can not produce its result right away give control back to the
+   * caller of the VM, which should call {@link #run(long)} again once the result has been written
+   * to the memory of the VM. Calling it outside of an extern has no effect.
+   */
+  @JsMethod
+  public void suspend() {
+    suspended = true;
+  }
+
+  /**
+   * Adds {@code fuel} to the number of instructions the VM may execute, e.g. to resume a run that
+   * ran out of fuel.
+   */
+  public void addFuel(long fuel) {
+    if (fuel < 0) {
+      throw new IllegalArgumentException("Negative fuel " + fuel);
+    }
+    fuelLimit = fuel > Long.MAX_VALUE - fuelLimit ? Long.MAX_VALUE : fuelLimit + fuel;
+  }
+
+  /** Returns the number of instructions the VM may still execute. */
+  public long getRemainingFuel() {
+    return fuelLimit - instructionsExecuted;
+  }
+
+  /**
+   * Sets the deadline of the VM to {@code millis} milliseconds from now, replacing any earlier
+   * deadline, e.g. to resume a run that exceeded it.
+   */
+  public void setTimeLimit(long millis) {
+    if (millis < 0) {
+      throw new IllegalArgumentException("Negative time limit " + millis);
+    }
+    long now = clock.getAsLong();
+    deadline = millis >= NO_DEADLINE - now ? NO_DEADLINE : now + millis;
+  }
+
+  /**
+   * Reseeds the random source of the VM with {@code seed}, e.g. to make a {@link #fork() forked}
+   * VM draw different values than its parent. The seed given to {@link Builder#setRandomSeed(long)}
+   * is still the one restored by {@link #reset()}.
+   */
+  public void setRandomSeed(long seed) {
+    randomState = seed;
+  }
+
+  /**
+   * Returns the next value of the random source of the VM, as returned by the {@code random}
+   * extern.
+   *
+   * <p>The source is the SplitMix64 generator: every VM has its own, so that VMs running on
+   * different threads do not contend for it, and its whole state is a single long that snapshots
+   * capture.
+   */
+  public int nextRandom() {
+    long z = randomState += 0x9E3779B97F4A7C15L;
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return (int) ((z ^ (z >>> 31)) >>> 32);
+  }
+
+  /**
+   * Restores the VM to the state it was built in, so that it can run its executable again without
+   * allocating a new VM.
+   *
+   * <p>The main memory is cleared, the call stack emptied and the instruction pointer, counters,
+   * fault, fuel, deadline and random source are reset. The random source is reseeded with the seed
+   * set by {@link Builder#setRandomSeed(long)} if there is one, or with a new seed otherwise.
+   * Functions that have been promoted to compiled code stay compiled. With {@link
+   * MemoryTracking#EXACT} only the cells that were accessed are cleared; otherwise which cells were
+   * written is not known, and all of them are, including those in the memory backend.
+   */
+  @JsMethod
+  public void reset() {
+    Arrays.fill(memory, 0, usedCells(), 0);
+    if (backend != null) {
+      int[] zeros = new int[BACKEND_CHUNK];
+      for (int pos = memory.length; pos < backendEnd(); pos += BACKEND_CHUNK) {
+        writeBackend(pos, zeros, 0, Math.min(BACKEND_CHUNK, backendEnd() - pos));
+      }
+    }
+    calls.clear();
+    ip = 0;
+    instructionsExecuted = 0;
+    maxMemoryUsed = -1;
+    fault = null;
+    suspended = false;
+    fuelLimit = initialFuel;
+    randomState = initialRandomSeed != null ? initialRandomSeed : SEEDS.nextLong();
+    deadline = NO_DEADLINE;
+    if (initialTimeLimit != NO_DEADLINE) {
+      setTimeLimit(initialTimeLimit);
+    }
+  }
+
+  /**
+   * Returns a snapshot of the current state of the VM, which it can later be {@link
+   * #restore(Snapshot) restored} to.
+   *
+   * <p>Taking a snapshot compares the memory with the last snapshot taken or restored, and only
+   * copies the pages that differ. With {@link MemoryTracking#EXACT}, the cells above those accessed
+   * are not examined at all. Snapshots are kept on the heap, so the memory in a memory backend is
+   * copied out of it first.
+   */
+  @JsMethod
+  public Snapshot snapshot() {
+    int[] cells = memory;
+    int used = usedCells();
+    if (backend != null) {
+      used = backendEnd();
+      cells = Arrays.copyOf(memory, used);
+      if (used > memory.length) {
+        readBackend(memory.length, cells, memory.length, used - memory.length);
+      }
+    }
+    lastSnapshot =
+        new Snapshot(
+            curExecutable,
+            optimized,
+            cells,
+            memoryCells,
+            used,
+            lastSnapshot,
+            ip,
+            calls.entries(),
+            instructionsExecuted,
+            maxMemoryUsed,
+            fault,
+            randomState);
+    return lastSnapshot;
+  }
+
+  /**
+   * Restores the VM to the state it had when {@code snapshot} was taken of it, or of a VM it was
+   * forked from or that was forked from it.
+   *
+   * <p>The fuel and the deadline are limits on the VM rather than part of its state: the remaining
+   * fuel is the same after restoring as before. Functions that have been promoted to compiled code
+   * stay compiled.
+   *
+   * @throws IllegalArgumentException if the snapshot was taken of a VM with a different executable
+   *     or memory size, or whose code was not optimized the same way, since the instruction
+   *     pointer and return addresses of the snapshot then point to different code.
+   */
+  @JsMethod
+  public void restore(Snapshot snapshot) {
+    if (snapshot.executable != curExecutable
+        || snapshot.optimized != optimized
+        || snapshot.memoryCells != memoryCells) {
+      throw new IllegalArgumentException("Snapshot was taken of a different VM");
+    }
+    if (backend != null) {
+      int[] cells = new int[Math.max(memory.length, Math.max(snapshot.used, backendEnd()))];
+      snapshot.restoreMemory(cells, cells.length);
+      System.arraycopy(cells, 0, memory, 0, memory.length);
+      writeBackend(memory.length, cells, memory.length, cells.length - memory.length);
     } else {
-      throw new IllegalArgumentException("Invalid operation in VM: " + ins);
+      if (snapshot.used > memory.length) {
+        allocate(snapshot.used - 1);
+      }
+      snapshot.restoreMemory(memory, usedCells());
+    }
+    calls.restore(snapshot.calls);
+    long remainingFuel = getRemainingFuel();
+    ip = snapshot.ip;
+    instructionsExecuted = snapshot.instructionsExecuted;
+    fuelLimit =
+        remainingFuel > Long.MAX_VALUE - instructionsExecuted
+            ? Long.MAX_VALUE
+            : instructionsExecuted + remainingFuel;
+    maxMemoryUsed = snapshot.maxMemoryUsed;
+    fault = snapshot.fault;
+    randomState = snapshot.randomState;
+    suspended = false;
+    lastSnapshot = snapshot;
+  }
+
+  /**
+   * Returns a new VM in the same state as this one, which can continue executing independently of
+   * it. The new VM shares the code of this one, including functions promoted to compiled code, and
+   * the externs it was built with. Its output goes to the same destination, through a sink {@link
+   * OutputSink#fork() forked} from that of this VM so that the VMs can run on different threads.
+   *
+   * <p>Snapshots of the new VM share unchanged pages with snapshots of this VM.
+   */
+  @JsMethod
+  public SpookyVm fork() {
+    SpookyVm child = new SpookyVm(this);
+    child.restore(snapshot());
+    return child;
+  }
+
+  /** Returns the executable that the VM was built for. */
+  Executable executable() {
+    return curExecutable;
+  }
+
+  /**
+   * Returns the number of cells at the start of the allocated memory that may have been written
+   * to, which are all of them unless memory is tracked exactly.
+   */
+  private int usedCells() {
+    return trackMemory ? Math.min(maxMemoryUsed + 1, memory.length) : memory.length;
+  }
+
+  /**
+   * Returns the number of cells at the start of the main memory, including those in the memory
+   * backend, that may have been written to.
+   */
+  private int backendEnd() {
+    return trackMemory ? Math.min(maxMemoryUsed + 1, memoryCells) : memoryCells;
+  }
+
+  /**
+   * Copies {@code length} cells from position {@code pos} of the backend to {@code target},
+   * starting at index {@code offset}.
+   */
+  private void readBackend(int pos, int[] target, int offset, int length) {
+    try {
+      backend.read(pos, target, offset, length);
+    } catch (VmException e) {
+      // The backend is at least as large as the memory.
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Copies {@code length} cells from {@code source}, starting at index {@code offset}, to the
+   * backend at position {@code pos}.
+   */
+  private void writeBackend(int pos, int[] source, int offset, int length) {
+    try {
+      backend.write(pos, source, offset, length);
+    } catch (VmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /** Returns the number of cells in the main memory. */
+  public int getMemorySize() {
+    return memoryCells;
+  }
+
+  /** Returns whether the interpreter skips the checks done by {@link Verifier}. */
+  boolean isUnchecked() {
+    return unchecked;
+  }
+
+  /** Returns the number of cells of the main memory that have been allocated. */
+  int allocatedCells() {
+    return memory.length;
+  }
+
+  /** Executes instructions until the program halts or faults. */
+  @JsMethod
+  public RunStatus runUntilHalt() {
+    return run(Long.MAX_VALUE);
+  }
+
+  /**
+   * Returns the fault that stopped the last call to {@link #run(long)}, or {@code null} if no run
+   * has faulted.
+   */
+  @JsMethod
+  public VmException getFault() {
+    return fault;
+  }
+
+  /**
+   * Executes at most {@code budget} instructions, using compiled code where possible.
+   *
+   * @return {@literal true} if and only if the program halted.
+   */
+  private boolean execute(long budget) throws VmException {
+    if (compiled == null) {
+      return interpret(budget);
+    }
+    long limit = limit(budget);
+    while (instructionsExecuted < limit && !suspended) {
+      CompiledCode code = 0 <= ip && ip < textSize ? compiled[ip] : null;
+      if (code == null) {
+        // The interpreter returns early when it jumps to compiled code.
+        if (interpret(limit - instructionsExecuted)) {
+          return true;
+        }
+        continue;
+      }
+      long before = instructionsExecuted;
+      if (runCompiled(code, limit)) {
+        return true;
+      }
+      if (instructionsExecuted != before) {
+        // Compiled code does not count its jumps, so count the one leaving it.
+        countJump(-1, ip);
+        continue;
+      }
+      // The compiled code could not be entered here, or the remaining budget is too small for the
+      // next block of instructions.
+      if (interpret(1)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean runCompiled(CompiledCode code, long limit) throws VmException {
+    storeState(state);
+    state.limit = limit;
+    try {
+      return code.execute(state);
+    } finally {
+      loadState(state);
+    }
+  }
+
+  /** Copies the execution state of the VM into {@code state}. */
+  void storeState(ExecutionState state) {
+    state.ip = ip;
+    state.executed = instructionsExecuted;
+    state.maxMemoryUsed = maxMemoryUsed;
+  }
+
+  /** Updates the execution state of the VM from {@code state}. */
+  void loadState(ExecutionState state) {
+    ip = state.ip;
+    instructionsExecuted = state.executed;
+    maxMemoryUsed = state.maxMemoryUsed;
+  }
+
+  private long limit(long budget) {
+    return budget > Long.MAX_VALUE - instructionsExecuted
+        ? Long.MAX_VALUE
+        : instructionsExecuted + budget;
+  }
+
+  /**
+   * Interprets at most {@code budget} instructions.
+   *
+   * <p>The instruction pointer, the instruction counter and the stack pointer are kept in locals
+   * during execution. The instruction pointer and counter are only written back when returning or
+   * calling an extern, while the stack pointer is updated whenever memory cell 0 is written to and
+   * reloaded after calling an extern.
+   *
+   * <p>If the VM has a compiler, jumps are counted towards the hotness of functions, and the
+   * interpreter returns early after jumping to an instruction with compiled code.
+   *
+   * <p>If the code is {@link #unchecked}, the instruction pointer is only checked on entry and
+   * after address jumps, where it may leave the text segment, rather than before every instruction.
+   *
+   * @return {@literal true} if and only if the program halted.
+   */
+  private boolean interpret(long budget) throws VmException {
+    boolean tiered = compiled != null;
+    boolean checked = !unchecked;
+    int[] code = this.code;
+    int textSize = this.textSize;
+    int ip = this.ip;
+    int sp = stackPointer();
+    long executed = instructionsExecuted;
+    long limit = limit(budget);
+    if (!checked && (ip < 0 || ip >= textSize) && executed < limit) {
+      throw instructionOutOfBounds();
+    }
+    try {
+      while (executed < limit) {
+        // Halt VM in case if an out-of-bounds instruction.
+        if (checked && (ip < 0 || ip >= textSize)) {
+          throw instructionOutOfBounds();
+        }
+        executed++;
+        int pc = ip++ * DecodedCode.STRIDE;
+        // The result of the instruction, written to its target address after the switch.
+        // Instructions without a result continue the loop directly.
+        int value;
+        switch (code[pc]) {
+          case DecodedCode.MOV:
+            value = load(pc, DecodedCode.OP1_BASE, sp);
+            break;
+          case DecodedCode.CONST:
+            value = code[pc + DecodedCode.IMMEDIATE];
+            break;
+          case DecodedCode.ADD:
+            value = load(pc, DecodedCode.OP1_BASE, sp) + load(pc, DecodedCode.OP2_BASE, sp);
+            break;
+          case DecodedCode.SUB:
+            value = load(pc, DecodedCode.OP1_BASE, sp) - load(pc, DecodedCode.OP2_BASE, sp);
+            break;
+          case DecodedCode.MUL:
+            value = load(pc, DecodedCode.OP1_BASE, sp) * load(pc, DecodedCode.OP2_BASE, sp);
+            break;
+          case DecodedCode.DIV:
+            {
+              int denominator = load(pc, DecodedCode.OP2_BASE, sp);
+              if (denominator == 0) {
+                throw divisionByZero();
+              }
+              value = load(pc, DecodedCode.OP1_BASE, sp) / denominator;
+              break;
+            }
+          case DecodedCode.MOD:
+            {
+              int denominator = load(pc, DecodedCode.OP2_BASE, sp);
+              if (denominator == 0) {
+                throw divisionByZero();
+              }
+              value = load(pc, DecodedCode.OP1_BASE, sp) % denominator;
+              break;
+            }
+          case DecodedCode.LT:
+            value = load(pc, DecodedCode.OP1_BASE, sp) < load(pc, DecodedCode.OP2_BASE, sp) ? 1 : 0;
+            break;
+          case DecodedCode.LEQ:
+            value =
+                load(pc, DecodedCode.OP1_BASE, sp) <= load(pc, DecodedCode.OP2_BASE, sp) ? 1 : 0;
+            break;
+          case DecodedCode.EQ:
+            value =
+                load(pc, DecodedCode.OP1_BASE, sp) == load(pc, DecodedCode.OP2_BASE, sp) ? 1 : 0;
+            break;
+          case DecodedCode.NEQ:
+            value =
+                load(pc, DecodedCode.OP1_BASE, sp) != load(pc, DecodedCode.OP2_BASE, sp) ? 1 : 0;
+            break;
+          case DecodedCode.BITAND:
+            value = load(pc, DecodedCode.OP1_BASE, sp) & load(pc, DecodedCode.OP2_BASE, sp);
+            break;
+          case DecodedCode.BITOR:
+            value = load(pc, DecodedCode.OP1_BASE, sp) | load(pc, DecodedCode.OP2_BASE, sp);
+            break;
+          case DecodedCode.JMP:
+            if (load(pc, DecodedCode.OP1_BASE, sp) == 0) {
+              ip = code[pc + DecodedCode.IMMEDIATE];
+              if (tiered && countJump(pc / DecodedCode.STRIDE, ip)) {
+                return false;
+              }
+            }
+            continue;
+          case DecodedCode.JMPN:
+            if (load(pc, DecodedCode.OP1_BASE, sp) != 0) {
+              ip = code[pc + DecodedCode.IMMEDIATE];
+              if (tiered && countJump(pc / DecodedCode.STRIDE, ip)) {
+                return false;
+              }
+            }
+            continue;
+          case DecodedCode.JMPADR:
+            ip = decoded.relocate(load(pc, DecodedCode.OP1_BASE, sp));
+            if (tiered && countJump(pc / DecodedCode.STRIDE, ip)) {
+              return false;
+            }
+            // Fault where the check before the next instruction would.
+            if (!checked && (ip < 0 || ip >= textSize) && executed < limit) {
+              throw instructionOutOfBounds();
+            }
+            continue;
+          case DecodedCode.EXTERN:
+            this.ip = ip;
+            instructionsExecuted = executed;
+            if (callExtern(code[pc + DecodedCode.IMMEDIATE])) {
+              return false;
+            }
+            sp = stackPointer();
+            continue;
+          case DecodedCode.HALT:
+            return true;
+          case DecodedCode.CALL:
+            {
+              int frame = code[pc + DecodedCode.FRAME];
+              calls.push(ip, frame);
+              sp = moveStackPointer(sp, frame);
+              ip = code[pc + DecodedCode.IMMEDIATE];
+              if (tiered && countJump(pc / DecodedCode.STRIDE, ip)) {
+                return false;
+              }
+              continue;
+            }
+          case DecodedCode.RET:
+            sp = moveStackPointer(sp, -calls.frame());
+            ip = calls.pop();
+            if (tiered && countJump(pc / DecodedCode.STRIDE, ip)) {
+              return false;
+            }
+            continue;
+          case DecodedCode.ADDSP:
+            {
+              int constant = code[pc + DecodedCode.IMMEDIATE];
+              sp = adjustStackPointer(pc, sp, constant, constant);
+              continue;
+            }
+          case DecodedCode.SUBSP:
+            {
+              int constant = code[pc + DecodedCode.IMMEDIATE];
+              sp = adjustStackPointer(pc, sp, constant, -constant);
+              continue;
+            }
+          case DecodedCode.LTJMP:
+          case DecodedCode.LEQJMP:
+          case DecodedCode.EQJMP:
+          case DecodedCode.NEQJMP:
+            value = compare(pc, sp) ? 1 : 0;
+            sp = store(pc, value, sp);
+            if (value == 0) {
+              ip = code[pc + DecodedCode.IMMEDIATE];
+              if (tiered && countJump(pc / DecodedCode.STRIDE, ip)) {
+                return false;
+              }
+            }
+            continue;
+          case DecodedCode.EXTERNSP:
+            {
+              int frame = code[pc + DecodedCode.FRAME];
+              adjustStackPointer(pc, sp, frame, frame);
+              this.ip = ip;
+              instructionsExecuted = executed;
+              boolean suspend = callExtern(code[pc + DecodedCode.IMMEDIATE]);
+              sp = adjustStackPointer(pc, stackPointer(), frame, -frame);
+              if (suspend) {
+                return false;
+              }
+              continue;
+            }
+          default:
+            throw new IllegalArgumentException("Invalid operation in VM: " + code[pc]);
+        }
+        sp = store(pc, value, sp);
+      }
+      return false;
+    } finally {
+      this.ip = ip;
+      instructionsExecuted = executed;
+    }
+  }
+
+  /**
+   * Writes {@code value} to the target address of the instruction at {@code pc}, where {@code sp}
+   * is the current value of the stack pointer.
+   *
+   * @return the value of the stack pointer after the write.
+   */
+  private int store(int pc, int value, int sp) throws VmException {
+    if (unchecked && code[pc + DecodedCode.TARGET_BASE] == DecodedCode.ABSOLUTE) {
+      // Verified code only writes constant addresses in the allocated main memory.
+      int target = code[pc + DecodedCode.TARGET_OFFSET];
+      if (trackMemory && target > maxMemoryUsed) {
+        maxMemoryUsed = target;
+      }
+      memory[target] = value;
+      return target == CallingConvention.STACK_POINTER_STACK ? value : sp;
+    }
+    int target = address(pc, DecodedCode.TARGET_BASE, sp);
+    setM(target, value);
+    return target == CallingConvention.STACK_POINTER_STACK ? value : sp;
+  }
+
+  /**
+   * Evaluates the comparison of a fused compare-and-jump instruction at {@code pc}, where {@code
+   * sp} is the current value of the stack pointer.
+   */
+  private boolean compare(int pc, int sp) throws VmException {
+    int a = load(pc, DecodedCode.OP1_BASE, sp);
+    int b = load(pc, DecodedCode.OP2_BASE, sp);
+    switch (code[pc]) {
+      case DecodedCode.LTJMP:
+        return a < b;
+      case DecodedCode.LEQJMP:
+        return a <= b;
+      case DecodedCode.EQJMP:
+        return a == b;
+      default:
+        return a != b;
+    }
+  }
+
+  /**
+   * Executes a stack pointer adjustment of the superinstruction at {@code pc}, writing {@code
+   * value} to its target cell and adding {@code delta} to the stack pointer {@code sp}.
+   *
+   * @return the adjusted stack pointer.
+   */
+  private int adjustStackPointer(int pc, int sp, int value, int delta) throws VmException {
+    setM(code[pc + DecodedCode.TARGET_OFFSET], value);
+    setM(CallingConvention.STACK_POINTER_STACK, sp + delta);
+    return sp + delta;
+  }
+
+  /**
+   * Adds {@code delta} to the stack pointer {@code sp}, on entering or leaving the frame of a call.
+   *
+   * @return the moved stack pointer.
+   */
+  private int moveStackPointer(int sp, int delta) throws VmException {
+    setM(CallingConvention.STACK_POINTER_STACK, sp + delta);
+    return sp + delta;
+  }
+
+  /**
+   * Returns the value of the stack pointer, or 0 if the memory is too small to contain it. In the
+   * latter case, no addresses are decoded as {@link DecodedCode#SP_RELATIVE}.
+   */
+  private int stackPointer() {
+    return memory.length > CallingConvention.STACK_POINTER_STACK
+        ? memory[CallingConvention.STACK_POINTER_STACK]
+        : 0;
+  }
+
+  /**
+   * Reads the value of the address stored at slot {@code slot} of the instruction at {@code pc},
+   * where {@code sp} is the current value of the stack pointer.
+   */
+  private int load(int pc, int slot, int sp) throws VmException {
+    int mode = code[pc + slot];
+    if (mode == DecodedCode.CONSTANT) {
+      return code[pc + slot + 1];
     }
-    return true;
+    if (unchecked && mode == DecodedCode.ABSOLUTE) {
+      // Verified code only reads constant addresses in the data segment or allocated memory.
+      int pos = code[pc + slot + 1];
+      if (pos < 0) {
+        return data[-(pos + 1)];
+      }
+      if (trackMemory && pos > maxMemoryUsed) {
+        maxMemoryUsed = pos;
+      }
+      return memory[pos];
+    }
+    return getM(address(pc, slot, sp));
   }
 
-  private void callExtern(String extern) throws VmException {
-    ExternCall externCall = externs.get(extern);
-    if (externCall == null) {
-      throw new VmException("Attempted to call non-existent extern " + extern);
+  /**
+   * Resolves the address stored at slot {@code slot} of the instruction at {@code pc}, where
+   * {@code sp} is the current value of the stack pointer.
+   */
+  private int address(int pc, int slot, int sp) throws VmException {
+    int mode = code[pc + slot];
+    int offset = code[pc + slot + 1];
+    if (mode == DecodedCode.SP_RELATIVE) {
+      // The stack pointer is read from memory cell 0, even if the read is cached.
+      if (trackMemory && maxMemoryUsed < CallingConvention.STACK_POINTER_STACK) {
+        maxMemoryUsed = CallingConvention.STACK_POINTER_STACK;
+      }
+      return sp + offset;
+    }
+    if (mode == DecodedCode.ABSOLUTE) {
+      return offset;
     }
-    externCall.call(this);
+    if (mode == DecodedCode.INVALID_BASE) {
+      throw outOfBounds(offset);
+    }
+    return getM(mode) + offset;
+  }
+
+  /** Returns the instruction that a jump to the code address {@code address} continues at. */
+  int relocate(int address) {
+    return decoded.relocate(address);
+  }
+
+  /**
+   * Calls the extern with index {@code extern} in the decoded text segment, returning whether it
+   * suspended the VM.
+   */
+  boolean callExtern(int extern) throws VmException {
+    externs[extern].call(this);
+    return suspended;
   }
 
   /**
@@ -167,13 +1094,22 @@ public final class SpookyVm {
    */
   public int getM(int pos) throws VmException {
     if (0 <= pos && pos < memory.length) {
-      maxMemoryUsed = Math.max(pos, maxMemoryUsed);
+      if (trackMemory && pos > maxMemoryUsed) {
+        maxMemoryUsed = pos;
+      }
       return memory[pos];
     }
-    if (-this.curExecutable.data().size() <= pos && pos < 0) {
-      return this.curExecutable.data().get(-(pos + 1));
+    if (-data.length <= pos && pos < 0) {
+      return data[-(pos + 1)];
     }
-    throw new VmException("Memory position " + pos + " is out of bounds");
+    if (0 <= pos && pos < memoryCells) {
+      if (trackMemory && pos > maxMemoryUsed) {
+        maxMemoryUsed = pos;
+      }
+      // The cell is either in the backend, or has not been allocated and was never written.
+      return backend != null ? backend.getM(pos) : 0;
+    }
+    throw outOfBounds(pos);
   }
 
   public int getM(Address addr) throws VmException {
@@ -187,7 +1123,20 @@ public final class SpookyVm {
    */
   public void setM(int pos, int value) throws VmException {
     if (pos < 0 || pos >= memory.length) {
-      throw new VmException("Memory position " + pos + " is out of bounds");
+      if (pos < 0 || pos >= memoryCells) {
+        throw outOfBounds(pos);
+      }
+      if (backend != null) {
+        if (trackMemory && pos > maxMemoryUsed) {
+          maxMemoryUsed = pos;
+        }
+        backend.setM(pos, value);
+        return;
+      }
+      allocate(pos);
+    }
+    if (trackMemory && pos > maxMemoryUsed) {
+      maxMemoryUsed = pos;
     }
     memory[pos] = value;
   }
@@ -196,11 +1145,94 @@ public final class SpookyVm {
     setM(resolveAddress(addr), value);
   }
 
+  /**
+   * Copies the {@code length} cells of the main memory starting at position {@code pos} into
+   * {@code target}, starting at index {@code offset}.
+   *
+   * @throws VmException if any of the cells is outside of the main memory.
+   */
+  public void readMemory(int pos, int[] target, int offset, int length) throws VmException {
+    checkRange(pos, length);
+    int allocated = Math.max(0, Math.min(length, memory.length - pos));
+    if (allocated > 0) {
+      System.arraycopy(memory, pos, target, offset, allocated);
+    }
+    if (backend != null) {
+      backend.read(pos + allocated, target, offset + allocated, length - allocated);
+    } else {
+      Arrays.fill(target, offset + allocated, offset + length, 0);
+    }
+    trackRange(pos, length);
+  }
+
+  /**
+   * Copies {@code length} values from {@code source}, starting at index {@code offset}, into the
+   * main memory starting at position {@code pos}.
+   *
+   * @throws VmException if any of the cells is outside of the main memory.
+   */
+  public void writeMemory(int pos, int[] source, int offset, int length) throws VmException {
+    checkRange(pos, length);
+    if (backend == null && length > 0 && pos + length > memory.length) {
+      allocate(pos + length - 1);
+    }
+    int allocated = Math.max(0, Math.min(length, memory.length - pos));
+    if (allocated > 0) {
+      System.arraycopy(source, offset, memory, pos, allocated);
+    }
+    if (allocated < length) {
+      backend.write(pos + allocated, source, offset + allocated, length - allocated);
+    }
+    trackRange(pos, length);
+  }
+
+  private void checkRange(int pos, int length) throws VmException {
+    if (length < 0) {
+      throw new IllegalArgumentException("Negative length " + length);
+    }
+    if (pos < 0 || pos > memoryCells - length) {
+      throw outOfBounds(pos < 0 ? pos : memoryCells);
+    }
+  }
+
+  private void trackRange(int pos, int length) {
+    if (trackMemory && length > 0 && pos + length - 1 > maxMemoryUsed) {
+      maxMemoryUsed = pos + length - 1;
+    }
+  }
+
   private int resolveAddress(Address addr) throws VmException {
     return getM(addr.baseAddr()) + addr.offset();
   }
 
+  // Faults are constructed out-of-line to keep the bytecode of the hot paths small enough to be
+  // inlined into the dispatch loop.
+
+  private static VmException instructionOutOfBounds() {
+    return new VmException("Instruction pointer out-of-bounds");
+  }
+
+  private static VmException outOfBounds(int pos) {
+    return new VmException("Memory position " + pos + " is out of bounds");
+  }
+
+  static VmException divisionByZero() {
+    return new VmException("Division by zero");
+  }
+
+  /** Returns the sink that the program writes its output to. */
+  public OutputSink getOutput() {
+    return output;
+  }
+
+  /**
+   * Returns a print stream writing to the output of the VM, for externs that print through one.
+   * Writing to {@link #getOutput()} directly is faster.
+   */
   public PrintStream getStdOut() {
+    if (stdOut == null) {
+      stdOut = output.asPrintStream();
+    }
     return stdOut;
   }
 
@@ -210,28 +1242,124 @@ public final class SpookyVm {
     return new Builder(executable);
   }
 
+  /**
+   * Returns the index in the text segment of the executable of the next instruction to execute.
+   *
+   * <p>If the code was optimized, this is the index of the instruction that the next one was
+   * derived from.
+   */
+  @JsMethod
+  public int getInstructionPointer() {
+    return decoded.originalIndex(ip);
+  }
+
+  /**
+   * Returns the indices in the text segment of the executable that the calls being executed return
+   * to, innermost first.
+   */
+  public ImmutableList<Integer> getCallStack() {
+    ImmutableList.Builder<Integer> result = ImmutableList.builder();
+    for (int depth = calls.depth() - 1; depth >= 0; depth--) {
+      result.add(decoded.originalIndex(calls.returnAddress(depth)));
+    }
+    return result.build();
+  }
+
   /** Returns the number of instructions the VM has executed so far. */
   @JsMethod
-  public int getInstructionsExecuted() {
+  public long getInstructionsExecuted() {
     return instructionsExecuted;
   }
 
-  /** Returns the maximum stack/heap size used so far. */
+  /**
+   * Returns the hotness of every function, keyed by the index of its first instruction.
+   *
+   * <p>The hotness of a function is the number of times execution entered it, plus the number of
+   * times the interpreter jumped backwards within it. Jumps within compiled code are not counted.
+   * Functions are only profiled if the VM has a compiler.
+   */
+  public ImmutableMap<Integer, Long> getHotness() {
+    ImmutableMap.Builder<Integer, Long> result = ImmutableMap.builder();
+    if (compiled != null) {
+      for (int function = 0; function < functionEntries.length; function++) {
+        result.put(functionEntries[function], hotness[function]);
+      }
+    }
+    return result.build();
+  }
+
+  /** Returns the promotions of functions to compiled code, in the order they happened. */
+  public ImmutableList<Promotion> getPromotions() {
+    return ImmutableList.copyOf(promotions);
+  }
+
+  /**
+   * Returns the maximum stack/heap size used so far, as accounted for by the {@link
+   * MemoryTracking} mode of the VM.
+   *
+   * <p>This is exact only with {@link MemoryTracking#EXACT}. With {@link MemoryTracking#SAMPLED}
+   * it is a lower bound, since cells holding zero when sampled are not counted even if they were
+   * used, and with {@link MemoryTracking#OFF} it is the upper bound given by the memory size.
+   */
   @JsMethod
   public int getMaxMemoryUsed() {
+    if (memoryTracking == MemoryTracking.OFF) {
+      return memoryCells;
+    }
+    if (memoryTracking == MemoryTracking.SAMPLED) {
+      if (backend != null) {
+        sampleBackend();
+      }
+      // Only the cells above the previous samples need to be scanned.
+      for (int pos = memory.length - 1; pos > maxMemoryUsed; pos--) {
+        if (memory[pos] != 0) {
+          maxMemoryUsed = pos;
+        }
+      }
+    }
     return maxMemoryUsed + 1;
   }
 
+  /** Samples the cells in the memory backend, which are above those in {@link #memory}. */
+  private void sampleBackend() {
+    int[] chunk = new int[BACKEND_CHUNK];
+    int low = Math.max(memory.length, maxMemoryUsed + 1);
+    for (int end = memoryCells; end > low; end -= BACKEND_CHUNK) {
+      int start = Math.max(low, end - BACKEND_CHUNK);
+      readBackend(start, chunk, 0, end - start);
+      for (int i = end - start - 1; i >= 0; i--) {
+        if (chunk[i] != 0) {
+          maxMemoryUsed = start + i;
+          return;
+        }
+      }
+    }
+  }
+
   public static class Builder {
+    private static final long DEFAULT_COMPILE_THRESHOLD = 1000;
+    private static final int DEFAULT_MAX_CALL_DEPTH = 1 << 20;
+
     private final Executable executable;
     private final ImmutableMap.Builder<String, ExternCall> externBuilder = ImmutableMap.builder();
     private int memoryCells;
-    private PrintStream stdOut;
+    private OutputSink output;
+    private CodeCompiler compiler;
+    private long compileThreshold = DEFAULT_COMPILE_THRESHOLD;
+    private MemoryTracking memoryTracking = MemoryTracking.OFF;
+    private MemoryAllocation memoryAllocation = MemoryAllocation.EAGER;
+    private MemoryBackend memoryBackend;
+    private int heapCells;
+    private boolean optimize;
+    private long fuel = Long.MAX_VALUE;
+    private long timeLimit = NO_DEADLINE;
+    private LongSupplier clock = System::currentTimeMillis;
+    private Long randomSeed;
+    private int maxCallDepth = DEFAULT_MAX_CALL_DEPTH;
 
     private Builder(Executable executable) {
       this.executable = executable;
       memoryCells = 0;
-      stdOut = System.out;
     }
 
     /** Make available an external call named {@code name} invoking {@code callback} when called. */
@@ -257,13 +1385,165 @@ public final class SpookyVm {
       return this;
     }
 
+    /**
+     * Builds the VM, resolving the externs called by the executable.
+     *
+     * @throws IllegalStateException if the executable calls externs that have not been added.
+     */
     @JsMethod
     public SpookyVm build() {
-      return new SpookyVm(executable, externBuilder.build(), memoryCells, stdOut);
+      return new SpookyVm(
+          executable,
+          externBuilder.build(),
+          memoryCells,
+          output != null ? output : OutputSink.of(System.out),
+          compiler,
+          compileThreshold,
+          memoryTracking,
+          memoryAllocation,
+          memoryBackend,
+          heapCells,
+          optimize,
+          fuel,
+          timeLimit,
+          clock,
+          randomSeed,
+          maxCallDepth);
+    }
+
+    /**
+     * Compile hot functions of the executable with {@code compiler}, rather than interpreting
+     * them. Functions that the compiler can not handle are still interpreted.
+     */
+    public Builder setCodeCompiler(CodeCompiler compiler) {
+      this.compiler = compiler;
+      return this;
+    }
+
+    /**
+     * Set the number of entries and backward jumps after which an interpreted function is
+     * compiled. With a threshold of 0, all functions are compiled when the VM is built.
+     */
+    public Builder setCompileThreshold(long compileThreshold) {
+      if (compileThreshold < 0) {
+        throw new IllegalArgumentException("Negative compile threshold " + compileThreshold);
+      }
+      this.compileThreshold = compileThreshold;
+      return this;
+    }
+
+    /** Set how the memory used by the program is accounted for; by default it is not tracked. */
+    public Builder setMemoryTracking(MemoryTracking memoryTracking) {
+      this.memoryTracking = memoryTracking;
+      return this;
+    }
+
+    /**
+     * Set when the memory is allocated; by default all of it is allocated when the VM is built. The
+     * size set by {@link #setMemorySize(int)} is then the largest the memory may grow to.
+     */
+    public Builder setMemoryAllocation(MemoryAllocation memoryAllocation) {
+      this.memoryAllocation = memoryAllocation;
+      return this;
+    }
+
+    /**
+     * Keep the main memory in {@code backend}, e.g. off the Java heap, except for the first {@code
+     * heapCells} cells. Those hold the bottom of the stack, and are kept in an array on the heap
+     * like the memory of other VMs. The memory size is set to the size of the backend, and may be
+     * lowered with {@link #setMemorySize(int)}; the memory allocation is ignored.
+     *
+     * <p>The memory starts out with the contents of the backend, e.g. of a mapped file. The cells
+     * kept on the heap are only copied from it, so the backend holds the rest of the memory. Cells
+     * in the backend are accessed through the same slower path, both when interpreting and in
+     * compiled code, as memory that has not yet been allocated with {@link MemoryAllocation#LAZY}.
+     * The array on the heap always holds all cells that the program accesses at fixed positions.
+     *
+     * <p>Resetting the VM clears the backend. Snapshots are kept on the heap, and VMs forked from
+     * the VM keep all of their memory on the heap.
+     */
+    public Builder setMemoryBackend(MemoryBackend backend, int heapCells) {
+      if (heapCells < 0) {
+        throw new IllegalArgumentException("Negative heap cells " + heapCells);
+      }
+      this.memoryBackend = backend;
+      this.heapCells = heapCells;
+      this.memoryCells = backend.size();
+      return this;
     }
 
+    /**
+     * Optimize the code of the executable with {@link Peephole} before running it. The optimized
+     * code executes fewer instructions, so instruction counts and budgets refer to the optimized
+     * instructions rather than those of the executable.
+     */
+    public Builder setPeepholeOptimization(boolean optimize) {
+      this.optimize = optimize;
+      return this;
+    }
+
+    /**
+     * Limit the total number of instructions the VM may execute to {@code fuel}; by default it is
+     * unlimited. Runs stop with {@link RunStatus#OUT_OF_FUEL} once it is spent.
+     */
+    public Builder setFuel(long fuel) {
+      if (fuel < 0) {
+        throw new IllegalArgumentException("Negative fuel " + fuel);
+      }
+      this.fuel = fuel;
+      return this;
+    }
+
+    /**
+     * Stop runs with {@link RunStatus#DEADLINE_EXCEEDED} once {@code millis} milliseconds have
+     * passed since the VM was built; by default there is no deadline.
+     */
+    public Builder setTimeLimit(long millis) {
+      if (millis < 0) {
+        throw new IllegalArgumentException("Negative time limit " + millis);
+      }
+      this.timeLimit = millis;
+      return this;
+    }
+
+    /**
+     * Seed the random source of the VM with {@code seed}, so that the values returned by the
+     * {@code random} extern are the same on every run, including runs after {@link
+     * SpookyVm#reset()}. By default, every VM gets a different seed, and a new one whenever it is
+     * reset.
+     */
+    public Builder setRandomSeed(long seed) {
+      this.randomSeed = seed;
+      return this;
+    }
+
+    /**
+     * Limit the number of calls that may be executing at the same time to {@code maxCallDepth};
+     * by default it is 2<sup>20</sup>. Calls past it fault, so that runaway recursion does not
+     * exhaust the memory of the host even if it uses no memory of the VM.
+     */
+    public Builder setMaxCallDepth(int maxCallDepth) {
+      if (maxCallDepth < 0) {
+        throw new IllegalArgumentException("Negative max call depth " + maxCallDepth);
+      }
+      this.maxCallDepth = maxCallDepth;
+      return this;
+    }
+
+    /** Set the clock that the deadline is measured with, in milliseconds. */
+    Builder setClock(LongSupplier clock) {
+      this.clock = clock;
+      return this;
+    }
+
+    /** Write the output of the program to {@code writer}. Defaults to {@link System#out}. */
     public Builder setStdOut(PrintStream writer) {
-      this.stdOut = writer;
+      return setOutput(OutputSink.of(writer));
+    }
+
+    /** Write the output of the program to {@code output}. */
+    public Builder setOutput(OutputSink output) {
+      this.output = output;
       return this;
     }
   }
@@ -0,0 +1,95 @@
+package se.jsannemo.spooky.vm;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+import se.jsannemo.spooky.vm.code.Executable;
+
+/**
+ * A pool of {@link SpookyVm}s, for running the same executables many times without building a new
+ * VM for every run.
+ *
+ * <p>Building a VM decodes its executable, links its externs and allocates its memory, which
+ * dominates the cost of short runs. VMs that are released to the pool are instead {@link
+ * SpookyVm#reset() reset} and handed out again, keeping any code they have compiled. VMs are pooled
+ * by the identity of their executable and the size of their memory.
+ *
+ * <p>The pool can be shared between threads, but every VM must only be used by the thread that
+ * acquired it until it is released.
+ */
+public final class SpookyVmPool {
+
+  private final Consumer<SpookyVm.Builder> configuration;
+  private final Map<Key, ArrayDeque<SpookyVm>> idle = new HashMap<>();
+
+  /**
+   * Creates a pool whose VMs are built with the options set by {@code configuration}, such as
+   * externs and standard output. The memory size is set by the pool.
+   */
+  public SpookyVmPool(Consumer<SpookyVm.Builder> configuration) {
+    this.configuration = configuration;
+  }
+
+  /**
+   * Returns a VM for {@code executable} with {@code memoryCells} cells of memory, in the state it
+   * was built in. The VM should be given back with {@link #release(SpookyVm)} once done.
+   *
+   * @throws IllegalStateException if a new VM must be built but the executable can not be linked.
+   */
+  public SpookyVm acquire(Executable executable, int memoryCells) {
+    SpookyVm vm;
+    synchronized (this) {
+      ArrayDeque<SpookyVm> vms = idle.get(new Key(executable, memoryCells));
+      vm = vms == null ? null : vms.pollFirst();
+    }
+    if (vm == null) {
+      SpookyVm.Builder builder = SpookyVm.newBuilder(executable);
+      configuration.accept(builder);
+      return builder.setMemorySize(memoryCells).build();
+    }
+    vm.reset();
+    return vm;
+  }
+
+  /** Returns {@code vm}, which was acquired from this pool and is no longer used, to the pool. */
+  public void release(SpookyVm vm) {
+    Key key = new Key(vm.executable(), vm.getMemorySize());
+    synchronized (this) {
+      idle.computeIfAbsent(key, k -> new ArrayDeque<>()).addFirst(vm);
+    }
+  }
+
+  /** Returns the number of VMs in the pool that are not acquired. */
+  public synchronized int idleCount() {
+    int count = 0;
+    for (ArrayDeque<SpookyVm> vms : idle.values()) {
+      count += vms.size();
+    }
+    return count;
+  }
+
+  private static final class Key {
+    private final Executable executable;
+    private final int memoryCells;
+
+    Key(Executable executable, int memoryCells) {
+      this.executable = executable;
+      this.memoryCells = memoryCells;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return executable == other.executable && memoryCells == other.memoryCells;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * System.identityHashCode(executable) + memoryCells;
+    }
+  }
+}
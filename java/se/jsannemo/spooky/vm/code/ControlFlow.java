@@ -0,0 +1,107 @@
+package se.jsannemo.spooky.vm.code;
+
+import com.google.common.collect.ImmutableList;
+import java.util.Arrays;
+import java.util.TreeSet;
+
+/**
+ * Static control flow facts about {@link DecodedCode}: where basic blocks start and which
+ * instructions are entry points of functions.
+ *
+ * <p>Functions are not explicit in the instruction set, but are entered by calls. A call is either
+ * a call instruction, or an unconditional jump where the index of the instruction following the
+ * jump is stored by some constant instruction, to be used as the return address. The targets of
+ * calls, together with the first instruction, are considered function entries, and a function
+ * extends until the next entry.
+ */
+public final class ControlFlow {
+
+  private final boolean[] blockStarts;
+  private final boolean[] storedAddresses;
+  private final ImmutableList<Integer> functionEntries;
+
+  private ControlFlow(
+      boolean[] blockStarts, boolean[] storedAddresses, ImmutableList<Integer> functionEntries) {
+    this.blockStarts = blockStarts;
+    this.storedAddresses = storedAddresses;
+    this.functionEntries = functionEntries;
+  }
+
+  /**
+   * Returns whether the instruction at {@code ip} starts a basic block, i.e. whether it is the
+   * first instruction, the target of a jump or follows a jump, call, return or halt.
+   */
+  public boolean isBlockStart(int ip) {
+    return blockStarts[ip];
+  }
+
+  /**
+   * Returns whether the index {@code ip} is stored by some constant instruction, in which case it
+   * may be the target of an address jump.
+   */
+  public boolean isStoredAddress(int ip) {
+    return storedAddresses[ip];
+  }
+
+  /** Returns the indices of all function entries, in increasing order. */
+  public ImmutableList<Integer> functionEntries() {
+    return functionEntries;
+  }
+
+  /** Analyzes {@code code}. */
+  public static ControlFlow analyze(DecodedCode code) {
+    int[] ins = code.code();
+    int[] data = code.data();
+    int size = code.size();
+    boolean[] blockStarts = new boolean[size];
+    boolean[] storedAddress = new boolean[size + 1];
+    for (int ip = 0; ip < size; ip++) {
+      int pc = ip * DecodedCode.STRIDE;
+      if (ins[pc] == DecodedCode.CONST) {
+        int value = code.relocate(ins[pc + DecodedCode.IMMEDIATE]);
+        if (0 <= value && value <= size) {
+          storedAddress[value] = true;
+        }
+      }
+    }
+    TreeSet<Integer> functionEntries = new TreeSet<>();
+    if (size > 0) {
+      blockStarts[0] = true;
+      functionEntries.add(0);
+    }
+    for (int ip = 0; ip < size; ip++) {
+      int pc = ip * DecodedCode.STRIDE;
+      int op = ins[pc];
+      if (DecodedCode.isJump(op)) {
+        int target = ins[pc + DecodedCode.IMMEDIATE];
+        if (0 <= target && target < size) {
+          blockStarts[target] = true;
+          if (op == DecodedCode.CALL
+              || (isUnconditional(ins, pc, data) && storedAddress[ip + 1])) {
+            functionEntries.add(target);
+          }
+        }
+      }
+      if (DecodedCode.isJump(op)
+          || op == DecodedCode.JMPADR
+          || op == DecodedCode.RET
+          || op == DecodedCode.HALT) {
+        if (ip + 1 < size) {
+          blockStarts[ip + 1] = true;
+        }
+      }
+    }
+    return new ControlFlow(
+        blockStarts, Arrays.copyOf(storedAddress, size), ImmutableList.copyOf(functionEntries));
+  }
+
+  /** Returns whether the instruction at position {@code pc} is a jump that is always taken. */
+  private static boolean isUnconditional(int[] ins, int pc, int[] data) {
+    int op = ins[pc];
+    if (op != DecodedCode.JMP && op != DecodedCode.JMPN) {
+      return false;
+    }
+    Integer flag = DecodedCode.constantValue(ins, pc + DecodedCode.OP1_BASE, data);
+    return flag != null && (op == DecodedCode.JMP ? flag == 0 : flag != 0);
+  }
+}
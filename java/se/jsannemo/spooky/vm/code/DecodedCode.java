@@ -0,0 +1,428 @@
+package se.jsannemo.spooky.vm.code;
+
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayList;
+import java.util.List;
+import se.jsannemo.spooky.vm.code.Instructions.Address;
+
+/**
+ * The text segment of an {@link Executable}, decoded into a flat array of ints.
+ *
+ * <p>Every instruction occupies {@link #STRIDE} consecutive ints of {@link #code()}, so that the
+ * instruction with index {@code ip} starts at position {@code ip * STRIDE}. The first int of an
+ * instruction is its opcode, and the remaining slots hold its operands. Addresses are stored as a
+ * pair of ints in the {@code *_BASE} and {@code *_OFFSET} slots, while integer operands such as
+ * constants, jump targets and extern indices are stored in the {@link #IMMEDIATE} slot.
+ *
+ * <p>Addresses are decoded into one of a few addressing modes, depending on their base, which is
+ * stored in the {@code *_BASE} slot:
+ *
+ * <ul>
+ *   <li>{@link #ABSOLUTE}, if the base is a constant from the data segment. The {@code *_OFFSET}
+ *       slot then holds the resolved address.
+ *   <li>{@link #SP_RELATIVE}, if the base is the stack pointer in memory cell 0. The {@code
+ *       *_OFFSET} slot holds the offset from the stack pointer.
+ *   <li>{@link #INVALID_BASE}, if the base is a position before the data segment, which always
+ *       faults when read. The {@code *_OFFSET} slot holds that position.
+ *   <li>{@link #CONSTANT}, for the immediate operands of instructions such as {@link
+ *       Instructions.AddImmediate}, which are not addresses at all. The {@code *_OFFSET} slot holds
+ *       the value of the operand. Immediate instructions are decoded into the opcodes of their
+ *       regular counterparts, with this mode for the immediate operand.
+ *   <li>Otherwise, the {@code *_BASE} slot holds the memory cell containing the base, to which the
+ *       {@code *_OFFSET} slot is added.
+ * </ul>
+ *
+ * <p>Decoded code may be rewritten by {@link Peephole}, in which case the instructions no longer
+ * correspond one-to-one to those of the text segment, and may include superinstructions fused from
+ * several of them. Code addresses stored in memory by the program still refer to the text segment
+ * and are translated with {@link #relocate(int)} when jumped to, while {@link #originalIndex(int)}
+ * maps instructions back to the text segment.
+ */
+public final class DecodedCode {
+
+  /** The number of ints used for every instruction. */
+  public static final int STRIDE = 8;
+
+  // Slot of the opcode.
+  public static final int OPCODE = 0;
+  // Slots of the first operand address; the source of moves and the flag of jumps.
+  public static final int OP1_BASE = 1;
+  public static final int OP1_OFFSET = 2;
+  // Slots of the second operand address.
+  public static final int OP2_BASE = 3;
+  public static final int OP2_OFFSET = 4;
+  // Slots of the address the result of an instruction is written to.
+  public static final int TARGET_BASE = 5;
+  public static final int TARGET_OFFSET = 6;
+  // Slot of the integer operand of an instruction.
+  public static final int IMMEDIATE = 7;
+  // Slot of the frame size of CALL and EXTERNSP, which have no operand addresses.
+  public static final int FRAME = OP1_OFFSET;
+
+  // Addressing modes stored in the *_BASE slots of addresses.
+  public static final int ABSOLUTE = -1;
+  public static final int SP_RELATIVE = -2;
+  public static final int INVALID_BASE = -3;
+  // Only used for operands that are read, never for targets.
+  public static final int CONSTANT = -4;
+
+  // Opcodes of decoded instructions. These are kept dense and starting from 0, so that a switch
+  // over them compiles to a table lookup rather than a chain of comparisons. Note that they differ
+  // from the serialized opcodes.
+  public static final int MOV = 0;
+  public static final int CONST = 1;
+  public static final int ADD = 2;
+  public static final int SUB = 3;
+  public static final int MUL = 4;
+  public static final int DIV = 5;
+  public static final int MOD = 6;
+  public static final int LT = 7;
+  public static final int LEQ = 8;
+  public static final int EQ = 9;
+  public static final int NEQ = 10;
+  public static final int BITAND = 11;
+  public static final int BITOR = 12;
+  public static final int JMP = 13;
+  public static final int JMPN = 14;
+  public static final int JMPADR = 15;
+  public static final int EXTERN = 16;
+  public static final int HALT = 17;
+  // A call of the function in the IMMEDIATE slot, with a frame of the size in the FRAME slot.
+  public static final int CALL = 18;
+  public static final int RET = 19;
+  // Superinstructions, which are never decoded from an executable but fused by Peephole. See
+  // Superinstructions for their exact semantics.
+  //
+  // A constant written to the TARGET cell followed by adding it to or subtracting it from the
+  // stack pointer. The constant is held in the IMMEDIATE slot.
+  public static final int ADDSP = 20;
+  public static final int SUBSP = 21;
+  // A comparison followed by a JMP on its result, i.e. a jump taken if the comparison is false.
+  public static final int LTJMP = 22;
+  public static final int LEQJMP = 23;
+  public static final int EQJMP = 24;
+  public static final int NEQJMP = 25;
+  // An extern call with the frame of its arguments: an ADDSP of the FRAME slot, the extern in the
+  // IMMEDIATE slot and a SUBSP of the FRAME slot.
+  public static final int EXTERNSP = 26;
+  // The number of decoded opcodes.
+  public static final int OPCODES = 27;
+
+  private final int[] code;
+  private final int[] data;
+  private final ImmutableList<String> externs;
+  // The index in the text segment of every instruction, or null if they are the same.
+  private final int[] originalIndex;
+  // The instruction that every index of the text segment, and the index one past its end, is
+  // relocated to, or null if they are the same.
+  private final int[] relocation;
+
+  DecodedCode(
+      int[] code,
+      int[] data,
+      ImmutableList<String> externs,
+      int[] originalIndex,
+      int[] relocation) {
+    this.code = code;
+    this.data = data;
+    this.externs = externs;
+    this.originalIndex = originalIndex;
+    this.relocation = relocation;
+  }
+
+  /**
+   * Returns the decoded instructions.
+   *
+   * <p>The array is shared and must not be modified.
+   */
+  public int[] code() {
+    return code;
+  }
+
+  /**
+   * Returns the data segment of the executable, where index {@code i} holds the value of address
+   * {@code -(i + 1)}.
+   *
+   * <p>The array is shared and must not be modified.
+   */
+  public int[] data() {
+    return data;
+  }
+
+  /** Returns the number of decoded instructions. */
+  public int size() {
+    return code.length / STRIDE;
+  }
+
+  /** Returns the names of the externs called, indexed by the immediate of extern instructions. */
+  public ImmutableList<String> externs() {
+    return externs;
+  }
+
+  /**
+   * Returns the highest memory cell that instructions access at a fixed position, i.e. the largest
+   * absolute address and cell holding the base of an address, or -1 if there is none. Cells
+   * accessed relative to the stack pointer or some other base are not included, but the cells
+   * holding those bases are.
+   */
+  public int highestFixedCell() {
+    int highest = -1;
+    for (int pc = 0; pc < code.length; pc += STRIDE) {
+      for (int slot = OP1_BASE; slot <= TARGET_BASE; slot += 2) {
+        int mode = code[pc + slot];
+        if (mode == ABSOLUTE) {
+          highest = Math.max(highest, code[pc + slot + 1]);
+        } else if (mode >= 0 || mode == SP_RELATIVE) {
+          highest = Math.max(highest, mode == SP_RELATIVE ? 0 : mode);
+        }
+      }
+    }
+    return highest;
+  }
+
+  /** Returns whether the instructions have been rewritten, so code addresses need relocation. */
+  public boolean isRelocated() {
+    return relocation != null;
+  }
+
+  /**
+   * Returns the index of the instruction that execution continues at after a jump to the index
+   * {@code address} of the text segment. Indices outside of the text segment stay outside of the
+   * decoded instructions.
+   */
+  public int relocate(int address) {
+    if (relocation == null || address < 0) {
+      return address;
+    }
+    int textSize = relocation.length - 1;
+    return address <= textSize ? relocation[address] : address - textSize + size();
+  }
+
+  /**
+   * Returns the index in the text segment of the instruction with index {@code ip}, for reporting.
+   * Instructions that were combined from several ones report the first of them.
+   */
+  public int originalIndex(int ip) {
+    if (originalIndex == null || ip < 0) {
+      return ip;
+    }
+    return ip < size() ? originalIndex[ip] : ip - size() + relocation.length - 1;
+  }
+
+  /**
+   * Returns whether {@code op} is the opcode of a jump or call to the instruction in its {@link
+   * #IMMEDIATE} slot, possibly conditional.
+   */
+  public static boolean isJump(int op) {
+    return op == JMP || op == JMPN || op == CALL || (LTJMP <= op && op <= NEQJMP);
+  }
+
+  /**
+   * Decodes the text segment of {@code executable}, to be run with {@code memoryCells} cells of
+   * memory.
+   *
+   * <p>Addresses are only decoded as {@link #SP_RELATIVE} if the memory is large enough to contain
+   * the stack pointer.
+   */
+  public static DecodedCode decode(Executable executable, int memoryCells) {
+    ImmutableList<Instructions.Instruction> text = executable.text();
+    int[] code = new int[text.size() * STRIDE];
+    int[] data = executable.data().toArray();
+    List<String> externs = new ArrayList<>();
+    Decoder decoder = new Decoder(data, memoryCells > 0, code, externs);
+    for (int i = 0; i < text.size(); i++) {
+      decoder.decodeInstruction(text.get(i), i * STRIDE);
+    }
+    return new DecodedCode(code, data, ImmutableList.copyOf(externs), null, null);
+  }
+
+  /**
+   * Returns the value of the address stored at position {@code pos} of {@code code} if it can be
+   * determined statically, i.e. if it is a {@link #CONSTANT} or an absolute address into the data
+   * segment {@code data}, or {@code null} otherwise.
+   */
+  public static Integer constantValue(int[] code, int pos, int[] data) {
+    if (code[pos] == CONSTANT) {
+      return code[pos + 1];
+    }
+    if (code[pos] != ABSOLUTE) {
+      return null;
+    }
+    int addr = code[pos + 1];
+    if (-data.length <= addr && addr < 0) {
+      return data[-(addr + 1)];
+    }
+    return null;
+  }
+
+  private static final class Decoder {
+    private final int[] data;
+    private final boolean stackPointer;
+    private final int[] code;
+    private final List<String> externs;
+
+    Decoder(int[] data, boolean stackPointer, int[] code, List<String> externs) {
+      this.data = data;
+      this.stackPointer = stackPointer;
+      this.code = code;
+      this.externs = externs;
+    }
+
+    private void decodeInstruction(Instructions.Instruction ins, int pc) {
+      if (ins instanceof Instructions.Move) {
+        Instructions.Move mov = (Instructions.Move) ins;
+        code[pc] = MOV;
+        putAddress(pc + OP1_BASE, mov.source());
+        putAddress(pc + TARGET_BASE, mov.target());
+      } else if (ins instanceof Instructions.Const) {
+        Instructions.Const cnst = (Instructions.Const) ins;
+        code[pc] = CONST;
+        code[pc + IMMEDIATE] = cnst.value();
+        putAddress(pc + TARGET_BASE, cnst.target());
+      } else if (ins instanceof Instructions.Add) {
+        Instructions.Add add = (Instructions.Add) ins;
+        putBinary(pc, ADD, add.op1(), add.op2(), add.target());
+      } else if (ins instanceof Instructions.Sub) {
+        Instructions.Sub sub = (Instructions.Sub) ins;
+        putBinary(pc, SUB, sub.op1(), sub.op2(), sub.target());
+      } else if (ins instanceof Instructions.Mul) {
+        Instructions.Mul mul = (Instructions.Mul) ins;
+        putBinary(pc, MUL, mul.op1(), mul.op2(), mul.target());
+      } else if (ins instanceof Instructions.Div) {
+        Instructions.Div div = (Instructions.Div) ins;
+        putBinary(pc, DIV, div.op1(), div.op2(), div.target());
+      } else if (ins instanceof Instructions.Mod) {
+        Instructions.Mod mod = (Instructions.Mod) ins;
+        putBinary(pc, MOD, mod.op1(), mod.op2(), mod.target());
+      } else if (ins instanceof Instructions.LessThan) {
+        Instructions.LessThan lt = (Instructions.LessThan) ins;
+        putBinary(pc, LT, lt.op1(), lt.op2(), lt.target());
+      } else if (ins instanceof Instructions.LessEquals) {
+        Instructions.LessEquals leq = (Instructions.LessEquals) ins;
+        putBinary(pc, LEQ, leq.op1(), leq.op2(), leq.target());
+      } else if (ins instanceof Instructions.Equals) {
+        Instructions.Equals eq = (Instructions.Equals) ins;
+        putBinary(pc, EQ, eq.op1(), eq.op2(), eq.target());
+      } else if (ins instanceof Instructions.NotEquals) {
+        Instructions.NotEquals neq = (Instructions.NotEquals) ins;
+        putBinary(pc, NEQ, neq.op1(), neq.op2(), neq.target());
+      } else if (ins instanceof Instructions.AddImmediate) {
+        Instructions.AddImmediate add = (Instructions.AddImmediate) ins;
+        putImmediate(pc, ADD, add.op1(), add.value(), add.target());
+      } else if (ins instanceof Instructions.SubImmediate) {
+        Instructions.SubImmediate sub = (Instructions.SubImmediate) ins;
+        putImmediate(pc, SUB, sub.op1(), sub.value(), sub.target());
+      } else if (ins instanceof Instructions.MulImmediate) {
+        Instructions.MulImmediate mul = (Instructions.MulImmediate) ins;
+        putImmediate(pc, MUL, mul.op1(), mul.value(), mul.target());
+      } else if (ins instanceof Instructions.DivImmediate) {
+        Instructions.DivImmediate div = (Instructions.DivImmediate) ins;
+        putImmediate(pc, DIV, div.op1(), div.value(), div.target());
+      } else if (ins instanceof Instructions.ModImmediate) {
+        Instructions.ModImmediate mod = (Instructions.ModImmediate) ins;
+        putImmediate(pc, MOD, mod.op1(), mod.value(), mod.target());
+      } else if (ins instanceof Instructions.LessThanImmediate) {
+        Instructions.LessThanImmediate lt = (Instructions.LessThanImmediate) ins;
+        putImmediate(pc, LT, lt.op1(), lt.value(), lt.target());
+      } else if (ins instanceof Instructions.LessEqualsImmediate) {
+        Instructions.LessEqualsImmediate leq = (Instructions.LessEqualsImmediate) ins;
+        putImmediate(pc, LEQ, leq.op1(), leq.value(), leq.target());
+      } else if (ins instanceof Instructions.GreaterThanImmediate) {
+        // a > k is decoded as k < a.
+        Instructions.GreaterThanImmediate gt = (Instructions.GreaterThanImmediate) ins;
+        putImmediate(pc, LT, gt.op1(), gt.value(), gt.target());
+        swapOperands(pc);
+      } else if (ins instanceof Instructions.GreaterEqualsImmediate) {
+        Instructions.GreaterEqualsImmediate geq = (Instructions.GreaterEqualsImmediate) ins;
+        putImmediate(pc, LEQ, geq.op1(), geq.value(), geq.target());
+        swapOperands(pc);
+      } else if (ins instanceof Instructions.EqualsImmediate) {
+        Instructions.EqualsImmediate eq = (Instructions.EqualsImmediate) ins;
+        putImmediate(pc, EQ, eq.op1(), eq.value(), eq.target());
+      } else if (ins instanceof Instructions.NotEqualsImmediate) {
+        Instructions.NotEqualsImmediate neq = (Instructions.NotEqualsImmediate) ins;
+        putImmediate(pc, NEQ, neq.op1(), neq.value(), neq.target());
+      } else if (ins instanceof Instructions.BitAnd) {
+        Instructions.BitAnd and = (Instructions.BitAnd) ins;
+        putBinary(pc, BITAND, and.op1(), and.op2(), and.target());
+      } else if (ins instanceof Instructions.BitOr) {
+        Instructions.BitOr or = (Instructions.BitOr) ins;
+        putBinary(pc, BITOR, or.op1(), or.op2(), or.target());
+      } else if (ins instanceof Instructions.Jump) {
+        Instructions.Jump jmp = (Instructions.Jump) ins;
+        code[pc] = JMP;
+        putAddress(pc + OP1_BASE, jmp.flag());
+        code[pc + IMMEDIATE] = jmp.addr();
+      } else if (ins instanceof Instructions.JumpN) {
+        Instructions.JumpN jmp = (Instructions.JumpN) ins;
+        code[pc] = JMPN;
+        putAddress(pc + OP1_BASE, jmp.flag());
+        code[pc + IMMEDIATE] = jmp.addr();
+      } else if (ins instanceof Instructions.JumpAddress) {
+        Instructions.JumpAddress jmp = (Instructions.JumpAddress) ins;
+        code[pc] = JMPADR;
+        putAddress(pc + OP1_BASE, jmp.addr());
+      } else if (ins instanceof Instructions.Extern) {
+        Instructions.Extern ext = (Instructions.Extern) ins;
+        int idx = externs.indexOf(ext.name());
+        if (idx == -1) {
+          idx = externs.size();
+          externs.add(ext.name());
+        }
+        code[pc] = EXTERN;
+        code[pc + IMMEDIATE] = idx;
+      } else if (ins instanceof Instructions.Halt) {
+        code[pc] = HALT;
+      } else if (ins instanceof Instructions.Call) {
+        Instructions.Call call = (Instructions.Call) ins;
+        code[pc] = CALL;
+        code[pc + FRAME] = call.frame();
+        code[pc + IMMEDIATE] = call.addr();
+      } else if (ins instanceof Instructions.Return) {
+        code[pc] = RET;
+      } else {
+        throw new IllegalArgumentException("Instruction " + ins + " can not be decoded");
+      }
+    }
+
+    private void putBinary(int pc, int opcode, Address op1, Address op2, Address target) {
+      code[pc] = opcode;
+      putAddress(pc + OP1_BASE, op1);
+      putAddress(pc + OP2_BASE, op2);
+      putAddress(pc + TARGET_BASE, target);
+    }
+
+    private void putImmediate(int pc, int opcode, Address op1, int value, Address target) {
+      code[pc] = opcode;
+      putAddress(pc + OP1_BASE, op1);
+      code[pc + OP2_BASE] = CONSTANT;
+      code[pc + OP2_OFFSET] = value;
+      putAddress(pc + TARGET_BASE, target);
+    }
+
+    private void swapOperands(int pc) {
+      for (int i = 0; i < 2; i++) {
+        int op1 = code[pc + OP1_BASE + i];
+        code[pc + OP1_BASE + i] = code[pc + OP2_BASE + i];
+        code[pc + OP2_BASE + i] = op1;
+      }
+    }
+
+    private void putAddress(int pos, Address addr) {
+      int base = addr.baseAddr();
+      if (-data.length <= base && base < 0) {
+        code[pos] = ABSOLUTE;
+        code[pos + 1] = data[-(base + 1)] + addr.offset();
+      } else if (base == 0 && stackPointer) {
+        code[pos] = SP_RELATIVE;
+        code[pos + 1] = addr.offset();
+      } else if (base < 0) {
+        code[pos] = INVALID_BASE;
+        code[pos + 1] = base;
+      } else {
+        code[pos] = base;
+        code[pos + 1] = addr.offset();
+      }
+    }
+  }
+}
@@ -2,6 +2,7 @@ package se.jsannemo.spooky.vm.code;
 
 import com.google.auto.value.AutoValue;
 import com.google.common.collect.ImmutableList;
+import com.google.common.primitives.ImmutableIntArray;
 import jsinterop.annotations.JsType;
 
 /** A parsed Spooky code executable. */
@@ -11,7 +12,7 @@ public abstract class Executable {
   Executable() {}
 
   static Builder builder() {
-    return new AutoValue_Executable.Builder().data(ImmutableList.of());
+    return new AutoValue_Executable.Builder().data(ImmutableIntArray.of()).verified(false);
   }
 
   /** The name of the executable. */
@@ -21,7 +22,13 @@ public abstract class Executable {
   public abstract ImmutableList<Instructions.Instruction> text();
 
   /** The binary data making up the data segment of the executable. */
-  public abstract ImmutableList<Integer> data();
+  public abstract ImmutableIntArray data();
+
+  /**
+   * Whether the executable passed the checks of {@link Verifier} when it was parsed, so that it can
+   * be run without repeating them.
+   */
+  public abstract boolean verified();
 
   @AutoValue.Builder
   abstract static class Builder {
@@ -29,7 +36,9 @@ public abstract class Executable {
 
     abstract Builder text(ImmutableList<Instructions.Instruction> text);
 
-    abstract Builder data(ImmutableList<Integer> data);
+    abstract Builder data(ImmutableIntArray data);
+
+    abstract Builder verified(boolean verified);
 
     abstract Executable build();
   }
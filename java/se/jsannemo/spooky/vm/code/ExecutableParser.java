@@ -98,6 +98,9 @@ public final class ExecutableParser {
    *   <li>Text, starting with a TEXT instruction followed by only executable instructions
    *   <li>Optionally, data, starting with a DATA followed by binary data
    * </ul>
+   *
+   * <p>The parsed executable is checked by {@link Verifier}, and marked as {@link
+   * Executable#verified()} if it passes. Executables that do not pass can still be run.
    */
   @JsMethod
   public static Executable fromInstructions(List<Instructions.Instruction> instructions)
@@ -111,6 +114,6 @@ public final class ExecutableParser {
       throw new InstructionException("Failed parsing executable", iae);
     }
     checkState(instructions.isEmpty(), "Parsing did not consume all instructions");
-    return builder.build();
+    return builder.verified(Verifier.verify(builder.build()).isEmpty()).build();
   }
 }
@@ -5,6 +5,7 @@ import static se.jsannemo.spooky.vm.code.Instructions.Extern.create;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.primitives.ImmutableIntArray;
 import se.jsannemo.spooky.vm.code.Instructions.*;
 
 /** A tokenizer of raw bytes into the corresponding instructions. */
@@ -32,6 +33,19 @@ final class InstructionTokenizer {
           .put(OpCode.HALT.code, InstructionTokenizer::parseHalt)
           .put(OpCode.BITAND.code, InstructionTokenizer::parseBitAnd)
           .put(OpCode.BITOR.code, InstructionTokenizer::parseBitOr)
+          .put(OpCode.CALL.code, InstructionTokenizer::parseCall)
+          .put(OpCode.RET.code, InstructionTokenizer::parseReturn)
+          .put(OpCode.ADDI.code, InstructionTokenizer::parseAddImmediate)
+          .put(OpCode.SUBI.code, InstructionTokenizer::parseSubImmediate)
+          .put(OpCode.MULI.code, InstructionTokenizer::parseMulImmediate)
+          .put(OpCode.DIVI.code, InstructionTokenizer::parseDivImmediate)
+          .put(OpCode.MODI.code, InstructionTokenizer::parseModImmediate)
+          .put(OpCode.LTI.code, InstructionTokenizer::parseLessThanImmediate)
+          .put(OpCode.LEQI.code, InstructionTokenizer::parseLessEqualsImmediate)
+          .put(OpCode.GTI.code, InstructionTokenizer::parseGreaterThanImmediate)
+          .put(OpCode.GEQI.code, InstructionTokenizer::parseGreaterEqualsImmediate)
+          .put(OpCode.EQI.code, InstructionTokenizer::parseEqualsImmediate)
+          .put(OpCode.NEQI.code, InstructionTokenizer::parseNotEqualsImmediate)
           .build();
 
   static ImmutableList<Instruction> tokenize(byte[] content) throws InstructionException {
@@ -55,7 +69,7 @@ final class InstructionTokenizer {
     checkArgument(
         !context.finished() && context.currentByte() == OpCode.DATA.code, "Expected DATA byte");
     context.advance(1);
-    ImmutableList.Builder<Integer> data = ImmutableList.builder();
+    ImmutableIntArray.Builder data = ImmutableIntArray.builder();
     while (!context.finished()) {
       data.add(Serialization.readInt(context));
     }
@@ -252,8 +266,134 @@ final class InstructionTokenizer {
     return BitOr.create(op1, op2, target);
   }
 
+  private static Instruction parseCall(ByteStreamIterator context) {
+    checkArgument(
+        !context.finished() && context.currentByte() == OpCode.CALL.code, "Expected CALL byte");
+    context.advance(1);
+    int frame = Serialization.readInt(context);
+    int addr = Serialization.readInt(context);
+    return Call.create(frame, addr);
+  }
+
+  private static Instruction parseReturn(ByteStreamIterator context) {
+    checkArgument(
+        !context.finished() && context.currentByte() == OpCode.RET.code, "Expected RET byte");
+    context.advance(1);
+    return Return.create();
+  }
+
   @FunctionalInterface
   private interface Tokenizer {
     Instruction parse(ByteStreamIterator context) throws InstructionException;
   }
+
+  private static Instruction parseAddImmediate(ByteStreamIterator context) {
+    checkArgument(
+        !context.finished() && context.currentByte() == OpCode.ADDI.code, "Expected ADDI byte");
+    context.advance(1);
+    Address op1 = Serialization.readAddr(context);
+    int value = Serialization.readInt(context);
+    Address target = Serialization.readAddr(context);
+    return AddImmediate.create(op1, value, target);
+  }
+
+  private static Instruction parseSubImmediate(ByteStreamIterator context) {
+    checkArgument(
+        !context.finished() && context.currentByte() == OpCode.SUBI.code, "Expected SUBI byte");
+    context.advance(1);
+    Address op1 = Serialization.readAddr(context);
+    int value = Serialization.readInt(context);
+    Address target = Serialization.readAddr(context);
+    return SubImmediate.create(op1, value, target);
+  }
+
+  private static Instruction parseMulImmediate(ByteStreamIterator context) {
+    checkArgument(
+        !context.finished() && context.currentByte() == OpCode.MULI.code, "Expected MULI byte");
+    context.advance(1);
+    Address op1 = Serialization.readAddr(context);
+    int value = Serialization.readInt(context);
+    Address target = Serialization.readAddr(context);
+    return MulImmediate.create(op1, value, target);
+  }
+
+  private static Instruction parseDivImmediate(ByteStreamIterator context) {
+    checkArgument(
+        !context.finished() && context.currentByte() == OpCode.DIVI.code, "Expected DIVI byte");
+    context.advance(1);
+    Address op1 = Serialization.readAddr(context);
+    int value = Serialization.readInt(context);
+    Address target = Serialization.readAddr(context);
+    return DivImmediate.create(op1, value, target);
+  }
+
+  private static Instruction parseModImmediate(ByteStreamIterator context) {
+    checkArgument(
+        !context.finished() && context.currentByte() == OpCode.MODI.code, "Expected MODI byte");
+    context.advance(1);
+    Address op1 = Serialization.readAddr(context);
+    int value = Serialization.readInt(context);
+    Address target = Serialization.readAddr(context);
+    return ModImmediate.create(op1, value, target);
+  }
+
+  private static Instruction parseLessThanImmediate(ByteStreamIterator context) {
+    checkArgument(
+        !context.finished() && context.currentByte() == OpCode.LTI.code, "Expected LTI byte");
+    context.advance(1);
+    Address op1 = Serialization.readAddr(context);
+    int value = Serialization.readInt(context);
+    Address target = Serialization.readAddr(context);
+    return LessThanImmediate.create(op1, value, target);
+  }
+
+  private static Instruction parseLessEqualsImmediate(ByteStreamIterator context) {
+    checkArgument(
+        !context.finished() && context.currentByte() == OpCode.LEQI.code, "Expected LEQI byte");
+    context.advance(1);
+    Address op1 = Serialization.readAddr(context);
+    int value = Serialization.readInt(context);
+    Address target = Serialization.readAddr(context);
+    return LessEqualsImmediate.create(op1, value, target);
+  }
+
+  private static Instruction parseGreaterThanImmediate(ByteStreamIterator context) {
+    checkArgument(
+        !context.finished() && context.currentByte() == OpCode.GTI.code, "Expected GTI byte");
+    context.advance(1);
+    Address op1 = Serialization.readAddr(context);
+    int value = Serialization.readInt(context);
+    Address target = Serialization.readAddr(context);
+    return GreaterThanImmediate.create(op1, value, target);
+  }
+
+  private static Instruction parseGreaterEqualsImmediate(ByteStreamIterator context) {
+    checkArgument(
+        !context.finished() && context.currentByte() == OpCode.GEQI.code, "Expected GEQI byte");
+    context.advance(1);
+    Address op1 = Serialization.readAddr(context);
+    int value = Serialization.readInt(context);
+    Address target = Serialization.readAddr(context);
+    return GreaterEqualsImmediate.create(op1, value, target);
+  }
+
+  private static Instruction parseEqualsImmediate(ByteStreamIterator context) {
+    checkArgument(
+        !context.finished() && context.currentByte() == OpCode.EQI.code, "Expected EQI byte");
+    context.advance(1);
+    Address op1 = Serialization.readAddr(context);
+    int value = Serialization.readInt(context);
+    Address target = Serialization.readAddr(context);
+    return EqualsImmediate.create(op1, value, target);
+  }
+
+  private static Instruction parseNotEqualsImmediate(ByteStreamIterator context) {
+    checkArgument(
+        !context.finished() && context.currentByte() == OpCode.NEQI.code, "Expected NEQI byte");
+    context.advance(1);
+    Address op1 = Serialization.readAddr(context);
+    int value = Serialization.readInt(context);
+    Address target = Serialization.readAddr(context);
+    return NotEqualsImmediate.create(op1, value, target);
+  }
 }
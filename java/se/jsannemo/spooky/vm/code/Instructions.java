@@ -2,6 +2,7 @@ package se.jsannemo.spooky.vm.code;
 
 import com.google.auto.value.AutoValue;
 import com.google.common.collect.ImmutableList;
+import com.google.common.primitives.ImmutableIntArray;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
@@ -444,6 +445,307 @@ public final class Instructions {
     }
   }
 
+  /**
+   * Adds the value {@code value} to the value at address {@code op1} and stores the result at
+   * address {@code target}.
+   */
+  @AutoValue
+  public abstract static class AddImmediate extends Instruction {
+    AddImmediate() {}
+
+    public abstract Address op1();
+
+    public abstract int value();
+
+    public abstract Address target();
+
+    public static AddImmediate create(Address op1, int value, Address target) {
+      return new AutoValue_Instructions_AddImmediate(op1, value, target);
+    }
+
+    @Override
+    public void writeBinary(OutputStream os) throws IOException {
+      os.write(OpCode.ADDI.code);
+      Serialization.writeAddr(os, op1());
+      Serialization.writeInt(os, value());
+      Serialization.writeAddr(os, target());
+    }
+  }
+
+  /**
+   * Subtracts the value {@code value} from the value at address {@code op1} and stores the result
+   * at address {@code target}.
+   */
+  @AutoValue
+  public abstract static class SubImmediate extends Instruction {
+    SubImmediate() {}
+
+    public abstract Address op1();
+
+    public abstract int value();
+
+    public abstract Address target();
+
+    public static SubImmediate create(Address op1, int value, Address target) {
+      return new AutoValue_Instructions_SubImmediate(op1, value, target);
+    }
+
+    @Override
+    public void writeBinary(OutputStream os) throws IOException {
+      os.write(OpCode.SUBI.code);
+      Serialization.writeAddr(os, op1());
+      Serialization.writeInt(os, value());
+      Serialization.writeAddr(os, target());
+    }
+  }
+
+  /**
+   * Multiplies the value at address {@code op1} with the value {@code value} and stores the result
+   * at address {@code target}.
+   */
+  @AutoValue
+  public abstract static class MulImmediate extends Instruction {
+    MulImmediate() {}
+
+    public abstract Address op1();
+
+    public abstract int value();
+
+    public abstract Address target();
+
+    public static MulImmediate create(Address op1, int value, Address target) {
+      return new AutoValue_Instructions_MulImmediate(op1, value, target);
+    }
+
+    @Override
+    public void writeBinary(OutputStream os) throws IOException {
+      os.write(OpCode.MULI.code);
+      Serialization.writeAddr(os, op1());
+      Serialization.writeInt(os, value());
+      Serialization.writeAddr(os, target());
+    }
+  }
+
+  /**
+   * Divides the value at address {@code op1} with the value {@code value} and stores the result at
+   * address {@code target}.
+   *
+   * <p>Throws an exception when dividing by 0.
+   */
+  @AutoValue
+  public abstract static class DivImmediate extends Instruction {
+    DivImmediate() {}
+
+    public abstract Address op1();
+
+    public abstract int value();
+
+    public abstract Address target();
+
+    public static DivImmediate create(Address op1, int value, Address target) {
+      return new AutoValue_Instructions_DivImmediate(op1, value, target);
+    }
+
+    @Override
+    public void writeBinary(OutputStream os) throws IOException {
+      os.write(OpCode.DIVI.code);
+      Serialization.writeAddr(os, op1());
+      Serialization.writeInt(os, value());
+      Serialization.writeAddr(os, target());
+    }
+  }
+
+  /**
+   * Computes the remainder of the value at address {@code op1} when divided by the value {@code
+   * value} and stores the result at address {@code target}.
+   *
+   * <p>Throws an exception when dividing by 0.
+   */
+  @AutoValue
+  public abstract static class ModImmediate extends Instruction {
+    ModImmediate() {}
+
+    public abstract Address op1();
+
+    public abstract int value();
+
+    public abstract Address target();
+
+    public static ModImmediate create(Address op1, int value, Address target) {
+      return new AutoValue_Instructions_ModImmediate(op1, value, target);
+    }
+
+    @Override
+    public void writeBinary(OutputStream os) throws IOException {
+      os.write(OpCode.MODI.code);
+      Serialization.writeAddr(os, op1());
+      Serialization.writeInt(os, value());
+      Serialization.writeAddr(os, target());
+    }
+  }
+
+  /**
+   * Compares the value at address {@code op1} with the value {@code value} and stores 1 (if {@code
+   * op1 < value}) or 0 (otherwise) at address {@code target}.
+   */
+  @AutoValue
+  public abstract static class LessThanImmediate extends Instruction {
+    LessThanImmediate() {}
+
+    public abstract Address op1();
+
+    public abstract int value();
+
+    public abstract Address target();
+
+    public static LessThanImmediate create(Address op1, int value, Address target) {
+      return new AutoValue_Instructions_LessThanImmediate(op1, value, target);
+    }
+
+    @Override
+    public void writeBinary(OutputStream os) throws IOException {
+      os.write(OpCode.LTI.code);
+      Serialization.writeAddr(os, op1());
+      Serialization.writeInt(os, value());
+      Serialization.writeAddr(os, target());
+    }
+  }
+
+  /**
+   * Compares the value at address {@code op1} with the value {@code value} and stores 1 (if {@code
+   * op1 <= value}) or 0 (otherwise) at address {@code target}.
+   */
+  @AutoValue
+  public abstract static class LessEqualsImmediate extends Instruction {
+    LessEqualsImmediate() {}
+
+    public abstract Address op1();
+
+    public abstract int value();
+
+    public abstract Address target();
+
+    public static LessEqualsImmediate create(Address op1, int value, Address target) {
+      return new AutoValue_Instructions_LessEqualsImmediate(op1, value, target);
+    }
+
+    @Override
+    public void writeBinary(OutputStream os) throws IOException {
+      os.write(OpCode.LEQI.code);
+      Serialization.writeAddr(os, op1());
+      Serialization.writeInt(os, value());
+      Serialization.writeAddr(os, target());
+    }
+  }
+
+  /**
+   * Compares the value at address {@code op1} with the value {@code value} and stores 1 (if {@code
+   * op1 > value}) or 0 (otherwise) at address {@code target}.
+   */
+  @AutoValue
+  public abstract static class GreaterThanImmediate extends Instruction {
+    GreaterThanImmediate() {}
+
+    public abstract Address op1();
+
+    public abstract int value();
+
+    public abstract Address target();
+
+    public static GreaterThanImmediate create(Address op1, int value, Address target) {
+      return new AutoValue_Instructions_GreaterThanImmediate(op1, value, target);
+    }
+
+    @Override
+    public void writeBinary(OutputStream os) throws IOException {
+      os.write(OpCode.GTI.code);
+      Serialization.writeAddr(os, op1());
+      Serialization.writeInt(os, value());
+      Serialization.writeAddr(os, target());
+    }
+  }
+
+  /**
+   * Compares the value at address {@code op1} with the value {@code value} and stores 1 (if {@code
+   * op1 >= value}) or 0 (otherwise) at address {@code target}.
+   */
+  @AutoValue
+  public abstract static class GreaterEqualsImmediate extends Instruction {
+    GreaterEqualsImmediate() {}
+
+    public abstract Address op1();
+
+    public abstract int value();
+
+    public abstract Address target();
+
+    public static GreaterEqualsImmediate create(Address op1, int value, Address target) {
+      return new AutoValue_Instructions_GreaterEqualsImmediate(op1, value, target);
+    }
+
+    @Override
+    public void writeBinary(OutputStream os) throws IOException {
+      os.write(OpCode.GEQI.code);
+      Serialization.writeAddr(os, op1());
+      Serialization.writeInt(os, value());
+      Serialization.writeAddr(os, target());
+    }
+  }
+
+  /**
+   * Compares the value at address {@code op1} with the value {@code value} and stores 1 (if {@code
+   * op1 == value}) or 0 (otherwise) at address {@code target}.
+   */
+  @AutoValue
+  public abstract static class EqualsImmediate extends Instruction {
+    EqualsImmediate() {}
+
+    public abstract Address op1();
+
+    public abstract int value();
+
+    public abstract Address target();
+
+    public static EqualsImmediate create(Address op1, int value, Address target) {
+      return new AutoValue_Instructions_EqualsImmediate(op1, value, target);
+    }
+
+    @Override
+    public void writeBinary(OutputStream os) throws IOException {
+      os.write(OpCode.EQI.code);
+      Serialization.writeAddr(os, op1());
+      Serialization.writeInt(os, value());
+      Serialization.writeAddr(os, target());
+    }
+  }
+
+  /**
+   * Compares the value at address {@code op1} with the value {@code value} and stores 1 (if {@code
+   * op1 != value}) or 0 (otherwise) at address {@code target}.
+   */
+  @AutoValue
+  public abstract static class NotEqualsImmediate extends Instruction {
+    NotEqualsImmediate() {}
+
+    public abstract Address op1();
+
+    public abstract int value();
+
+    public abstract Address target();
+
+    public static NotEqualsImmediate create(Address op1, int value, Address target) {
+      return new AutoValue_Instructions_NotEqualsImmediate(op1, value, target);
+    }
+
+    @Override
+    public void writeBinary(OutputStream os) throws IOException {
+      os.write(OpCode.NEQI.code);
+      Serialization.writeAddr(os, op1());
+      Serialization.writeInt(os, value());
+      Serialization.writeAddr(os, target());
+    }
+  }
+
   /**
    * Jumps to the instruction at {@code addr} (indexed by 0 starting at the first instruction in the
    * text segment) if the value stored at {@code flag} is 0, i.e. <code>
@@ -515,6 +817,51 @@ public final class Instructions {
     }
   }
 
+  /**
+   * Calls the function starting at the instruction with index {@code addr} in the text segment.
+   *
+   * <p>The stack pointer is increased by {@code frame}, the size of the stack frame of the caller
+   * that the callee should not overwrite. The index of the instruction following the call and the
+   * frame size are pushed to the call stack of the VM, from which {@link Return} restores them.
+   */
+  @AutoValue
+  public abstract static class Call extends Instruction {
+    Call() {}
+
+    public abstract int frame();
+
+    public abstract int addr();
+
+    public static Call create(int frame, int addr) {
+      return new AutoValue_Instructions_Call(frame, addr);
+    }
+
+    @Override
+    public void writeBinary(OutputStream os) throws IOException {
+      os.write(OpCode.CALL.code);
+      Serialization.writeInt(os, frame());
+      Serialization.writeInt(os, addr());
+    }
+  }
+
+  /**
+   * Returns from the latest {@link Call} that has not yet returned, decreasing the stack pointer by
+   * its frame size and continuing at the instruction following it.
+   */
+  @AutoValue
+  public abstract static class Return extends Instruction {
+    Return() {}
+
+    public static Return create() {
+      return new AutoValue_Instructions_Return();
+    }
+
+    @Override
+    public void writeBinary(OutputStream os) throws IOException {
+      os.write(OpCode.RET.code);
+    }
+  }
+
   /** Calls the extern function with name {@code name}. */
   @AutoValue
   public abstract static class Extern extends Instruction {
@@ -558,10 +905,18 @@ public final class Instructions {
   public abstract static class Data extends Instruction {
     Data() {}
 
-    public abstract ImmutableList<Integer> data();
+    public abstract ImmutableIntArray data();
 
-    public static Data create(ImmutableList<Integer> data) {
-      return new AutoValue_Instructions_Data(data);
+    public static Data create(ImmutableIntArray data) {
+      return new AutoValue_Instructions_Data(data.trimmed());
+    }
+
+    /**
+     * Creates a data segment holding a copy of {@code data}. Since the values are kept unboxed,
+     * this is suitable also for large lookup tables.
+     */
+    public static Data create(int... data) {
+      return create(ImmutableIntArray.copyOf(data));
     }
 
     @Override
@@ -572,8 +927,9 @@ public final class Instructions {
     @Override
     public void writeBinary(OutputStream os) throws IOException {
       os.write(OpCode.DATA.code);
-      for (int i : data()) {
-        Serialization.writeInt(os, i);
+      ImmutableIntArray data = data();
+      for (int i = 0; i < data.length(); i++) {
+        Serialization.writeInt(os, data.get(i));
       }
     }
   }
@@ -44,7 +44,33 @@ enum OpCode {
   NEQ((byte) 0x13),
   // A jump-not-zero instruction.
   JMPN((byte) 0x14),
-// Next: 0x15
+  // A function call instruction.
+  CALL((byte) 0x15),
+  // A return from a function call instruction.
+  RET((byte) 0x16),
+  // An add immediate instruction.
+  ADDI((byte) 0x17),
+  // A subtraction immediate instruction.
+  SUBI((byte) 0x18),
+  // A multiply immediate instruction.
+  MULI((byte) 0x19),
+  // A division immediate instruction.
+  DIVI((byte) 0x1A),
+  // A modulo immediate instruction.
+  MODI((byte) 0x1B),
+  // A less than immediate comparison instruction.
+  LTI((byte) 0x1C),
+  // A less than or equals immediate comparison instruction.
+  LEQI((byte) 0x1D),
+  // A greater than immediate comparison instruction.
+  GTI((byte) 0x1E),
+  // A greater than or equals immediate comparison instruction.
+  GEQI((byte) 0x1F),
+  // An equals immediate comparison instruction.
+  EQI((byte) 0x20),
+  // A not equals immediate comparison instruction.
+  NEQI((byte) 0x21),
+// Next: 0x22
 ;
 
   final byte code;
@@ -0,0 +1,407 @@
+package se.jsannemo.spooky.vm.code;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A peephole optimizer rewriting {@link DecodedCode} before it is executed, targeting the patterns
+ * that the code generator emits.
+ *
+ * <p>The optimizer performs four rewrites:
+ *
+ * <ul>
+ *   <li>Jumps to unconditional jumps are threaded to the final target.
+ *   <li>Instructions without effect are dropped: jumps that are never taken, jumps to the next
+ *       instruction, and moves of a memory cell to itself.
+ *   <li>Constant stack pointer adjustments, i.e. a constant written to the scratch register
+ *       followed by adding it to or subtracting it from the stack pointer, are moved past the
+ *       following stack-relative instructions, whose offsets are rebased accordingly. Adjustments
+ *       that meet are folded into a single one, so that the adjustments after a call and before
+ *       the next one cancel out.
+ *   <li>Frequent sequences of instructions are fused into {@link Superinstructions}.
+ * </ul>
+ *
+ * <p>Instructions are only moved within basic blocks, and never past instructions that may be
+ * entered by a jump. Return addresses are assumed to be stored by constant instructions, as
+ * {@link ControlFlow} does. Memory accessed relative to the stack pointer is assumed not to alias
+ * the stack pointer or the scratch register, as guaranteed by the calling convention.
+ *
+ * <p>Since the optimized code has fewer instructions, a program executes fewer instructions than
+ * the text segment would. If a program faults, the stack pointer may also not yet reflect an
+ * adjustment that was moved past the faulting instruction.
+ */
+public final class Peephole {
+
+  // The memory cells of the stack pointer and of the scratch register used for stack pointer
+  // adjustments, as given by the calling convention.
+  private static final int STACK_POINTER = 0;
+  private static final int SCRATCH = 1;
+
+  private final int[] ins;
+  private final int[] data;
+  private final int size;
+  private final int memoryCells;
+  private final ControlFlow flow;
+  private final boolean[] dropped;
+
+  // The optimized instructions, and the index in the text segment of each of them.
+  private final List<int[]> out = new ArrayList<>();
+  private final List<Integer> origins = new ArrayList<>();
+
+  // The stack pointer adjustment being moved forward, if any.
+  private boolean adjusting;
+  // Whether several adjustments have been folded into the current one.
+  private boolean folded;
+  // The total amount the stack pointer is adjusted by.
+  private int delta;
+  // The value of the scratch register after the adjustment.
+  private int scratch;
+  // The index of the first instruction of the adjustment.
+  private int adjustmentOrigin;
+  // The instructions that the adjustment has been moved past, with and without rebased offsets.
+  private final List<int[]> rebased = new ArrayList<>();
+  private final List<int[]> passed = new ArrayList<>();
+  private final List<Integer> passedOrigins = new ArrayList<>();
+
+  private Peephole(DecodedCode code, int memoryCells) {
+    this.ins = code.code().clone();
+    this.data = code.data();
+    this.size = code.size();
+    this.memoryCells = memoryCells;
+    this.flow = ControlFlow.analyze(code);
+    this.dropped = new boolean[size];
+  }
+
+  /**
+   * Returns an optimized version of {@code code}, to be run with {@code memoryCells} cells of
+   * memory.
+   */
+  public static DecodedCode optimize(DecodedCode code, int memoryCells) {
+    checkArgument(!code.isRelocated(), "Code is already optimized");
+    Peephole peephole = new Peephole(code, memoryCells);
+    peephole.threadJumps();
+    peephole.dropNoOps();
+    int[] relocation = peephole.layout();
+    peephole.fuse(relocation);
+    int[] optimized = new int[peephole.out.size() * DecodedCode.STRIDE];
+    int[] originalIndex = new int[peephole.out.size()];
+    for (int ip = 0; ip < originalIndex.length; ip++) {
+      System.arraycopy(
+          peephole.out.get(ip), 0, optimized, ip * DecodedCode.STRIDE, DecodedCode.STRIDE);
+      originalIndex[ip] = peephole.origins.get(ip);
+    }
+    DecodedCode result =
+        new DecodedCode(optimized, code.data(), code.externs(), originalIndex, relocation);
+    for (int pc = 0; pc < optimized.length; pc += DecodedCode.STRIDE) {
+      if (DecodedCode.isJump(optimized[pc])) {
+        optimized[pc + DecodedCode.IMMEDIATE] =
+            result.relocate(optimized[pc + DecodedCode.IMMEDIATE]);
+      }
+    }
+    return result;
+  }
+
+  /** Retargets jumps to unconditional jumps to the target of the latter. */
+  private void threadJumps() {
+    for (int ip = 0; ip < size; ip++) {
+      int pc = ip * DecodedCode.STRIDE;
+      if (ins[pc] != DecodedCode.JMP && ins[pc] != DecodedCode.JMPN) {
+        continue;
+      }
+      int target = ins[pc + DecodedCode.IMMEDIATE];
+      // Bound the number of steps, in case the jumps form a cycle.
+      for (int steps = 0; steps < size && isUnconditionalJump(target); steps++) {
+        target = ins[target * DecodedCode.STRIDE + DecodedCode.IMMEDIATE];
+      }
+      ins[pc + DecodedCode.IMMEDIATE] = target;
+    }
+  }
+
+  /** Marks instructions without any effect as dropped. */
+  private void dropNoOps() {
+    // The instruction following the current one, skipping dropped instructions.
+    int next = size;
+    for (int ip = size - 1; ip >= 0; ip--) {
+      int pc = ip * DecodedCode.STRIDE;
+      int op = ins[pc];
+      if (op == DecodedCode.JMP || op == DecodedCode.JMPN) {
+        Integer flag = DecodedCode.constantValue(ins, pc + DecodedCode.OP1_BASE, data);
+        boolean neverTaken = flag != null && (op == DecodedCode.JMP) == (flag != 0);
+        boolean toNext =
+            ins[pc + DecodedCode.IMMEDIATE] == next && canRead(pc + DecodedCode.OP1_BASE);
+        dropped[ip] = neverTaken || toNext;
+      } else if (op == DecodedCode.MOV) {
+        int cell = ins[pc + DecodedCode.OP1_OFFSET];
+        dropped[ip] =
+            0 <= cell
+                && cell < memoryCells
+                && isCell(pc + DecodedCode.OP1_BASE, cell)
+                && isCell(pc + DecodedCode.TARGET_BASE, cell);
+      }
+      if (!dropped[ip]) {
+        next = ip;
+      }
+    }
+  }
+
+  /**
+   * Lays out the instructions that were not dropped, moving and folding stack pointer adjustments.
+   *
+   * @return the index of the optimized instruction that every index of the text segment, and the
+   *     index one past its end, is relocated to.
+   */
+  private int[] layout() {
+    int[] relocation = new int[size + 1];
+    Arrays.fill(relocation, -1);
+    for (int ip = 0; ip < size; ip++) {
+      if (dropped[ip]) {
+        continue;
+      }
+      boolean adjustment = isAdjustment(ip);
+      if (adjusting && (isEntry(ip) || (!adjustment && !canMovePast(ip)))) {
+        flush();
+      }
+      relocation[ip] = out.size();
+      int pc = ip * DecodedCode.STRIDE;
+      if (adjustment) {
+        int value = ins[pc + DecodedCode.IMMEDIATE];
+        int change = ins[pc + DecodedCode.STRIDE] == DecodedCode.ADD ? value : -value;
+        if (adjusting) {
+          folded = true;
+          delta += change;
+        } else {
+          adjusting = true;
+          folded = false;
+          delta = change;
+          adjustmentOrigin = ip;
+        }
+        scratch = value;
+        relocation[ip + 1] = out.size();
+        ip++;
+      } else if (adjusting) {
+        int[] instruction = instruction(ip);
+        passed.add(instruction);
+        passedOrigins.add(ip);
+        rebased.add(rebase(instruction, delta));
+      } else {
+        emit(instruction(ip), ip);
+      }
+    }
+    flush();
+    relocation[size] = out.size();
+    // Jumps to dropped instructions continue at the next instruction that was kept.
+    for (int ip = size - 1; ip >= 0; ip--) {
+      if (relocation[ip] == -1) {
+        relocation[ip] = relocation[ip + 1];
+      }
+    }
+    return relocation;
+  }
+
+  /**
+   * Fuses the laid out instructions into superinstructions, updating the {@code relocation} of the
+   * text segment to the fused instructions.
+   */
+  private void fuse(int[] relocation) {
+    boolean[] entries = new boolean[out.size()];
+    for (int ip = 0; ip < size; ip++) {
+      if (isEntry(ip) && relocation[ip] < out.size()) {
+        entries[relocation[ip]] = true;
+      }
+    }
+    List<int[]> fused = new ArrayList<>();
+    int[] fusedIndex = Superinstructions.fuse(out, entries, memoryCells, fused);
+    List<Integer> fusedOrigins = new ArrayList<>();
+    for (int i = 0; i < fusedIndex.length; i++) {
+      if (fusedIndex[i] == fusedOrigins.size()) {
+        fusedOrigins.add(origins.get(i));
+      }
+    }
+    for (int ip = 0; ip <= size; ip++) {
+      relocation[ip] = relocation[ip] < out.size() ? fusedIndex[relocation[ip]] : fused.size();
+    }
+    out.clear();
+    out.addAll(fused);
+    origins.clear();
+    origins.addAll(fusedOrigins);
+  }
+
+  /** Emits the stack pointer adjustment being moved, together with the instructions it passed. */
+  private void flush() {
+    if (!adjusting) {
+      return;
+    }
+    adjusting = false;
+    if (!folded) {
+      // Moving a single adjustment gains nothing, so it is emitted where it was.
+      emit(instruction(adjustmentOrigin), adjustmentOrigin);
+      emit(instruction(adjustmentOrigin + 1), adjustmentOrigin + 1);
+      for (int i = 0; i < passed.size(); i++) {
+        emit(passed.get(i), passedOrigins.get(i));
+      }
+    } else {
+      for (int i = 0; i < rebased.size(); i++) {
+        emit(rebased.get(i), passedOrigins.get(i));
+      }
+      if (delta == 0) {
+        emit(constant(scratch, SCRATCH), adjustmentOrigin);
+      } else if (delta == scratch || delta == -scratch) {
+        emit(constant(scratch, SCRATCH), adjustmentOrigin);
+        emit(adjust(delta == scratch ? DecodedCode.ADD : DecodedCode.SUB), adjustmentOrigin);
+      } else {
+        emit(constant(delta, SCRATCH), adjustmentOrigin);
+        emit(adjust(DecodedCode.ADD), adjustmentOrigin);
+        emit(constant(scratch, SCRATCH), adjustmentOrigin);
+      }
+    }
+    rebased.clear();
+    passed.clear();
+    passedOrigins.clear();
+  }
+
+  private void emit(int[] instruction, int origin) {
+    out.add(instruction);
+    origins.add(origin);
+  }
+
+  /**
+   * Returns whether the instructions at {@code ip} and {@code ip + 1} write a constant to the
+   * scratch register, and add it to or subtract it from the stack pointer.
+   */
+  private boolean isAdjustment(int ip) {
+    if (ip + 1 >= size || dropped[ip + 1] || isEntry(ip + 1) || memoryCells <= SCRATCH) {
+      return false;
+    }
+    int pc = ip * DecodedCode.STRIDE;
+    int next = pc + DecodedCode.STRIDE;
+    return ins[pc] == DecodedCode.CONST
+        && isCell(pc + DecodedCode.TARGET_BASE, SCRATCH)
+        && (ins[next] == DecodedCode.ADD || ins[next] == DecodedCode.SUB)
+        && isCell(next + DecodedCode.OP1_BASE, STACK_POINTER)
+        && isCell(next + DecodedCode.OP2_BASE, SCRATCH)
+        && isCell(next + DecodedCode.TARGET_BASE, STACK_POINTER);
+  }
+
+  /**
+   * Returns whether a stack pointer adjustment can be moved past the instruction at {@code ip}, by
+   * rebasing its stack-relative addresses.
+   */
+  private boolean canMovePast(int ip) {
+    int pc = ip * DecodedCode.STRIDE;
+    int[] slots = addressSlots(ins[pc]);
+    if (slots == null) {
+      return false;
+    }
+    for (int slot : slots) {
+      int mode = ins[pc + slot];
+      int offset = ins[pc + slot + 1];
+      boolean movable =
+          mode == DecodedCode.SP_RELATIVE
+              || mode == DecodedCode.CONSTANT
+              || (mode == DecodedCode.ABSOLUTE && offset != STACK_POINTER && offset != SCRATCH);
+      if (!movable) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the slots of the addresses that an instruction with opcode {@code op} accesses, or
+   * {@code null} if it does more than accessing memory.
+   */
+  private static int[] addressSlots(int op) {
+    switch (op) {
+      case DecodedCode.MOV:
+        return new int[] {DecodedCode.OP1_BASE, DecodedCode.TARGET_BASE};
+      case DecodedCode.CONST:
+        return new int[] {DecodedCode.TARGET_BASE};
+      case DecodedCode.ADD:
+      case DecodedCode.SUB:
+      case DecodedCode.MUL:
+      case DecodedCode.DIV:
+      case DecodedCode.MOD:
+      case DecodedCode.LT:
+      case DecodedCode.LEQ:
+      case DecodedCode.EQ:
+      case DecodedCode.NEQ:
+      case DecodedCode.BITAND:
+      case DecodedCode.BITOR:
+        return new int[] {DecodedCode.OP1_BASE, DecodedCode.OP2_BASE, DecodedCode.TARGET_BASE};
+      default:
+        return null;
+    }
+  }
+
+  /** Returns a copy of {@code instruction} with its stack-relative offsets increased by delta. */
+  private static int[] rebase(int[] instruction, int delta) {
+    int[] result = instruction.clone();
+    for (int slot : addressSlots(instruction[DecodedCode.OPCODE])) {
+      if (result[slot] == DecodedCode.SP_RELATIVE) {
+        result[slot + 1] += delta;
+      }
+    }
+    return result;
+  }
+
+  private int[] instruction(int ip) {
+    int pc = ip * DecodedCode.STRIDE;
+    return Arrays.copyOfRange(ins, pc, pc + DecodedCode.STRIDE);
+  }
+
+  private static int[] constant(int value, int cell) {
+    int[] instruction = new int[DecodedCode.STRIDE];
+    instruction[DecodedCode.OPCODE] = DecodedCode.CONST;
+    instruction[DecodedCode.TARGET_BASE] = DecodedCode.ABSOLUTE;
+    instruction[DecodedCode.TARGET_OFFSET] = cell;
+    instruction[DecodedCode.IMMEDIATE] = value;
+    return instruction;
+  }
+
+  /** Returns an instruction adding the scratch register to or subtracting it from the SP. */
+  private static int[] adjust(int op) {
+    int[] instruction = new int[DecodedCode.STRIDE];
+    instruction[DecodedCode.OPCODE] = op;
+    instruction[DecodedCode.OP1_BASE] = DecodedCode.ABSOLUTE;
+    instruction[DecodedCode.OP1_OFFSET] = STACK_POINTER;
+    instruction[DecodedCode.OP2_BASE] = DecodedCode.ABSOLUTE;
+    instruction[DecodedCode.OP2_OFFSET] = SCRATCH;
+    instruction[DecodedCode.TARGET_BASE] = DecodedCode.ABSOLUTE;
+    instruction[DecodedCode.TARGET_OFFSET] = STACK_POINTER;
+    return instruction;
+  }
+
+  /** Returns whether execution may enter the code at the instruction {@code ip} by a jump. */
+  private boolean isEntry(int ip) {
+    return flow.isBlockStart(ip) || flow.isStoredAddress(ip);
+  }
+
+  private boolean isUnconditionalJump(int ip) {
+    if (ip < 0 || ip >= size) {
+      return false;
+    }
+    int pc = ip * DecodedCode.STRIDE;
+    int op = ins[pc];
+    if (op != DecodedCode.JMP && op != DecodedCode.JMPN) {
+      return false;
+    }
+    Integer flag = DecodedCode.constantValue(ins, pc + DecodedCode.OP1_BASE, data);
+    return flag != null && (op == DecodedCode.JMP) == (flag == 0);
+  }
+
+  /** Returns whether reading the address at position {@code pos} can not fault. */
+  private boolean canRead(int pos) {
+    if (DecodedCode.constantValue(ins, pos, data) != null) {
+      return true;
+    }
+    return ins[pos] == DecodedCode.ABSOLUTE && 0 <= ins[pos + 1] && ins[pos + 1] < memoryCells;
+  }
+
+  /** Returns whether the address at position {@code pos} is the memory cell {@code cell}. */
+  private boolean isCell(int pos, int cell) {
+    return ins[pos] == DecodedCode.ABSOLUTE && ins[pos + 1] == cell;
+  }
+}
@@ -0,0 +1,201 @@
+package se.jsannemo.spooky.vm.code;
+
+import java.util.List;
+
+/**
+ * The superinstructions that {@link Peephole} fuses sequences of instructions into, so that they
+ * are executed with a single dispatch.
+ *
+ * <p>The table of superinstructions is derived from profiling the sequences of instructions
+ * executed by the test programs, after the other rewrites of {@link Peephole}. It contains the
+ * sequences that the most dispatches can be saved on, all of which stem from the code generator:
+ *
+ * <ul>
+ *   <li>{@link DecodedCode#EXTERNSP}: an extern call together with the stack pointer adjustments
+ *       around it, which accounted for 13% of the executed instructions.
+ *   <li>{@link DecodedCode#LTJMP} and its siblings: a comparison followed by a jump on its result,
+ *       which accounted for 14%. Conditions are always compiled to jumps taken if they are false,
+ *       so comparisons followed by {@link DecodedCode#JMPN} are not fused.
+ *   <li>{@link DecodedCode#ADDSP} and {@link DecodedCode#SUBSP}: the remaining stack pointer
+ *       adjustments, which accounted for 9%. They were mostly around calls, which are now {@link
+ *       DecodedCode#CALL} instructions that move the stack pointer themselves, so these matter for
+ *       executables that implement calls with jumps.
+ * </ul>
+ *
+ * <p>A superinstruction has the same effect as the sequence it replaces, but counts as a single
+ * executed instruction. A comparison is only fused with a jump on the address that the comparison
+ * writes to, which must be absolute or relative to the stack pointer, so that the jump can use the
+ * result directly. As in {@link Peephole}, memory accessed relative to the stack pointer is assumed
+ * not to alias the stack pointer.
+ */
+final class Superinstructions {
+
+  private Superinstructions() {}
+
+  /** A sequence of instructions that can be fused into a superinstruction. */
+  private abstract static class Superinstruction {
+    private final int length;
+
+    Superinstruction(int length) {
+      this.length = length;
+    }
+
+    /**
+     * Returns the superinstruction replacing the {@code length} instructions starting at index
+     * {@code i} of {@code code}, or {@code null} if they do not match the sequence.
+     */
+    abstract int[] fuse(List<int[]> code, int i, int memoryCells);
+  }
+
+  // The superinstructions in the order they are matched, by the number of dispatches they saved
+  // on the test programs. A sequence must come before any sequence that is a prefix of it.
+  private static final Superinstruction[] TABLE = {
+    new ExternFrame(), new CompareJump(), new AdjustStackPointer(),
+  };
+
+  /**
+   * Fuses the instructions of {@code code} into superinstructions, adding the result to {@code
+   * fused}. Only the first instruction of a fused sequence may be entered by a jump, as given by
+   * {@code entries}.
+   *
+   * @return the index in {@code fused} of the instruction that every instruction of {@code code}
+   *     was fused into.
+   */
+  static int[] fuse(List<int[]> code, boolean[] entries, int memoryCells, List<int[]> fused) {
+    int[] fusedIndex = new int[code.size()];
+    int i = 0;
+    while (i < code.size()) {
+      int[] instruction = code.get(i);
+      int length = 1;
+      for (Superinstruction superinstruction : TABLE) {
+        if (!canFuse(entries, i, superinstruction.length)) {
+          continue;
+        }
+        int[] result = superinstruction.fuse(code, i, memoryCells);
+        if (result != null) {
+          instruction = result;
+          length = superinstruction.length;
+          break;
+        }
+      }
+      for (int j = i; j < i + length; j++) {
+        fusedIndex[j] = fused.size();
+      }
+      fused.add(instruction);
+      i += length;
+    }
+    return fusedIndex;
+  }
+
+  /** Returns whether the sequence of {@code length} instructions starting at {@code i} fits. */
+  private static boolean canFuse(boolean[] entries, int i, int length) {
+    if (i + length > entries.length) {
+      return false;
+    }
+    for (int j = i + 1; j < i + length; j++) {
+      if (entries[j]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** {@code Const k -> c; Add SP, c, SP; Extern e; Const k -> c; Sub SP, c, SP}. */
+  private static final class ExternFrame extends Superinstruction {
+    ExternFrame() {
+      super(5);
+    }
+
+    @Override
+    int[] fuse(List<int[]> code, int i, int memoryCells) {
+      int[] enter = AdjustStackPointer.match(code, i, memoryCells);
+      int[] leave = AdjustStackPointer.match(code, i + 3, memoryCells);
+      int[] extern = code.get(i + 2);
+      if (enter == null
+          || leave == null
+          || enter[DecodedCode.OPCODE] != DecodedCode.ADDSP
+          || leave[DecodedCode.OPCODE] != DecodedCode.SUBSP
+          || extern[DecodedCode.OPCODE] != DecodedCode.EXTERN
+          || enter[DecodedCode.IMMEDIATE] != leave[DecodedCode.IMMEDIATE]
+          || enter[DecodedCode.TARGET_OFFSET] != leave[DecodedCode.TARGET_OFFSET]) {
+        return null;
+      }
+      enter[DecodedCode.OPCODE] = DecodedCode.EXTERNSP;
+      enter[DecodedCode.FRAME] = enter[DecodedCode.IMMEDIATE];
+      enter[DecodedCode.IMMEDIATE] = extern[DecodedCode.IMMEDIATE];
+      return enter;
+    }
+  }
+
+  /** {@code Lt/LtEq/Eq/NotEq a, b -> t; Jmp t, L}. */
+  private static final class CompareJump extends Superinstruction {
+    CompareJump() {
+      super(2);
+    }
+
+    @Override
+    int[] fuse(List<int[]> code, int i, int memoryCells) {
+      int[] compare = code.get(i);
+      int[] jump = code.get(i + 1);
+      int op = compare[DecodedCode.OPCODE];
+      int mode = compare[DecodedCode.TARGET_BASE];
+      if (op < DecodedCode.LT
+          || op > DecodedCode.NEQ
+          || jump[DecodedCode.OPCODE] != DecodedCode.JMP
+          || (mode != DecodedCode.ABSOLUTE && mode != DecodedCode.SP_RELATIVE)
+          || jump[DecodedCode.OP1_BASE] != mode
+          || jump[DecodedCode.OP1_OFFSET] != compare[DecodedCode.TARGET_OFFSET]) {
+        return null;
+      }
+      int[] result = compare.clone();
+      result[DecodedCode.OPCODE] = op - DecodedCode.LT + DecodedCode.LTJMP;
+      result[DecodedCode.IMMEDIATE] = jump[DecodedCode.IMMEDIATE];
+      return result;
+    }
+  }
+
+  /** {@code Const k -> c; Add/Sub SP, c, SP}. */
+  private static final class AdjustStackPointer extends Superinstruction {
+    AdjustStackPointer() {
+      super(2);
+    }
+
+    @Override
+    int[] fuse(List<int[]> code, int i, int memoryCells) {
+      return match(code, i, memoryCells);
+    }
+
+    /**
+     * Returns the {@link DecodedCode#ADDSP} or {@link DecodedCode#SUBSP} instruction that the two
+     * instructions starting at {@code i} can be fused into, or {@code null} if there is none. The
+     * constant must be written to a cell of the main memory other than the stack pointer, so that
+     * neither write can fault.
+     */
+    static int[] match(List<int[]> code, int i, int memoryCells) {
+      int[] constant = code.get(i);
+      int[] adjust = code.get(i + 1);
+      if (constant[DecodedCode.OPCODE] != DecodedCode.CONST
+          || constant[DecodedCode.TARGET_BASE] != DecodedCode.ABSOLUTE) {
+        return null;
+      }
+      int cell = constant[DecodedCode.TARGET_OFFSET];
+      int op = adjust[DecodedCode.OPCODE];
+      if (cell <= 0
+          || cell >= memoryCells
+          || (op != DecodedCode.ADD && op != DecodedCode.SUB)
+          || !isCell(adjust, DecodedCode.OP1_BASE, 0)
+          || !isCell(adjust, DecodedCode.OP2_BASE, cell)
+          || !isCell(adjust, DecodedCode.TARGET_BASE, 0)) {
+        return null;
+      }
+      int[] result = constant.clone();
+      result[DecodedCode.OPCODE] = op == DecodedCode.ADD ? DecodedCode.ADDSP : DecodedCode.SUBSP;
+      return result;
+    }
+  }
+
+  /** Returns whether the address at slot {@code slot} of {@code instruction} is {@code cell}. */
+  private static boolean isCell(int[] instruction, int slot, int cell) {
+    return instruction[slot] == DecodedCode.ABSOLUTE && instruction[slot + 1] == cell;
+  }
+}
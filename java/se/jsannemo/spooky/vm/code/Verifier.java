@@ -0,0 +1,97 @@
+package se.jsannemo.spooky.vm.code;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Static checks of {@link DecodedCode}, proving that executing it can only fault in ways that
+ * depend on the run-time state of the program.
+ *
+ * <p>Code is verified if:
+ *
+ * <ul>
+ *   <li>The text segment is not empty, and all jumps and calls target instructions in it.
+ *   <li>Every address with a constant base resolves to the data segment or the main memory, and
+ *       only addresses in the main memory are written to. Whether the main memory is large enough
+ *       is only known once the code is run, and is checked against {@link
+ *       DecodedCode#highestFixedCell()}.
+ *   <li>The last instruction is a halt, a return or an unconditional jump, so that execution can
+ *       not continue past the end of the text segment. Since calls are then never the last
+ *       instruction, all return addresses are in the text segment too.
+ * </ul>
+ *
+ * <p>The instruction pointer of verified code can then only leave the text segment through address
+ * jumps, and only addresses relative to the stack pointer or some other memory cell can be out of
+ * bounds.
+ */
+public final class Verifier {
+
+  private Verifier() {}
+
+  /** Returns the problems preventing {@code executable} from being verified, if any. */
+  public static ImmutableList<String> verify(Executable executable) {
+    // Decoding for a non-empty memory makes sure that stack pointer bases are not rejected.
+    return verify(DecodedCode.decode(executable, 1));
+  }
+
+  /** Returns the problems preventing {@code code} from being verified, if any. */
+  public static ImmutableList<String> verify(DecodedCode code) {
+    ImmutableList.Builder<String> problems = ImmutableList.builder();
+    int[] ins = code.code();
+    int size = code.size();
+    if (size == 0) {
+      return ImmutableList.of("Text segment is empty");
+    }
+    for (int ip = 0; ip < size; ip++) {
+      int pc = ip * DecodedCode.STRIDE;
+      int op = ins[pc];
+      if (DecodedCode.isJump(op)) {
+        int target = ins[pc + DecodedCode.IMMEDIATE];
+        if (target < 0 || target >= size) {
+          problems.add("Instruction " + ip + " jumps to " + target + " outside of the text");
+        }
+      }
+      for (int slot = DecodedCode.OP1_BASE; slot <= DecodedCode.TARGET_BASE; slot += 2) {
+        String problem = checkAddress(ins, pc + slot, code.data().length, slot);
+        if (problem != null) {
+          problems.add("Instruction " + ip + " " + problem);
+        }
+      }
+    }
+    if (canFallThrough(ins, (size - 1) * DecodedCode.STRIDE, code.data())) {
+      problems.add("Text does not end with a halt, return or unconditional jump");
+    }
+    return problems.build();
+  }
+
+  /** Returns the problem with the address stored at {@code pos}, or {@code null} if it is valid. */
+  private static String checkAddress(int[] ins, int pos, int dataSize, int slot) {
+    int mode = ins[pos];
+    int offset = ins[pos + 1];
+    if (mode == DecodedCode.INVALID_BASE) {
+      return "has base " + offset + " before the data segment";
+    }
+    if (mode != DecodedCode.ABSOLUTE || offset >= 0) {
+      return null;
+    }
+    if (slot == DecodedCode.TARGET_BASE) {
+      return "writes to the data segment at " + offset;
+    }
+    if (offset < -dataSize) {
+      return "reads " + offset + " before the data segment";
+    }
+    return null;
+  }
+
+  /** Returns whether execution may continue after the instruction at position {@code pc}. */
+  private static boolean canFallThrough(int[] ins, int pc, int[] data) {
+    int op = ins[pc];
+    if (op == DecodedCode.HALT || op == DecodedCode.RET || op == DecodedCode.JMPADR) {
+      return false;
+    }
+    if (op != DecodedCode.JMP && op != DecodedCode.JMPN) {
+      return true;
+    }
+    Integer flag = DecodedCode.constantValue(ins, pc + DecodedCode.OP1_BASE, data);
+    return flag == null || (op == DecodedCode.JMP ? flag != 0 : flag == 0);
+  }
+}
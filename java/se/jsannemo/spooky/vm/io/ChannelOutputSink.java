@@ -0,0 +1,42 @@
+package se.jsannemo.spooky.vm.io;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import se.jsannemo.spooky.vm.OutputSink;
+
+/** An {@link OutputSink} writing to a {@link WritableByteChannel}, such as a file or a socket. */
+public final class ChannelOutputSink extends OutputSink {
+
+  private final WritableByteChannel channel;
+
+  public ChannelOutputSink(WritableByteChannel channel) {
+    this.channel = channel;
+  }
+
+  public ChannelOutputSink(WritableByteChannel channel, int capacity) {
+    super(capacity);
+    this.channel = channel;
+  }
+
+  /**
+   * Writes the bytes to the channel, blocking until all are written.
+   *
+   * @throws UncheckedIOException if the channel fails, or is non-blocking and can not accept the
+   *     bytes.
+   */
+  @Override
+  protected void write(byte[] bytes, int offset, int length) {
+    ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+    try {
+      while (buffer.hasRemaining()) {
+        if (channel.write(buffer) == 0) {
+          throw new IOException("Channel did not accept output");
+        }
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
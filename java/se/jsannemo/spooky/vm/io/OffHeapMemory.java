@@ -0,0 +1,248 @@
+package se.jsannemo.spooky.vm.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import se.jsannemo.spooky.vm.MemoryBackend;
+import se.jsannemo.spooky.vm.SpookyVm;
+import se.jsannemo.spooky.vm.VmException;
+
+/**
+ * Memory cells stored outside of the Java heap, either in a direct buffer or mapped from a file.
+ *
+ * <p>The memory can back the main memory of a VM with {@link
+ * SpookyVm.Builder#setMemoryBackend(MemoryBackend, int)}, so that large memories are kept out of
+ * garbage collections while the VM runs. It can also hold memory that no VM is running on, e.g.
+ * the large data set of a program that is loaded into many VMs, or the memory of a VM that has
+ * been parked so that the VM itself can be reused. Cells are read and written with the same
+ * contract as the main memory of a VM, and copied in bulk to and from VMs.
+ *
+ * <p>Memories are not thread-safe, and must only be used by one thread at a time.
+ *
+ * <p>Memory mapped from a file stores the cells as little-endian ints, so that it can be written by
+ * one process and loaded by another.
+ */
+public final class OffHeapMemory implements MemoryBackend, Closeable {
+
+  /** The number of cells copied at a time between the memory and a VM. */
+  private static final int COPY_CHUNK = 4096;
+
+  private final int size;
+  private final FileChannel channel;
+  private final MappedByteBuffer mapped;
+  private IntBuffer cells;
+  /** The buffer that cells are copied through between the memory and a VM. */
+  private int[] chunk;
+
+  private OffHeapMemory(int size, ByteBuffer buffer, FileChannel channel) {
+    this.size = size;
+    this.channel = channel;
+    this.mapped = buffer instanceof MappedByteBuffer ? (MappedByteBuffer) buffer : null;
+    this.cells = buffer.asIntBuffer();
+  }
+
+  /** Allocates {@code size} cells of zeroed memory in a direct buffer. */
+  public static OffHeapMemory allocate(int size) {
+    checkSize(size);
+    ByteBuffer buffer = ByteBuffer.allocateDirect(4 * size).order(ByteOrder.nativeOrder());
+    return new OffHeapMemory(size, buffer, null);
+  }
+
+  /**
+   * Maps {@code size} cells of memory from {@code file}, which is created if it does not exist
+   * and extended with zeroed cells if it is too short.
+   *
+   * @throws IOException if the file could not be opened or mapped.
+   */
+  public static OffHeapMemory map(Path file, int size) throws IOException {
+    checkSize(size);
+    FileChannel channel =
+        FileChannel.open(
+            file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    try {
+      ByteBuffer buffer =
+          channel.map(FileChannel.MapMode.READ_WRITE, 0, 4L * size).order(ByteOrder.LITTLE_ENDIAN);
+      return new OffHeapMemory(size, buffer, channel);
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  private static void checkSize(int size) {
+    // Buffers are indexed by bytes, so larger memories can not be addressed.
+    if (size < 0 || size > Integer.MAX_VALUE / 4) {
+      throw new IllegalArgumentException("Invalid memory size " + size);
+    }
+  }
+
+  /** Returns the number of cells of the memory. */
+  @Override
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns the memory at position {@code pos}.
+   *
+   * @throws VmException if {@code pos} is outside of the memory.
+   * @throws IllegalStateException if the memory has been closed.
+   */
+  @Override
+  public int getM(int pos) throws VmException {
+    IntBuffer cells = cells();
+    if (pos < 0 || pos >= size) {
+      throw outOfBounds(pos);
+    }
+    return cells.get(pos);
+  }
+
+  /**
+   * Sets the memory at position {@code pos}.
+   *
+   * @throws VmException if {@code pos} is outside of the memory.
+   * @throws IllegalStateException if the memory has been closed.
+   */
+  @Override
+  public void setM(int pos, int value) throws VmException {
+    IntBuffer cells = cells();
+    if (pos < 0 || pos >= size) {
+      throw outOfBounds(pos);
+    }
+    cells.put(pos, value);
+  }
+
+  /**
+   * Copies the {@code length} cells starting at position {@code pos} into {@code target}, starting
+   * at index {@code offset}.
+   *
+   * @throws VmException if any of the cells is outside of the memory.
+   * @throws IllegalStateException if the memory has been closed.
+   */
+  @Override
+  public void read(int pos, int[] target, int offset, int length) throws VmException {
+    IntBuffer cells = cells();
+    checkRange(pos, length);
+    IntBuffer view = cells.duplicate();
+    view.position(pos);
+    view.get(target, offset, length);
+  }
+
+  /**
+   * Copies {@code length} values from {@code source}, starting at index {@code offset}, into the
+   * memory starting at position {@code pos}.
+   *
+   * @throws VmException if any of the cells is outside of the memory.
+   * @throws IllegalStateException if the memory has been closed.
+   */
+  @Override
+  public void write(int pos, int[] source, int offset, int length) throws VmException {
+    IntBuffer cells = cells();
+    checkRange(pos, length);
+    IntBuffer view = cells.duplicate();
+    view.position(pos);
+    view.put(source, offset, length);
+  }
+
+  /**
+   * Copies the {@code length} cells of the main memory of {@code vm} starting at position {@code
+   * vmPos} into this memory, starting at position {@code pos}.
+   *
+   * @throws VmException if any of the cells is outside of either memory.
+   * @throws IllegalStateException if the memory has been closed.
+   */
+  public void copyFrom(SpookyVm vm, int vmPos, int pos, int length) throws VmException {
+    cells();
+    checkRange(pos, length);
+    checkRange(vm, vmPos, length);
+    int[] chunk = chunk();
+    for (int done = 0; done < length; done += chunk.length) {
+      int count = Math.min(chunk.length, length - done);
+      vm.readMemory(vmPos + done, chunk, 0, count);
+      write(pos + done, chunk, 0, count);
+    }
+  }
+
+  /**
+   * Copies the {@code length} cells of this memory starting at position {@code pos} into the main
+   * memory of {@code vm}, starting at position {@code vmPos}.
+   *
+   * @throws VmException if any of the cells is outside of either memory.
+   * @throws IllegalStateException if the memory has been closed.
+   */
+  public void copyTo(SpookyVm vm, int pos, int vmPos, int length) throws VmException {
+    cells();
+    checkRange(pos, length);
+    checkRange(vm, vmPos, length);
+    int[] chunk = chunk();
+    for (int done = 0; done < length; done += chunk.length) {
+      int count = Math.min(chunk.length, length - done);
+      read(pos + done, chunk, 0, count);
+      vm.writeMemory(vmPos + done, chunk, 0, count);
+    }
+  }
+
+  /**
+   * Releases the memory, after which it can no longer be accessed. Memory mapped from a file is
+   * written back to it first.
+   *
+   * <p>The buffer itself is freed once it is garbage collected, since buffers can not be freed
+   * explicitly.
+   *
+   * @throws IOException if the file could not be written or closed.
+   */
+  @Override
+  public void close() throws IOException {
+    if (cells == null) {
+      return;
+    }
+    cells = null;
+    if (channel != null) {
+      try {
+        mapped.force();
+      } finally {
+        channel.close();
+      }
+    }
+  }
+
+  private int[] chunk() {
+    if (chunk == null) {
+      chunk = new int[COPY_CHUNK];
+    }
+    return chunk;
+  }
+
+  private IntBuffer cells() {
+    if (cells == null) {
+      throw new IllegalStateException("Memory is closed");
+    }
+    return cells;
+  }
+
+  private void checkRange(int pos, int length) throws VmException {
+    if (length < 0) {
+      throw new IllegalArgumentException("Negative length " + length);
+    }
+    if (pos < 0 || pos > size - length) {
+      throw outOfBounds(pos < 0 ? pos : size);
+    }
+  }
+
+  /** Checks the range up front, so that copies that fault leave both memories unchanged. */
+  private static void checkRange(SpookyVm vm, int vmPos, int length) throws VmException {
+    if (vmPos < 0 || vmPos > vm.getMemorySize() - length) {
+      throw outOfBounds(vmPos < 0 ? vmPos : vm.getMemorySize());
+    }
+  }
+
+  private static VmException outOfBounds(int pos) {
+    return new VmException("Memory position " + pos + " is out of bounds");
+  }
+}
@@ -0,0 +1,254 @@
+package se.jsannemo.spooky.vm.jit;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** The code of a single JVM method under construction, with labels for branch targets. */
+final class Bytecode {
+
+  static final int ICONST_0 = 0x03;
+  static final int ICONST_1 = 0x04;
+  static final int LCONST_0 = 0x09;
+  static final int BIPUSH = 0x10;
+  static final int SIPUSH = 0x11;
+  static final int LDC_W = 0x13;
+  static final int LDC2_W = 0x14;
+  static final int ILOAD = 0x15;
+  static final int LLOAD = 0x16;
+  static final int ALOAD = 0x19;
+  static final int IALOAD = 0x2e;
+  static final int ISTORE = 0x36;
+  static final int LSTORE = 0x37;
+  static final int ASTORE = 0x3a;
+  static final int IASTORE = 0x4f;
+  static final int POP = 0x57;
+  static final int DUP = 0x59;
+  static final int DUP_X2 = 0x5b;
+  static final int IADD = 0x60;
+  static final int LADD = 0x61;
+  static final int ISUB = 0x64;
+  static final int LSUB = 0x65;
+  static final int IMUL = 0x68;
+  static final int IDIV = 0x6c;
+  static final int IREM = 0x70;
+  static final int IAND = 0x7e;
+  static final int IOR = 0x80;
+  static final int LCMP = 0x94;
+  static final int IFEQ = 0x99;
+  static final int IFNE = 0x9a;
+  static final int IFGE = 0x9c;
+  static final int IF_ICMPEQ = 0x9f;
+  static final int IF_ICMPNE = 0xa0;
+  static final int IF_ICMPLT = 0xa1;
+  static final int IF_ICMPLE = 0xa4;
+  static final int GOTO = 0xa7;
+  static final int LOOKUPSWITCH = 0xab;
+  static final int IRETURN = 0xac;
+  static final int RETURN = 0xb1;
+  static final int GETFIELD = 0xb4;
+  static final int PUTFIELD = 0xb5;
+  static final int INVOKEVIRTUAL = 0xb6;
+  static final int INVOKESPECIAL = 0xb7;
+  static final int INVOKESTATIC = 0xb8;
+
+  /** A position in the code, which may be used by branches before it is marked. */
+  static final class Label {
+    private int pos = -1;
+    // Pairs of the position of a branch instruction and the position of its offset operand.
+    private final List<int[]> uses = new ArrayList<>();
+  }
+
+  /** An entry of the exception table of the method. */
+  static final class Handler {
+    private final int start;
+    private final int end;
+    private final Label handler;
+    private final int type;
+
+    private Handler(int start, int end, Label handler, int type) {
+      this.start = start;
+      this.end = end;
+      this.handler = handler;
+      this.type = type;
+    }
+
+    int start() {
+      return start;
+    }
+
+    int end() {
+      return end;
+    }
+
+    int handler() {
+      return handler.pos;
+    }
+
+    int type() {
+      return type;
+    }
+  }
+
+  private final ClassFile classFile;
+  private final int maxStack;
+  private final int maxLocals;
+  private final List<Handler> handlers = new ArrayList<>();
+  private byte[] code = new byte[1024];
+  private int size;
+
+  Bytecode(ClassFile classFile, int maxStack, int maxLocals) {
+    this.classFile = classFile;
+    this.maxStack = maxStack;
+    this.maxLocals = maxLocals;
+  }
+
+  int size() {
+    return size;
+  }
+
+  int maxStack() {
+    return maxStack;
+  }
+
+  int maxLocals() {
+    return maxLocals;
+  }
+
+  List<Handler> handlers() {
+    return handlers;
+  }
+
+  byte[] toByteArray() {
+    return Arrays.copyOf(code, size);
+  }
+
+  /** Emits an instruction without operands. */
+  void op(int opcode) {
+    put1(opcode);
+  }
+
+  /** Emits an instruction operating on the local variable {@code local}. */
+  void local(int opcode, int local) {
+    put1(opcode);
+    put1(local);
+  }
+
+  /** Emits an instruction pushing the int {@code value}. */
+  void iconst(int value) {
+    if (-1 <= value && value <= 5) {
+      put1(ICONST_0 + value);
+    } else if (Byte.MIN_VALUE <= value && value <= Byte.MAX_VALUE) {
+      put1(BIPUSH);
+      put1(value);
+    } else if (Short.MIN_VALUE <= value && value <= Short.MAX_VALUE) {
+      put1(SIPUSH);
+      put2(value);
+    } else {
+      put1(LDC_W);
+      put2(classFile.integer(value));
+    }
+  }
+
+  /** Emits an instruction pushing the long {@code value}. */
+  void lconst(long value) {
+    if (value == 0 || value == 1) {
+      put1(LCONST_0 + (int) value);
+    } else {
+      put1(LDC2_W);
+      put2(classFile.longValue(value));
+    }
+  }
+
+  /** Emits a field access instruction. */
+  void field(int opcode, String owner, String name, String descriptor) {
+    put1(opcode);
+    put2(classFile.fieldRef(owner, name, descriptor));
+  }
+
+  /** Emits a method invocation instruction, other than {@code invokeinterface}. */
+  void invoke(int opcode, String owner, String name, String descriptor) {
+    put1(opcode);
+    put2(classFile.methodRef(owner, name, descriptor));
+  }
+
+  /** Emits a branch instruction to {@code target}. */
+  void jump(int opcode, Label target) {
+    int pos = size;
+    put1(opcode);
+    use(target, pos, 2);
+  }
+
+  /** Emits a {@code lookupswitch} jumping to {@code targets[i]} for {@code keys[i]}. */
+  void lookupswitch(int[] keys, Label[] targets, Label defaultTarget) {
+    int pos = size;
+    put1(LOOKUPSWITCH);
+    while (size % 4 != 0) {
+      put1(0);
+    }
+    use(defaultTarget, pos, 4);
+    put4(keys.length);
+    for (int i = 0; i < keys.length; i++) {
+      put4(keys[i]);
+      use(targets[i], pos, 4);
+    }
+  }
+
+  /** Marks the current position of the code with {@code label}. */
+  void mark(Label label) {
+    label.pos = size;
+    for (int[] use : label.uses) {
+      patch(use[1], use[2], size - use[0]);
+    }
+    label.uses.clear();
+  }
+
+  /**
+   * Adds an exception handler at {@code handler} for exceptions of class {@code type} thrown by
+   * the code in {@code [start, end)}.
+   */
+  void handler(int start, int end, Label handler, String type) {
+    if (start < end) {
+      handlers.add(new Handler(start, end, handler, classFile.classRef(type)));
+    }
+  }
+
+  private void use(Label target, int pos, int width) {
+    if (target.pos >= 0) {
+      int offset = target.pos - pos;
+      if (width == 2) {
+        put2(offset);
+      } else {
+        put4(offset);
+      }
+    } else {
+      target.uses.add(new int[] {pos, size, width});
+      for (int i = 0; i < width; i++) {
+        put1(0);
+      }
+    }
+  }
+
+  private void patch(int at, int width, int value) {
+    for (int i = 0; i < width; i++) {
+      code[at + i] = (byte) (value >> (8 * (width - i - 1)));
+    }
+  }
+
+  private void put1(int value) {
+    if (size == code.length) {
+      code = Arrays.copyOf(code, 2 * code.length);
+    }
+    code[size++] = (byte) value;
+  }
+
+  private void put2(int value) {
+    put1(value >> 8);
+    put1(value);
+  }
+
+  private void put4(int value) {
+    put2(value >> 16);
+    put2(value);
+  }
+}
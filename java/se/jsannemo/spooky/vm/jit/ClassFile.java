@@ -0,0 +1,235 @@
+package se.jsannemo.spooky.vm.jit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A minimal writer of JVM class files, supporting the constants and attributes needed by {@link
+ * JitCompiler}.
+ *
+ * <p>Classes are written in version 49 (Java 5) of the class file format, which does not require
+ * stack map frames for the verifier.
+ */
+final class ClassFile {
+
+  private static final int MAGIC = 0xCAFEBABE;
+  private static final int VERSION = 49;
+
+  static final int ACC_PUBLIC = 0x0001;
+  static final int ACC_FINAL = 0x0010;
+  static final int ACC_SUPER = 0x0020;
+
+  private static final int CONSTANT_UTF8 = 1;
+  private static final int CONSTANT_INTEGER = 3;
+  private static final int CONSTANT_LONG = 5;
+  private static final int CONSTANT_CLASS = 7;
+  private static final int CONSTANT_FIELDREF = 9;
+  private static final int CONSTANT_METHODREF = 10;
+  private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+  private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+  private final DataOutputStream poolOut = new DataOutputStream(pool);
+  private final Map<String, Integer> constants = new HashMap<>();
+  private int poolSize = 1;
+  private final List<byte[]> methods = new ArrayList<>();
+
+  int utf8(String value) {
+    Integer idx = constants.get("U" + value);
+    if (idx != null) {
+      return idx;
+    }
+    idx = addConstant("U" + value, 1);
+    write(CONSTANT_UTF8);
+    writeUtf(value);
+    return idx;
+  }
+
+  int classRef(String internalName) {
+    int name = utf8(internalName);
+    Integer idx = constants.get("C" + internalName);
+    if (idx != null) {
+      return idx;
+    }
+    idx = addConstant("C" + internalName, 1);
+    write(CONSTANT_CLASS);
+    writeShort(name);
+    return idx;
+  }
+
+  int integer(int value) {
+    Integer idx = constants.get("I" + value);
+    if (idx != null) {
+      return idx;
+    }
+    idx = addConstant("I" + value, 1);
+    write(CONSTANT_INTEGER);
+    writeInt(value);
+    return idx;
+  }
+
+  int longValue(long value) {
+    Integer idx = constants.get("J" + value);
+    if (idx != null) {
+      return idx;
+    }
+    // Longs take up two entries of the constant pool.
+    idx = addConstant("J" + value, 2);
+    write(CONSTANT_LONG);
+    writeInt((int) (value >>> 32));
+    writeInt((int) value);
+    return idx;
+  }
+
+  int fieldRef(String owner, String name, String descriptor) {
+    return memberRef(CONSTANT_FIELDREF, owner, name, descriptor);
+  }
+
+  int methodRef(String owner, String name, String descriptor) {
+    return memberRef(CONSTANT_METHODREF, owner, name, descriptor);
+  }
+
+  private int memberRef(int tag, String owner, String name, String descriptor) {
+    String key = tag + owner + "." + name + ":" + descriptor;
+    Integer idx = constants.get(key);
+    if (idx != null) {
+      return idx;
+    }
+    int ownerIdx = classRef(owner);
+    int nameAndType = nameAndType(name, descriptor);
+    idx = addConstant(key, 1);
+    write(tag);
+    writeShort(ownerIdx);
+    writeShort(nameAndType);
+    return idx;
+  }
+
+  private int nameAndType(String name, String descriptor) {
+    String key = "N" + name + ":" + descriptor;
+    Integer idx = constants.get(key);
+    if (idx != null) {
+      return idx;
+    }
+    int nameIdx = utf8(name);
+    int descriptorIdx = utf8(descriptor);
+    idx = addConstant(key, 1);
+    write(CONSTANT_NAME_AND_TYPE);
+    writeShort(nameIdx);
+    writeShort(descriptorIdx);
+    return idx;
+  }
+
+  private int addConstant(String key, int entries) {
+    int idx = poolSize;
+    poolSize += entries;
+    constants.put(key, idx);
+    return idx;
+  }
+
+  /** Adds a method with the code of {@code code} to the class. */
+  void addMethod(int access, String name, String descriptor, Bytecode code) {
+    int nameIdx = utf8(name);
+    int descriptorIdx = utf8(descriptor);
+    int codeIdx = utf8("Code");
+    byte[] bytes = code.toByteArray();
+    List<Bytecode.Handler> handlers = code.handlers();
+    ByteArrayOutputStream method = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(method);
+    try {
+      out.writeShort(access);
+      out.writeShort(nameIdx);
+      out.writeShort(descriptorIdx);
+      out.writeShort(1);
+      out.writeShort(codeIdx);
+      out.writeInt(12 + bytes.length + 8 * handlers.size());
+      out.writeShort(code.maxStack());
+      out.writeShort(code.maxLocals());
+      out.writeInt(bytes.length);
+      out.write(bytes);
+      out.writeShort(handlers.size());
+      for (Bytecode.Handler handler : handlers) {
+        out.writeShort(handler.start());
+        out.writeShort(handler.end());
+        out.writeShort(handler.handler());
+        out.writeShort(handler.type());
+      }
+      out.writeShort(0);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    methods.add(method.toByteArray());
+  }
+
+  /** Returns the class file of a class named {@code name} with the methods added so far. */
+  byte[] toByteArray(int access, String name, String superName, String... interfaces) {
+    int thisIdx = classRef(name);
+    int superIdx = classRef(superName);
+    int[] interfaceIdx = new int[interfaces.length];
+    for (int i = 0; i < interfaces.length; i++) {
+      interfaceIdx[i] = classRef(interfaces[i]);
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeInt(MAGIC);
+      out.writeShort(0);
+      out.writeShort(VERSION);
+      out.writeShort(poolSize);
+      poolOut.flush();
+      pool.writeTo(out);
+      out.writeShort(access);
+      out.writeShort(thisIdx);
+      out.writeShort(superIdx);
+      out.writeShort(interfaceIdx.length);
+      for (int idx : interfaceIdx) {
+        out.writeShort(idx);
+      }
+      out.writeShort(0);
+      out.writeShort(methods.size());
+      for (byte[] method : methods) {
+        out.write(method);
+      }
+      out.writeShort(0);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  private void write(int value) {
+    try {
+      poolOut.writeByte(value);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private void writeShort(int value) {
+    try {
+      poolOut.writeShort(value);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private void writeInt(int value) {
+    try {
+      poolOut.writeInt(value);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private void writeUtf(String value) {
+    try {
+      poolOut.writeUTF(value);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
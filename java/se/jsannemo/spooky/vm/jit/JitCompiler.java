@@ -0,0 +1,686 @@
+package se.jsannemo.spooky.vm.jit;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import se.jsannemo.spooky.vm.CodeCompiler;
+import se.jsannemo.spooky.vm.CompiledCode;
+import se.jsannemo.spooky.vm.code.ControlFlow;
+import se.jsannemo.spooky.vm.code.DecodedCode;
+import se.jsannemo.spooky.vm.code.Executable;
+import se.jsannemo.spooky.vm.jit.Bytecode.Label;
+
+/**
+ * A {@link CodeCompiler} translating Spooky instructions into JVM bytecode, so that the JVM in
+ * turn compiles hot Spooky code into native code.
+ *
+ * <p>Every compiled range of instructions becomes a class implementing {@link CompiledCode}. Its
+ * {@code execute} method starts with a switch over the instructions that execution can enter the
+ * range at, i.e. the starts of basic blocks, followed by the code of every block. A block first
+ * checks that the instruction limit allows executing all of its instructions, and then counts
+ * them all at once.
+ *
+ * <p>Memory is accessed directly in the memory array, without checking addresses. Instead, the
+ * bytecode of every instruction is guarded by exception handlers for invalid array accesses and
+ * divisions by zero, which return to the VM right before the instruction. The interpreter then
+ * executes the instruction again, reading from the data segment, allocating more memory or
+ * failing with the appropriate fault. This is valid since instructions write to memory as their
+ * last step.
+ *
+ * <p>Memory accesses are only tracked if requested, in which case the largest position accessed is
+ * kept in a local variable and only tracked once per block for constant positions.
+ *
+ * <p>Every class is defined in a class loader of its own, so that it is unloaded together with the
+ * VM using it.
+ */
+public final class JitCompiler implements CodeCompiler {
+
+  // HotSpot does not compile methods with more bytecode than this into native code, so ranges
+  // resulting in larger methods are split up.
+  private static final int MAX_METHOD_SIZE = 8000;
+
+  private static final String CLASS_NAME = "se/jsannemo/spooky/vm/jit/Compiled";
+  private static final String COMPILED_CODE = "se/jsannemo/spooky/vm/CompiledCode";
+  private static final String STATE = "se/jsannemo/spooky/vm/ExecutionState";
+  private static final String CALL_STACK = "se/jsannemo/spooky/vm/CallStack";
+
+  // Local variables of the compiled method.
+  private static final int THIS = 0;
+  private static final int STATE_ARG = 1;
+  private static final int MEMORY = 2;
+  private static final int IP = 3;
+  private static final int EXECUTED = 4;
+  private static final int LIMIT = 6;
+  private static final int MAX_USED = 8;
+  private static final int ADDRESS = 9;
+  private static final int TARGET = 10;
+  private static final int SUSPENDED = 11;
+  private static final int LOCALS = 12;
+  private static final int MAX_STACK = 8;
+
+  @Override
+  public CompiledCode compile(
+      Executable executable,
+      DecodedCode code,
+      int start,
+      int end,
+      int memoryCells,
+      boolean trackMemory) {
+    return compileRange(code, ControlFlow.analyze(code), start, end, trackMemory);
+  }
+
+  private static CompiledCode compileRange(
+      DecodedCode code, ControlFlow flow, int start, int end, boolean trackMemory) {
+    byte[] classFile = new Translation(code, flow, start, end, trackMemory).translate();
+    if (classFile != null) {
+      return load(classFile);
+    }
+    if (end - start <= 1) {
+      return null;
+    }
+    int split = splitPoint(flow, start, end);
+    CompiledCode low = compileRange(code, flow, start, split, trackMemory);
+    CompiledCode high = compileRange(code, flow, split, end, trackMemory);
+    if (low == null && high == null) {
+      return null;
+    }
+    return new SplitCode(start, split, end, low, high);
+  }
+
+  /** Returns the start of the block closest to the middle of the range, if any. */
+  private static int splitPoint(ControlFlow flow, int start, int end) {
+    int mid = start + (end - start) / 2;
+    for (int dist = 0; dist < end - start; dist++) {
+      if (start < mid - dist && flow.isBlockStart(mid - dist)) {
+        return mid - dist;
+      }
+      if (mid + dist < end && flow.isBlockStart(mid + dist)) {
+        return mid + dist;
+      }
+    }
+    return mid;
+  }
+
+  private static CompiledCode load(byte[] classFile) {
+    Class<?> compiled = new CodeLoader().define(classFile);
+    try {
+      return (CompiledCode) compiled.getDeclaredConstructor().newInstance();
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("Could not instantiate compiled code", e);
+    }
+  }
+
+  private static final class CodeLoader extends ClassLoader {
+    CodeLoader() {
+      super(JitCompiler.class.getClassLoader());
+    }
+
+    Class<?> define(byte[] classFile) {
+      return defineClass(CLASS_NAME.replace('/', '.'), classFile, 0, classFile.length);
+    }
+  }
+
+  /** The translation of a single range of instructions into a class. */
+  private static final class Translation {
+    private final int[] ins;
+    private final int[] data;
+    private final boolean relocated;
+    private final int start;
+    private final int end;
+    private final boolean trackMemory;
+
+    private final ClassFile classFile = new ClassFile();
+    private final Bytecode code = new Bytecode(classFile, MAX_STACK, LOCALS);
+    private final Label[] blocks;
+    private final Label exit = new Label();
+    // Code leaving the range, by the instruction execution continues at.
+    private final Map<Integer, Label> exits = new TreeMap<>();
+    // The exception handlers of instructions, with the instruction, its distance to the end of its
+    // block and whether the handler is entered with an exception on the stack.
+    private final List<Label> faultHandlers = new ArrayList<>();
+    private final List<int[]> faults = new ArrayList<>();
+    // The largest constant memory position accessed so far in the current block.
+    private int trackedPosition;
+
+    Translation(DecodedCode decoded, ControlFlow flow, int start, int end, boolean trackMemory) {
+      this.ins = decoded.code();
+      this.data = decoded.data();
+      this.relocated = decoded.isRelocated();
+      this.start = start;
+      this.end = end;
+      this.trackMemory = trackMemory;
+      this.blocks = new Label[end - start];
+      for (int ip = start; ip < end; ip++) {
+        if (ip == start || flow.isBlockStart(ip)) {
+          blocks[ip - start] = new Label();
+        }
+      }
+    }
+
+    /** Returns the translated class, or {@code null} if the range could not be translated. */
+    byte[] translate() {
+      Bytecode init = new Bytecode(classFile, 1, 1);
+      init.local(Bytecode.ALOAD, THIS);
+      init.invoke(Bytecode.INVOKESPECIAL, "java/lang/Object", "<init>", "()V");
+      init.op(Bytecode.RETURN);
+      classFile.addMethod(ClassFile.ACC_PUBLIC, "<init>", "()V", init);
+
+      emitLoadMemory();
+      code.local(Bytecode.ALOAD, STATE_ARG);
+      code.field(Bytecode.GETFIELD, STATE, "ip", "I");
+      code.local(Bytecode.ISTORE, IP);
+      code.local(Bytecode.ALOAD, STATE_ARG);
+      code.field(Bytecode.GETFIELD, STATE, "executed", "J");
+      code.local(Bytecode.LSTORE, EXECUTED);
+      code.local(Bytecode.ALOAD, STATE_ARG);
+      code.field(Bytecode.GETFIELD, STATE, "limit", "J");
+      code.local(Bytecode.LSTORE, LIMIT);
+      emitLoadMaxUsed();
+      Label dispatch = new Label();
+      code.mark(dispatch);
+      emitDispatch();
+
+      int blockStart = start;
+      for (int ip = start; ip < end; ip++) {
+        if (blocks[ip - start] != null) {
+          blockStart = ip;
+          emitBlockStart(ip, blockEnd(ip) - ip);
+        }
+        int blockLength = blockEnd(blockStart) - blockStart;
+        if (!emitInstruction(ip, blockLength - (ip - blockStart), dispatch)) {
+          return null;
+        }
+      }
+      code.jump(Bytecode.GOTO, exitTo(end));
+
+      for (Map.Entry<Integer, Label> target : exits.entrySet()) {
+        code.mark(target.getValue());
+        code.iconst(target.getKey());
+        code.local(Bytecode.ISTORE, IP);
+        code.jump(Bytecode.GOTO, exit);
+      }
+      for (int i = 0; i < faults.size(); i++) {
+        // Exit right before the faulting instruction, undoing the counting of the instructions
+        // from it to the end of its block.
+        code.mark(faultHandlers.get(i));
+        if (faults.get(i)[2] != 0) {
+          code.op(Bytecode.POP);
+        }
+        code.iconst(faults.get(i)[0]);
+        code.local(Bytecode.ISTORE, IP);
+        code.local(Bytecode.LLOAD, EXECUTED);
+        code.lconst(faults.get(i)[1]);
+        code.op(Bytecode.LSUB);
+        code.local(Bytecode.LSTORE, EXECUTED);
+        code.jump(Bytecode.GOTO, exit);
+      }
+      code.mark(exit);
+      emitSaveState();
+      code.op(Bytecode.ICONST_0);
+      code.op(Bytecode.IRETURN);
+
+      if (code.size() > MAX_METHOD_SIZE) {
+        return null;
+      }
+      classFile.addMethod(ClassFile.ACC_PUBLIC, "execute", "(L" + STATE + ";)Z", code);
+      return classFile.toByteArray(
+          ClassFile.ACC_PUBLIC | ClassFile.ACC_FINAL | ClassFile.ACC_SUPER,
+          CLASS_NAME,
+          "java/lang/Object",
+          COMPILED_CODE);
+    }
+
+    private void emitDispatch() {
+      List<Integer> entries = new ArrayList<>();
+      for (int ip = start; ip < end; ip++) {
+        if (blocks[ip - start] != null) {
+          entries.add(ip);
+        }
+      }
+      int[] keys = new int[entries.size()];
+      Label[] targets = new Label[entries.size()];
+      for (int i = 0; i < keys.length; i++) {
+        keys[i] = entries.get(i);
+        targets[i] = blocks[keys[i] - start];
+      }
+      code.local(Bytecode.ILOAD, IP);
+      code.lookupswitch(keys, targets, exit);
+    }
+
+    private int blockEnd(int blockStart) {
+      int ip = blockStart + 1;
+      while (ip < end && blocks[ip - start] == null) {
+        ip++;
+      }
+      return ip;
+    }
+
+    /** Emits the check and counting of the {@code length} instructions of a block. */
+    private void emitBlockStart(int ip, int length) {
+      code.mark(blocks[ip - start]);
+      Label enoughBudget = new Label();
+      code.local(Bytecode.LLOAD, LIMIT);
+      code.local(Bytecode.LLOAD, EXECUTED);
+      code.op(Bytecode.LSUB);
+      code.lconst(length);
+      code.op(Bytecode.LCMP);
+      code.jump(Bytecode.IFGE, enoughBudget);
+      code.jump(Bytecode.GOTO, exitTo(ip));
+      code.mark(enoughBudget);
+      code.local(Bytecode.LLOAD, EXECUTED);
+      code.lconst(length);
+      code.op(Bytecode.LADD);
+      code.local(Bytecode.LSTORE, EXECUTED);
+      trackedPosition = -1;
+    }
+
+    /**
+     * Emits the instruction at {@code ip}, where {@code remaining} instructions including it are
+     * left in its block.
+     *
+     * @return whether the instruction could be translated.
+     */
+    private boolean emitInstruction(int ip, int remaining, Label dispatch) {
+      int pc = ip * DecodedCode.STRIDE;
+      int codeStart = code.size();
+      int op = ins[pc];
+      switch (op) {
+        case DecodedCode.MOV:
+          beginStore(pc);
+          emitLoad(pc + DecodedCode.OP1_BASE);
+          endStore(pc);
+          break;
+        case DecodedCode.CONST:
+          beginStore(pc);
+          code.iconst(ins[pc + DecodedCode.IMMEDIATE]);
+          endStore(pc);
+          break;
+        case DecodedCode.ADD:
+          emitArithmetic(pc, Bytecode.IADD);
+          break;
+        case DecodedCode.SUB:
+          emitArithmetic(pc, Bytecode.ISUB);
+          break;
+        case DecodedCode.MUL:
+          emitArithmetic(pc, Bytecode.IMUL);
+          break;
+        case DecodedCode.DIV:
+          emitArithmetic(pc, Bytecode.IDIV);
+          break;
+        case DecodedCode.MOD:
+          emitArithmetic(pc, Bytecode.IREM);
+          break;
+        case DecodedCode.BITAND:
+          emitArithmetic(pc, Bytecode.IAND);
+          break;
+        case DecodedCode.BITOR:
+          emitArithmetic(pc, Bytecode.IOR);
+          break;
+        case DecodedCode.LT:
+          emitComparison(pc, Bytecode.IF_ICMPLT);
+          break;
+        case DecodedCode.LEQ:
+          emitComparison(pc, Bytecode.IF_ICMPLE);
+          break;
+        case DecodedCode.EQ:
+          emitComparison(pc, Bytecode.IF_ICMPEQ);
+          break;
+        case DecodedCode.NEQ:
+          emitComparison(pc, Bytecode.IF_ICMPNE);
+          break;
+        case DecodedCode.JMP:
+        case DecodedCode.JMPN:
+          {
+            Label target = jumpTarget(ins[pc + DecodedCode.IMMEDIATE]);
+            Integer flag = DecodedCode.constantValue(ins, pc + DecodedCode.OP1_BASE, data);
+            if (flag == null) {
+              emitLoad(pc + DecodedCode.OP1_BASE);
+              code.jump(op == DecodedCode.JMP ? Bytecode.IFEQ : Bytecode.IFNE, target);
+            } else if ((op == DecodedCode.JMP) == (flag == 0)) {
+              code.jump(Bytecode.GOTO, target);
+            }
+            break;
+          }
+        case DecodedCode.JMPADR:
+          if (relocated) {
+            code.local(Bytecode.ALOAD, STATE_ARG);
+            emitLoad(pc + DecodedCode.OP1_BASE);
+            code.invoke(Bytecode.INVOKEVIRTUAL, STATE, "relocate", "(I)I");
+          } else {
+            emitLoad(pc + DecodedCode.OP1_BASE);
+          }
+          code.local(Bytecode.ISTORE, IP);
+          code.jump(Bytecode.GOTO, dispatch);
+          break;
+        case DecodedCode.EXTERN:
+          emitSyncState(ip + 1, remaining - 1);
+          code.local(Bytecode.ALOAD, STATE_ARG);
+          code.iconst(ins[pc + DecodedCode.IMMEDIATE]);
+          code.invoke(Bytecode.INVOKEVIRTUAL, STATE, "callExtern", "(I)Z");
+          emitLoadMemory();
+          emitLoadMaxUsed();
+          code.jump(Bytecode.IFNE, exitBefore(ip + 1, remaining - 1));
+          // Faults thrown by externs are not handled by re-executing the instruction.
+          return true;
+        case DecodedCode.HALT:
+          emitSyncState(ip + 1, remaining - 1);
+          code.op(Bytecode.ICONST_1);
+          code.op(Bytecode.IRETURN);
+          return true;
+        case DecodedCode.CALL:
+          // A full call stack faults in the interpreter. Since the stack can not hold any calls if
+          // the memory is empty, the stack pointer exists whenever it is moved.
+          emitCallStack("isFull", "()Z");
+          code.jump(Bytecode.IFNE, exitBefore(ip, remaining));
+          emitCallStack(null, null);
+          code.iconst(ip + 1);
+          code.iconst(ins[pc + DecodedCode.FRAME]);
+          code.invoke(Bytecode.INVOKEVIRTUAL, CALL_STACK, "push", "(II)V");
+          code.iconst(ins[pc + DecodedCode.FRAME]);
+          emitMoveStackPointer(Bytecode.IADD);
+          code.jump(Bytecode.GOTO, jumpTarget(ins[pc + DecodedCode.IMMEDIATE]));
+          return true;
+        case DecodedCode.RET:
+          emitCallStack("isEmpty", "()Z");
+          code.jump(Bytecode.IFNE, exitBefore(ip, remaining));
+          emitCallStack("frame", "()I");
+          emitMoveStackPointer(Bytecode.ISUB);
+          emitCallStack("pop", "()I");
+          code.local(Bytecode.ISTORE, IP);
+          code.jump(Bytecode.GOTO, dispatch);
+          return true;
+        case DecodedCode.LTJMP:
+          emitComparisonJump(pc, Bytecode.IF_ICMPLT);
+          break;
+        case DecodedCode.LEQJMP:
+          emitComparisonJump(pc, Bytecode.IF_ICMPLE);
+          break;
+        case DecodedCode.EQJMP:
+          emitComparisonJump(pc, Bytecode.IF_ICMPEQ);
+          break;
+        case DecodedCode.NEQJMP:
+          emitComparisonJump(pc, Bytecode.IF_ICMPNE);
+          break;
+        case DecodedCode.ADDSP:
+          emitAdjustStackPointer(pc, ins[pc + DecodedCode.IMMEDIATE], Bytecode.IADD);
+          // Fused stack pointer adjustments only write to memory cells that exist.
+          return true;
+        case DecodedCode.SUBSP:
+          emitAdjustStackPointer(pc, ins[pc + DecodedCode.IMMEDIATE], Bytecode.ISUB);
+          return true;
+        case DecodedCode.EXTERNSP:
+          emitAdjustStackPointer(pc, ins[pc + DecodedCode.FRAME], Bytecode.IADD);
+          emitSyncState(ip + 1, remaining - 1);
+          code.local(Bytecode.ALOAD, STATE_ARG);
+          code.iconst(ins[pc + DecodedCode.IMMEDIATE]);
+          code.invoke(Bytecode.INVOKEVIRTUAL, STATE, "callExtern", "(I)Z");
+          code.local(Bytecode.ISTORE, SUSPENDED);
+          emitLoadMemory();
+          emitLoadMaxUsed();
+          emitAdjustStackPointer(pc, ins[pc + DecodedCode.FRAME], Bytecode.ISUB);
+          code.local(Bytecode.ILOAD, SUSPENDED);
+          code.jump(Bytecode.IFNE, exitBefore(ip + 1, remaining - 1));
+          return true;
+        default:
+          return false;
+      }
+      Label handler = new Label();
+      code.handler(codeStart, code.size(), handler, "java/lang/ArrayIndexOutOfBoundsException");
+      if (op == DecodedCode.DIV || op == DecodedCode.MOD) {
+        code.handler(codeStart, code.size(), handler, "java/lang/ArithmeticException");
+      }
+      faultHandlers.add(handler);
+      faults.add(new int[] {ip, remaining, 1});
+      return true;
+    }
+
+    /**
+     * Returns a label exiting right before the instruction at {@code ip}, where {@code remaining}
+     * instructions including it are left in its block, so that the interpreter executes it.
+     */
+    private Label exitBefore(int ip, int remaining) {
+      Label label = new Label();
+      faultHandlers.add(label);
+      faults.add(new int[] {ip, remaining, 0});
+      return label;
+    }
+
+    /**
+     * Pushes the call stack of the state, and calls its method {@code name} with the descriptor
+     * {@code descriptor} on it if non-null.
+     */
+    private void emitCallStack(String name, String descriptor) {
+      code.local(Bytecode.ALOAD, STATE_ARG);
+      code.field(Bytecode.GETFIELD, STATE, "calls", "L" + CALL_STACK + ";");
+      if (name != null) {
+        code.invoke(Bytecode.INVOKEVIRTUAL, CALL_STACK, name, descriptor);
+      }
+    }
+
+    /** Adds the value on top of the stack to or subtracts it from the stack pointer. */
+    private void emitMoveStackPointer(int opcode) {
+      code.local(Bytecode.ISTORE, ADDRESS);
+      code.local(Bytecode.ALOAD, MEMORY);
+      code.op(Bytecode.ICONST_0);
+      emitConstantLoad(0);
+      code.local(Bytecode.ILOAD, ADDRESS);
+      code.op(opcode);
+      code.op(Bytecode.IASTORE);
+    }
+
+    private void emitArithmetic(int pc, int opcode) {
+      beginStore(pc);
+      emitLoad(pc + DecodedCode.OP1_BASE);
+      emitLoad(pc + DecodedCode.OP2_BASE);
+      code.op(opcode);
+      endStore(pc);
+    }
+
+    private void emitComparison(int pc, int opcode) {
+      beginStore(pc);
+      emitCondition(pc, opcode);
+      endStore(pc);
+    }
+
+    /** Emits a comparison fused with a jump taken if its result, which is still stored, is 0. */
+    private void emitComparisonJump(int pc, int opcode) {
+      beginStore(pc);
+      emitCondition(pc, opcode);
+      // Keep the result below the memory array and index that it is stored at.
+      code.op(Bytecode.DUP_X2);
+      endStore(pc);
+      code.jump(Bytecode.IFEQ, jumpTarget(ins[pc + DecodedCode.IMMEDIATE]));
+    }
+
+    /** Pushes 1 if the operands of the instruction at {@code pc} satisfy the comparison, else 0. */
+    private void emitCondition(int pc, int opcode) {
+      emitLoad(pc + DecodedCode.OP1_BASE);
+      emitLoad(pc + DecodedCode.OP2_BASE);
+      Label isTrue = new Label();
+      Label done = new Label();
+      code.jump(opcode, isTrue);
+      code.op(Bytecode.ICONST_0);
+      code.jump(Bytecode.GOTO, done);
+      code.mark(isTrue);
+      code.op(Bytecode.ICONST_1);
+      code.mark(done);
+    }
+
+    /**
+     * Emits a stack pointer adjustment of the superinstruction at {@code pc}, storing {@code value}
+     * to its target cell and adding it to or subtracting it from the stack pointer with {@code
+     * opcode}.
+     */
+    private void emitAdjustStackPointer(int pc, int value, int opcode) {
+      beginStore(pc);
+      code.iconst(value);
+      endStore(pc);
+      code.local(Bytecode.ALOAD, MEMORY);
+      code.op(Bytecode.ICONST_0);
+      emitConstantLoad(0);
+      code.iconst(value);
+      code.op(opcode);
+      code.op(Bytecode.IASTORE);
+    }
+
+    /** Pushes the memory array and the index of the target address of the instruction. */
+    private void beginStore(int pc) {
+      code.local(Bytecode.ALOAD, MEMORY);
+      emitAddress(pc + DecodedCode.TARGET_BASE);
+      if (trackMemory && ins[pc + DecodedCode.TARGET_BASE] != DecodedCode.ABSOLUTE) {
+        code.op(Bytecode.DUP);
+        code.local(Bytecode.ISTORE, TARGET);
+      }
+    }
+
+    /**
+     * Stores the value on top of the stack at the target address pushed by {@link #beginStore}.
+     *
+     * <p>The write is tracked only after the store, which would fault on invalid positions.
+     */
+    private void endStore(int pc) {
+      code.op(Bytecode.IASTORE);
+      if (!trackMemory) {
+        return;
+      }
+      if (ins[pc + DecodedCode.TARGET_BASE] == DecodedCode.ABSOLUTE) {
+        emitTrackConstant(ins[pc + DecodedCode.TARGET_OFFSET]);
+      } else {
+        code.local(Bytecode.ILOAD, TARGET);
+        emitTrack();
+      }
+    }
+
+    /** Pushes the value of the address at position {@code pos} of the decoded code. */
+    private void emitLoad(int pos) {
+      Integer constant = DecodedCode.constantValue(ins, pos, data);
+      if (constant != null) {
+        code.iconst(constant);
+        return;
+      }
+      if (ins[pos] == DecodedCode.ABSOLUTE || ins[pos] == DecodedCode.INVALID_BASE) {
+        // Reading from an invalid base faults just like reading from an invalid address.
+        emitConstantLoad(ins[pos + 1]);
+        return;
+      }
+      emitAddress(pos);
+      code.local(Bytecode.ISTORE, ADDRESS);
+      code.local(Bytecode.ALOAD, MEMORY);
+      code.local(Bytecode.ILOAD, ADDRESS);
+      code.op(Bytecode.IALOAD);
+      if (trackMemory) {
+        code.local(Bytecode.ILOAD, ADDRESS);
+        emitTrack();
+      }
+    }
+
+    /** Pushes the memory position that the address at position {@code pos} points to. */
+    private void emitAddress(int pos) {
+      int mode = ins[pos];
+      if (mode == DecodedCode.ABSOLUTE) {
+        code.iconst(ins[pos + 1]);
+        return;
+      }
+      if (mode == DecodedCode.INVALID_BASE) {
+        emitConstantLoad(ins[pos + 1]);
+        return;
+      }
+      emitConstantLoad(mode == DecodedCode.SP_RELATIVE ? 0 : mode);
+      if (ins[pos + 1] != 0) {
+        code.iconst(ins[pos + 1]);
+        code.op(Bytecode.IADD);
+      }
+    }
+
+    /** Pushes the value of the constant memory position {@code position}. */
+    private void emitConstantLoad(int position) {
+      code.local(Bytecode.ALOAD, MEMORY);
+      code.iconst(position);
+      code.op(Bytecode.IALOAD);
+      if (trackMemory) {
+        emitTrackConstant(position);
+      }
+    }
+
+    /** Tracks an access to the memory position on top of the stack, popping it. */
+    private void emitTrack() {
+      code.local(Bytecode.ILOAD, MAX_USED);
+      code.invoke(Bytecode.INVOKESTATIC, "java/lang/Math", "max", "(II)I");
+      code.local(Bytecode.ISTORE, MAX_USED);
+    }
+
+    /** Tracks an access to the constant memory position {@code position}. */
+    private void emitTrackConstant(int position) {
+      if (position > trackedPosition) {
+        code.iconst(position);
+        emitTrack();
+        trackedPosition = position;
+      }
+    }
+
+    /** Loads the memory array of the state, which externs may replace when allocating memory. */
+    private void emitLoadMemory() {
+      code.local(Bytecode.ALOAD, STATE_ARG);
+      code.field(Bytecode.GETFIELD, STATE, "memory", "[I");
+      code.local(Bytecode.ASTORE, MEMORY);
+    }
+
+    /** Reads the largest memory position accessed from the state, if memory is tracked. */
+    private void emitLoadMaxUsed() {
+      if (trackMemory) {
+        code.local(Bytecode.ALOAD, STATE_ARG);
+        code.field(Bytecode.GETFIELD, STATE, "maxMemoryUsed", "I");
+        code.local(Bytecode.ISTORE, MAX_USED);
+      }
+    }
+
+    private Label jumpTarget(int ip) {
+      if (start <= ip && ip < end && blocks[ip - start] != null) {
+        return blocks[ip - start];
+      }
+      return exitTo(ip);
+    }
+
+    private Label exitTo(int ip) {
+      return exits.computeIfAbsent(ip, unused -> new Label());
+    }
+
+    /**
+     * Writes the execution state to the state object, for execution continuing at {@code ip} with
+     * {@code uncounted} instructions of the current block not yet executed.
+     */
+    private void emitSyncState(int ip, int uncounted) {
+      code.local(Bytecode.ALOAD, STATE_ARG);
+      code.iconst(ip);
+      code.field(Bytecode.PUTFIELD, STATE, "ip", "I");
+      code.local(Bytecode.ALOAD, STATE_ARG);
+      code.local(Bytecode.LLOAD, EXECUTED);
+      if (uncounted != 0) {
+        code.lconst(uncounted);
+        code.op(Bytecode.LSUB);
+      }
+      code.field(Bytecode.PUTFIELD, STATE, "executed", "J");
+      emitSaveMaxUsed();
+    }
+
+    private void emitSaveState() {
+      code.local(Bytecode.ALOAD, STATE_ARG);
+      code.local(Bytecode.ILOAD, IP);
+      code.field(Bytecode.PUTFIELD, STATE, "ip", "I");
+      code.local(Bytecode.ALOAD, STATE_ARG);
+      code.local(Bytecode.LLOAD, EXECUTED);
+      code.field(Bytecode.PUTFIELD, STATE, "executed", "J");
+      emitSaveMaxUsed();
+    }
+
+    /** Writes the largest memory position accessed to the state, if memory is tracked. */
+    private void emitSaveMaxUsed() {
+      if (trackMemory) {
+        code.local(Bytecode.ALOAD, STATE_ARG);
+        code.local(Bytecode.ILOAD, MAX_USED);
+        code.field(Bytecode.PUTFIELD, STATE, "maxMemoryUsed", "I");
+      }
+    }
+  }
+}
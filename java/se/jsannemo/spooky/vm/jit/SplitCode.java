@@ -0,0 +1,44 @@
+package se.jsannemo.spooky.vm.jit;
+
+import se.jsannemo.spooky.vm.CompiledCode;
+import se.jsannemo.spooky.vm.ExecutionState;
+import se.jsannemo.spooky.vm.VmException;
+
+/**
+ * The code of a range of instructions that was compiled as two separate halves, either of which
+ * may have failed to compile.
+ */
+final class SplitCode implements CompiledCode {
+
+  private final int start;
+  private final int split;
+  private final int end;
+  private final CompiledCode low;
+  private final CompiledCode high;
+
+  SplitCode(int start, int split, int end, CompiledCode low, CompiledCode high) {
+    this.start = start;
+    this.split = split;
+    this.end = end;
+    this.low = low;
+    this.high = high;
+  }
+
+  @Override
+  public boolean execute(ExecutionState state) throws VmException {
+    while (start <= state.ip && state.ip < end) {
+      CompiledCode code = state.ip < split ? low : high;
+      if (code == null) {
+        return false;
+      }
+      long before = state.executed;
+      if (code.execute(state)) {
+        return true;
+      }
+      if (state.executed == before) {
+        return false;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,21 @@
+package se.jsannemo.spooky.vm.sched;
+
+import java.util.concurrent.CompletableFuture;
+import se.jsannemo.spooky.vm.SpookyVm;
+import se.jsannemo.spooky.vm.VmException;
+
+/**
+ * An external call whose result may not be available when it returns, such as one waiting for I/O.
+ *
+ * <p>A VM running on a {@link VmScheduler} that calls an asynchronous extern is suspended until the
+ * future completes, without holding up a thread. See {@link VmScheduler#async(int,
+ * AsyncExternCall)}.
+ */
+@FunctionalInterface
+public interface AsyncExternCall {
+  /**
+   * Starts the call, reading its arguments from {@code vm}, and returns a future of its return
+   * value. The VM must not be accessed after this method returns.
+   */
+  CompletableFuture<Integer> call(SpookyVm vm) throws VmException;
+}
@@ -0,0 +1,95 @@
+package se.jsannemo.spooky.vm.sched;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import se.jsannemo.spooky.vm.RunStatus;
+import se.jsannemo.spooky.vm.SpookyVm;
+
+/**
+ * Runs every submitted {@link SpookyVm} to completion on a thread of its own, so that its externs
+ * may block on I/O.
+ *
+ * <p>Where the JVM supports them, the threads are virtual threads: a VM blocked in an extern then
+ * only holds a small stack rather than an operating system thread, and hundreds of thousands of
+ * VMs can wait at the same time. The VM holds no monitors while calling externs, so blocking does
+ * not pin the carrier thread. On older JVMs, a platform thread is started for every VM instead.
+ *
+ * <p>Unlike {@link VmScheduler}, VMs are not preempted; CPU-bound VMs should be limited with fuel
+ * or a time limit.
+ */
+public final class VirtualThreadRunner implements AutoCloseable {
+
+  private final ExecutorService executor;
+  private final boolean virtual;
+
+  /** Creates a runner using virtual threads if available, or platform threads otherwise. */
+  public VirtualThreadRunner() {
+    ExecutorService virtualExecutor = newVirtualThreadPerTaskExecutor();
+    this.virtual = virtualExecutor != null;
+    this.executor = virtual ? virtualExecutor : Executors.newCachedThreadPool();
+  }
+
+  /** Creates a runner that runs every VM as a task of {@code executor}. */
+  public VirtualThreadRunner(ExecutorService executor) {
+    this.executor = executor;
+    this.virtual = false;
+  }
+
+  /**
+   * Returns {@code Executors.newVirtualThreadPerTaskExecutor()}, or {@code null} if the JVM does not
+   * support virtual threads. It is looked up dynamically since the project targets Java 11.
+   *
+   * <p>On Java 19 and 20 the method exists but is a preview API, which throws {@link
+   * UnsupportedOperationException} unless preview features are enabled, so failures to invoke it
+   * count as missing support too.
+   */
+  private static ExecutorService newVirtualThreadPerTaskExecutor() {
+    try {
+      MethodHandle factory =
+          MethodHandles.publicLookup()
+              .findStatic(
+                  Executors.class,
+                  "newVirtualThreadPerTaskExecutor",
+                  MethodType.methodType(ExecutorService.class));
+      return (ExecutorService) factory.invoke();
+    } catch (Error e) {
+      throw e;
+    } catch (Throwable e) {
+      return null;
+    }
+  }
+
+  /** Returns whether VMs run on virtual threads. */
+  public boolean usesVirtualThreads() {
+    return virtual;
+  }
+
+  /**
+   * Runs {@code vm} until it stops, returning a future that completes with the status it stopped
+   * with, or exceptionally if an extern threw an unchecked exception.
+   */
+  public CompletableFuture<RunStatus> submit(SpookyVm vm) {
+    return CompletableFuture.supplyAsync(vm::runUntilHalt, executor);
+  }
+
+  /**
+   * Stops accepting VMs, and waits at most {@code timeout} for the running ones to stop.
+   *
+   * @return whether all VMs stopped in time.
+   */
+  public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+    executor.shutdown();
+    return executor.awaitTermination(timeout, unit);
+  }
+
+  /** Stops the runner, interrupting the threads of VMs that are still running. */
+  @Override
+  public void close() {
+    executor.shutdownNow();
+  }
+}
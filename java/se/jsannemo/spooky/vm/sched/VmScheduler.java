@@ -0,0 +1,241 @@
+package se.jsannemo.spooky.vm.sched;
+
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import se.jsannemo.spooky.vm.CallingConvention;
+import se.jsannemo.spooky.vm.ExternCall;
+import se.jsannemo.spooky.vm.RunStatus;
+import se.jsannemo.spooky.vm.SpookyVm;
+import se.jsannemo.spooky.vm.VmException;
+
+/**
+ * Runs many {@link SpookyVm}s concurrently on a fixed number of threads.
+ *
+ * <p>Every submitted VM runs for a quantum of instructions at a time, after which it is queued
+ * again behind the VMs already waiting, so that long-running programs can not starve others. The
+ * threads form a work-stealing pool: every thread keeps its own FIFO queue of VMs, and idle threads
+ * take VMs from the queues of busy ones.
+ *
+ * <p>A VM must not be used by anything else while it is scheduled. Its externs are called on the
+ * threads of the scheduler, and should not block for long since that holds up the whole thread.
+ * Externs that wait for I/O should instead be {@link #async(int, AsyncExternCall) asynchronous},
+ * suspending the VM until their result is available.
+ *
+ * <p>Shutting the scheduler down lets the VMs already scheduled run until they stop, for at most a
+ * given timeout. The futures of VMs that still have not stopped are then cancelled, so that every
+ * future completes.
+ */
+public final class VmScheduler implements AutoCloseable {
+
+  /** The default number of instructions a VM of priority 1 runs before others get to run. */
+  public static final long DEFAULT_QUANTUM = 100_000;
+
+  private final ForkJoinPool pool;
+  private final long quantum;
+  /** The task whose VM the current thread is running, if any. */
+  private final ThreadLocal<Task> running = new ThreadLocal<>();
+  /** The tasks whose futures have not yet completed. */
+  private final Set<Task> unfinished = ConcurrentHashMap.newKeySet();
+  /** Whether new VMs may be submitted, which they may until the scheduler is shut down. */
+  private volatile boolean accepting = true;
+
+  /**
+   * Creates a scheduler running VMs on {@code parallelism} threads, {@code quantum} instructions
+   * at a time.
+   */
+  public VmScheduler(int parallelism, long quantum) {
+    if (quantum <= 0) {
+      throw new IllegalArgumentException("Non-positive quantum " + quantum);
+    }
+    this.pool =
+        new ForkJoinPool(
+            parallelism,
+            ForkJoinPool.defaultForkJoinWorkerThreadFactory,
+            /* handler= */ null,
+            /* asyncMode= */ true);
+    this.quantum = quantum;
+  }
+
+  /** Creates a scheduler with one thread per available processor and the default quantum. */
+  public VmScheduler() {
+    this(Runtime.getRuntime().availableProcessors(), DEFAULT_QUANTUM);
+  }
+
+  /** Schedules {@code vm} with priority 1. See {@link #submit(SpookyVm, int)}. */
+  public CompletableFuture<RunStatus> submit(SpookyVm vm) {
+    return submit(vm, 1);
+  }
+
+  /**
+   * Schedules {@code vm} to run until it stops, returning a future that completes with the status
+   * it stopped with: {@link RunStatus#HALTED}, {@link RunStatus#FAULTED}, {@link
+   * RunStatus#OUT_OF_FUEL} or {@link RunStatus#DEADLINE_EXCEEDED}.
+   *
+   * <p>Every time the VM is run, it executes {@code priority} quanta of instructions, so that its
+   * share of the threads is proportional to its priority. Cancelling the future stops the VM at the
+   * end of its current quantum.
+   *
+   * @throws RejectedExecutionException if the scheduler has been shut down.
+   */
+  public CompletableFuture<RunStatus> submit(SpookyVm vm, int priority) {
+    if (priority <= 0) {
+      throw new IllegalArgumentException("Non-positive priority " + priority);
+    }
+    if (!accepting) {
+      throw new RejectedExecutionException("Scheduler is shut down");
+    }
+    long slice = priority > Long.MAX_VALUE / quantum ? Long.MAX_VALUE : quantum * priority;
+    Task task = new Task(vm, slice);
+    unfinished.add(task);
+    task.result.whenComplete((status, error) -> unfinished.remove(task));
+    try {
+      pool.execute(task);
+    } catch (RejectedExecutionException e) {
+      task.result.cancel(false);
+      throw e;
+    }
+    return task.result;
+  }
+
+  /**
+   * Returns an extern calling {@code call}, for VMs run by this scheduler. The parameters of the
+   * extern have size {@code argSize}.
+   *
+   * <p>If the future returned by the call is not yet complete, the VM is suspended and gives up its
+   * thread. Once the future completes, its value is written as the return value of the call and
+   * the VM is queued to run again. If the future fails, so does the future of the VM.
+   */
+  public ExternCall async(int argSize, AsyncExternCall call) {
+    return vm -> {
+      Task task = running.get();
+      if (task == null || task.vm != vm) {
+        throw new VmException("Asynchronous extern called outside of its scheduler");
+      }
+      // The stack pointer may have changed by the time the VM continues.
+      int position = CallingConvention.returnPosition(vm, argSize);
+      vm.getM(position);
+      CompletableFuture<Integer> result = call.call(vm);
+      if (result.isDone() && !result.isCompletedExceptionally()) {
+        vm.setM(position, result.join());
+        return;
+      }
+      task.pending = result;
+      task.returnPosition = position;
+      vm.suspend();
+    };
+  }
+
+  /**
+   * Stops accepting VMs, and waits at most {@code timeout} for the scheduled ones to stop,
+   * including those suspended by asynchronous externs. The futures of VMs that have not stopped by
+   * then are cancelled, and the VMs stop at the end of their current quanta.
+   *
+   * @return whether all VMs stopped in time, so that no future was cancelled.
+   */
+  public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+    accepting = false;
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    boolean stopped = true;
+    CompletableFuture<?>[] results =
+        unfinished.stream().map(task -> task.result).toArray(CompletableFuture<?>[]::new);
+    try {
+      CompletableFuture.allOf(results).get(timeout, unit);
+    } catch (ExecutionException | CancellationException e) {
+      // Some VM failed, which still means that all of them stopped.
+    } catch (TimeoutException e) {
+      stopped = false;
+    }
+    cancelUnfinished();
+    pool.shutdown();
+    return pool.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)
+        && stopped;
+  }
+
+  /** Stops the scheduler immediately, cancelling the futures of unfinished VMs. */
+  @Override
+  public void close() {
+    accepting = false;
+    cancelUnfinished();
+    pool.shutdownNow();
+  }
+
+  private void cancelUnfinished() {
+    for (Task task : unfinished) {
+      task.result.cancel(false);
+    }
+  }
+
+  /**
+   * A scheduled VM, which re-queues itself after every slice until the VM stops, or once the result
+   * of an asynchronous extern that suspended it is available.
+   */
+  private final class Task implements Runnable {
+    private final SpookyVm vm;
+    private final long slice;
+    private final CompletableFuture<RunStatus> result = new CompletableFuture<>();
+    /** The result of the asynchronous extern that suspended the VM, if any. */
+    private CompletableFuture<Integer> pending;
+    /** The memory position that the result of {@link #pending} is written to. */
+    private int returnPosition;
+
+    Task(SpookyVm vm, long slice) {
+      this.vm = vm;
+      this.slice = slice;
+    }
+
+    @Override
+    public void run() {
+      if (result.isDone()) {
+        return;
+      }
+      RunStatus status;
+      running.set(this);
+      try {
+        if (pending != null) {
+          CompletableFuture<Integer> completed = pending;
+          pending = null;
+          vm.setM(returnPosition, completed.join());
+        }
+        status = vm.run(slice);
+      } catch (CompletionException e) {
+        result.completeExceptionally(e.getCause());
+        return;
+      } catch (RuntimeException | VmException e) {
+        // Externs may fail with unchecked exceptions, which stop the VM.
+        result.completeExceptionally(e);
+        return;
+      } finally {
+        running.remove();
+      }
+      if (status == RunStatus.SUSPENDED) {
+        pending.whenComplete((value, error) -> requeue());
+      } else if (status != RunStatus.BUDGET_EXHAUSTED) {
+        result.complete(status);
+      } else {
+        // The pool is in FIFO mode, so the VM is queued behind those already waiting.
+        requeue();
+      }
+    }
+
+    /** Queues the VM to run again, unless its future has completed. */
+    private void requeue() {
+      if (result.isDone()) {
+        return;
+      }
+      try {
+        pool.execute(this);
+      } catch (RejectedExecutionException e) {
+        // The pool only rejects tasks once it is shut down, which cancels all unfinished VMs.
+        result.cancel(false);
+      }
+    }
+  }
+}
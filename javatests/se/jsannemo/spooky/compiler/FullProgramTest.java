@@ -16,6 +16,9 @@ import se.jsannemo.spooky.compiler.ir.IrProgram;
 import se.jsannemo.spooky.compiler.ir.ToIr;
 import se.jsannemo.spooky.compiler.parser.Parser;
 import se.jsannemo.spooky.compiler.parser.Tokenizer;
+import se.jsannemo.spooky.vm.ClosureCompiler;
+import se.jsannemo.spooky.vm.CodeCompiler;
+import se.jsannemo.spooky.vm.RunStatus;
 import se.jsannemo.spooky.vm.SpookyVm;
 import se.jsannemo.spooky.vm.VmException;
 import se.jsannemo.spooky.vm.code.Executable;
@@ -27,23 +30,40 @@ public class FullProgramTest {
 
   @Test
   public void testPrograms() throws VmException {
-    assertThat(runProgram("binary.spooky")).isEqualTo("1\n111\n0101\n");
-    assertThat(runProgram("callafterprint.spooky")).isEqualTo("A");
-    assertThat(runProgram("fizzbuzz.spooky")).isEqualTo("0010210012010012");
-    assertThat(runProgram("globalassign.spooky")).isEqualTo("4210");
-    assertThat(runProgram("globals_calling_functions.spooky")).isEqualTo("42");
-    assertThat(runProgram("globals_stack.spooky")).isEqualTo("3");
-    assertThat(runProgram("helloworld.spooky")).isEqualTo("Hello World!");
-    assertThat(runProgram("isprime.spooky"))
+    assertProgramOutputs(null, false);
+  }
+
+  @Test
+  public void testProgramsCompiledToClosures() throws VmException {
+    assertProgramOutputs(new ClosureCompiler(), false);
+  }
+
+  @Test
+  public void testOptimizedPrograms() throws VmException {
+    assertProgramOutputs(null, true);
+    assertProgramOutputs(new ClosureCompiler(), true);
+  }
+
+  private static void assertProgramOutputs(CodeCompiler compiler, boolean optimize)
+      throws VmException {
+    assertThat(runProgram(compiler, optimize, "binary.spooky")).isEqualTo("1\n111\n0101\n");
+    assertThat(runProgram(compiler, optimize, "callafterprint.spooky")).isEqualTo("A");
+    assertThat(runProgram(compiler, optimize, "fizzbuzz.spooky")).isEqualTo("0010210012010012");
+    assertThat(runProgram(compiler, optimize, "globalassign.spooky")).isEqualTo("4210");
+    assertThat(runProgram(compiler, optimize, "globals_calling_functions.spooky")).isEqualTo("42");
+    assertThat(runProgram(compiler, optimize, "globals_stack.spooky")).isEqualTo("3");
+    assertThat(runProgram(compiler, optimize, "helloworld.spooky")).isEqualTo("Hello World!");
+    assertThat(runProgram(compiler, optimize, "isprime.spooky"))
         .isEqualTo("90 0\n91 0\n92 0\n93 0\n94 0\n95 0\n96 0\n97 1\n98 0\n99 0\n");
-    assertThat(runProgram("shortcircuit.spooky")).isEqualTo("342");
-    assertThat(runProgram("ternary.spooky")).isEqualTo("-8-9-8-9-8-9-8-9-8-9");
-    assertThat(runProgram("printfun.spooky")).isEqualTo("1-23");
-    assertThat(runProgram("printglobal.spooky")).isEqualTo("1");
-    assertThat(runProgram("printliteral.spooky")).isEqualTo("42");
+    assertThat(runProgram(compiler, optimize, "shortcircuit.spooky")).isEqualTo("342");
+    assertThat(runProgram(compiler, optimize, "ternary.spooky")).isEqualTo("-8-9-8-9-8-9-8-9-8-9");
+    assertThat(runProgram(compiler, optimize, "printfun.spooky")).isEqualTo("1-23");
+    assertThat(runProgram(compiler, optimize, "printglobal.spooky")).isEqualTo("1");
+    assertThat(runProgram(compiler, optimize, "printliteral.spooky")).isEqualTo("42");
   }
 
-  private static String runProgram(String name) throws VmException {
+  private static String runProgram(CodeCompiler compiler, boolean optimize, String name)
+      throws VmException {
     byte[] bytes;
     try {
       bytes = Files.readAllBytes(Paths.get("test_programs", "sources", name));
@@ -71,9 +91,14 @@ public class FullProgramTest {
             .addStdLib()
             .setStdOut(new PrintStream(bos))
             .setMemorySize(1000)
+            .setCodeCompiler(compiler)
+            .setCompileThreshold(0)
+            .setPeepholeOptimization(optimize)
+            .setFuel(10000)
             .build();
-    for (int i = 0; i < 10000 && vm.executeInstruction(); i++)
-      ;
+    if (vm.runUntilHalt() == RunStatus.FAULTED) {
+      throw vm.getFault();
+    }
     return bos.toString();
   }
 }
@@ -0,0 +1,113 @@
+package se.jsannemo.spooky.vm;
+
+import java.util.ArrayList;
+import java.util.List;
+import se.jsannemo.spooky.vm.code.Executable;
+import se.jsannemo.spooky.vm.code.ExecutableParser;
+import se.jsannemo.spooky.vm.code.InstructionException;
+import se.jsannemo.spooky.vm.code.Instructions;
+import se.jsannemo.spooky.vm.code.Instructions.Address;
+import se.jsannemo.spooky.vm.code.Instructions.Instruction;
+
+/**
+ * Measures the time {@link SpookyVm} spends per executed instruction, for every kind of
+ * instruction.
+ *
+ * <p>Every benchmarked program is a long run of a single kind of instruction, followed by a jump
+ * back to the start of the run. Since instructions are dispatched through a table switch, the
+ * reported costs should only differ by the work the instructions do, and not by their position in
+ * the dispatch order.
+ */
+public final class DispatchBenchmark {
+
+  // The number of instructions in the repeated part of every program.
+  private static final int BODY = 64;
+  private static final long WARMUP_INSTRUCTIONS = 20_000_000L;
+  private static final long INSTRUCTIONS = 100_000_000L;
+
+  private static final Address ZERO = Address.baseAndOffset(-1, -1);
+  private static final Address ONE = Address.baseAndOffset(-1, -2);
+  private static final Address OP1 = stack(2);
+  private static final Address OP2 = stack(3);
+  private static final Address OUT = stack(4);
+  // Cells holding the jump targets of the JumpAddress program.
+  private static final int JUMP_TABLE = 8;
+
+  private interface InstructionFactory {
+    Instruction create(int ip);
+  }
+
+  private DispatchBenchmark() {}
+
+  public static void main(String[] args) throws Exception {
+    benchmark("MOV", ip -> Instructions.Move.create(OP1, OUT));
+    benchmark("CONST", ip -> Instructions.Const.create(ip, OUT));
+    benchmark("ADD", ip -> Instructions.Add.create(OP1, OP2, OUT));
+    benchmark("SUB", ip -> Instructions.Sub.create(OP1, OP2, OUT));
+    benchmark("MUL", ip -> Instructions.Mul.create(OP1, OP2, OUT));
+    benchmark("DIV", ip -> Instructions.Div.create(OP1, OP2, OUT));
+    benchmark("MOD", ip -> Instructions.Mod.create(OP1, OP2, OUT));
+    benchmark("LT", ip -> Instructions.LessThan.create(OP1, OP2, OUT));
+    benchmark("LEQ", ip -> Instructions.LessEquals.create(OP1, OP2, OUT));
+    benchmark("EQ", ip -> Instructions.Equals.create(OP1, OP2, OUT));
+    benchmark("NEQ", ip -> Instructions.NotEquals.create(OP1, OP2, OUT));
+    benchmark("BITAND", ip -> Instructions.BitAnd.create(OP1, OP2, OUT));
+    benchmark("BITOR", ip -> Instructions.BitOr.create(OP1, OP2, OUT));
+    // The jumps are never taken, so that execution falls through to the next instruction.
+    benchmark("JMP", ip -> Instructions.Jump.create(ONE, 0));
+    benchmark("JMPN", ip -> Instructions.JumpN.create(ZERO, 0));
+    benchmark("JMPADR", ip -> Instructions.JumpAddress.create(stack(JUMP_TABLE + ip)));
+    benchmark("EXTERN", ip -> Instructions.Extern.create("nop"));
+  }
+
+  private static void benchmark(String name, InstructionFactory factory)
+      throws InstructionException {
+    Executable executable = program(factory);
+    run(executable, WARMUP_INSTRUCTIONS);
+    long start = System.nanoTime();
+    run(executable, INSTRUCTIONS);
+    long elapsed = System.nanoTime() - start;
+    System.out.printf("%-8s %6.2f ns/instruction%n", name, (double) elapsed / INSTRUCTIONS);
+  }
+
+  private static void run(Executable executable, long instructions) {
+    SpookyVm vm =
+        SpookyVm.newBuilder(executable)
+            .addExtern("nop", v -> {})
+            .setMemorySize(JUMP_TABLE + BODY)
+            .build();
+    if (vm.run(instructions) != RunStatus.BUDGET_EXHAUSTED) {
+      throw new IllegalStateException("Benchmark program stopped: " + vm.getFault());
+    }
+  }
+
+  /**
+   * Creates a program that repeats {@code BODY} instructions created by {@code factory} forever.
+   *
+   * <p>The factory is given the index of the instruction within the repeated part.
+   */
+  private static Executable program(InstructionFactory factory) throws InstructionException {
+    List<Instruction> text = new ArrayList<>();
+    text.add(Instructions.Const.create(7, OP1));
+    text.add(Instructions.Const.create(3, OP2));
+    int start = text.size() + BODY;
+    for (int i = 0; i < BODY; i++) {
+      text.add(Instructions.Const.create(start + i + 1, stack(JUMP_TABLE + i)));
+    }
+    for (int i = 0; i < BODY; i++) {
+      text.add(factory.create(i));
+    }
+    text.add(Instructions.Jump.create(ZERO, start));
+
+    List<Instruction> instructions = new ArrayList<>();
+    instructions.add(Instructions.BinDef.create("benchmark"));
+    instructions.add(Instructions.Text.create());
+    instructions.addAll(text);
+    instructions.add(Instructions.Data.create(0, 1));
+    return ExecutableParser.fromInstructions(instructions);
+  }
+
+  private static Address stack(int cell) {
+    return Address.baseAndOffset(-1, cell);
+  }
+}
@@ -0,0 +1,140 @@
+package se.jsannemo.spooky.vm;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import se.jsannemo.spooky.vm.code.ExecutableParser;
+import se.jsannemo.spooky.vm.code.Instructions;
+import se.jsannemo.spooky.vm.code.Instructions.Address;
+import se.jsannemo.spooky.vm.code.Instructions.Instruction;
+
+public class OutputSinkTest {
+
+  @Test
+  public void testFormatsInts() {
+    OutputCapture capture = new OutputCapture();
+    for (int value : new int[] {0, 7, -7, 10, 1234567890, Integer.MAX_VALUE, Integer.MIN_VALUE}) {
+      capture.writeInt(value);
+      capture.writeChar(',');
+    }
+    assertThat(capture.toString())
+        .isEqualTo("0,7,-7,10,1234567890,2147483647,-2147483648,");
+  }
+
+  @Test
+  public void testEncodesCharsAsUtf8() {
+    OutputCapture capture = new OutputCapture();
+    for (char c : "a\u00e9\u20ac".toCharArray()) {
+      capture.writeChar(c);
+    }
+    capture.writeChar('\ud800');
+    assertThat(capture.toByteArray()).isEqualTo("a\u00e9\u20ac?".getBytes(StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testBatchesWrites() {
+    List<Integer> writes = new ArrayList<>();
+    OutputSink sink =
+        new OutputSink(16) {
+          @Override
+          protected void write(byte[] bytes, int offset, int length) {
+            writes.add(length);
+          }
+        };
+    for (int i = 0; i < 20; i++) {
+      sink.writeChar('x');
+    }
+    // The buffer is flushed as soon as it can not hold the longest encoding of the next write.
+    assertThat(writes).containsExactly(14);
+    sink.writeInt(-1_000_000_000);
+    assertThat(writes).containsExactly(14, 6);
+    sink.writeInt(-1_000_000_000);
+    assertThat(writes).containsExactly(14, 6, 11);
+    sink.writeBytes(new byte[40], 0, 40);
+    assertThat(writes).containsExactly(14, 6, 11, 11, 40);
+    sink.flush();
+    sink.flush();
+    assertThat(writes).containsExactly(14, 6, 11, 11, 40);
+  }
+
+  @Test
+  public void testVmFlushesAfterRuns() throws Exception {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    Address arg = Address.baseAndOffset(-1, 3);
+    List<Instruction> instructions = new ArrayList<>();
+    instructions.add(Instructions.BinDef.create("test"));
+    instructions.add(Instructions.Text.create());
+    instructions.add(Instructions.Const.create(4, Address.baseAndOffset(-1, 0)));
+    instructions.add(Instructions.Const.create(-42, arg));
+    instructions.add(Instructions.Extern.create("printInt"));
+    instructions.add(Instructions.Extern.create("stream"));
+    instructions.add(Instructions.Const.create('!', arg));
+    instructions.add(Instructions.Extern.create("print"));
+    instructions.add(Instructions.Halt.create());
+    instructions.add(Instructions.Data.create(0, 1));
+    SpookyVm vm =
+        SpookyVm.newBuilder(ExecutableParser.fromInstructions(instructions))
+            .addStdLib()
+            .addExtern("stream", v -> v.getStdOut().print(" and "))
+            .setStdOut(new PrintStream(bos))
+            .setMemorySize(4)
+            .build();
+    assertThat(vm.run(3)).isEqualTo(RunStatus.BUDGET_EXHAUSTED);
+    assertThat(bos.toString()).isEqualTo("-42");
+    assertThat(vm.runUntilHalt()).isEqualTo(RunStatus.HALTED);
+    assertThat(bos.toString()).isEqualTo("-42 and !");
+  }
+
+  @Test
+  public void testForkedVmsWriteConcurrently() throws Exception {
+    Address counter = Address.baseAndOffset(-1, 2);
+    Address zero = Address.baseAndOffset(-1, -1);
+    byte[] line = "0123456789\n".getBytes(StandardCharsets.UTF_8);
+    List<Instruction> instructions = new ArrayList<>();
+    instructions.add(Instructions.BinDef.create("test"));
+    instructions.add(Instructions.Text.create());
+    instructions.add(Instructions.Const.create(20_000, counter));
+    instructions.add(Instructions.Jump.create(counter, 5));
+    instructions.add(Instructions.Extern.create("line"));
+    instructions.add(Instructions.SubImmediate.create(counter, 1, counter));
+    instructions.add(Instructions.Jump.create(zero, 1));
+    instructions.add(Instructions.Halt.create());
+    instructions.add(Instructions.Data.create(0, 1));
+    OutputCapture capture = new OutputCapture();
+    SpookyVm vm =
+        SpookyVm.newBuilder(ExecutableParser.fromInstructions(instructions))
+            .addExtern("line", v -> v.getOutput().writeBytes(line, 0, line.length))
+            .setOutput(capture)
+            .setMemorySize(4)
+            .build();
+    assertThat(vm.run(1)).isEqualTo(RunStatus.BUDGET_EXHAUSTED);
+    List<SpookyVm> vms = new ArrayList<>();
+    vms.add(vm);
+    for (int i = 0; i < 7; i++) {
+      SpookyVm forked = vm.fork();
+      // Every VM buffers its output in a sink of its own.
+      assertThat(forked.getOutput()).isNotSameInstanceAs(vm.getOutput());
+      vms.add(forked);
+    }
+    List<Thread> threads = new ArrayList<>();
+    for (SpookyVm forked : vms) {
+      Thread thread = new Thread(forked::runUntilHalt);
+      thread.start();
+      threads.add(thread);
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    for (SpookyVm forked : vms) {
+      assertThat(forked.getM(2)).isEqualTo(0);
+    }
+    String output = capture.toString();
+    assertThat(output.length()).isEqualTo(vms.size() * 20_000 * line.length);
+    assertThat(output.replace("0123456789\n", "")).isEmpty();
+  }
+}
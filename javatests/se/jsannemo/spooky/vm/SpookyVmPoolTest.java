@@ -0,0 +1,96 @@
+package se.jsannemo.spooky.vm;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.Test;
+import se.jsannemo.spooky.vm.code.Executable;
+import se.jsannemo.spooky.vm.code.ExecutableParser;
+import se.jsannemo.spooky.vm.code.InstructionException;
+import se.jsannemo.spooky.vm.code.Instructions;
+import se.jsannemo.spooky.vm.code.Instructions.Address;
+import se.jsannemo.spooky.vm.code.Instructions.Instruction;
+
+public class SpookyVmPoolTest {
+
+  @Test
+  public void testReusesReleasedVms() throws Exception {
+    SpookyVmPool pool = new SpookyVmPool(builder -> builder.setFuel(100));
+    Executable executable = program();
+
+    SpookyVm vm = pool.acquire(executable, 16);
+    assertThat(vm.runUntilHalt()).isEqualTo(RunStatus.HALTED);
+    assertThat(vm.getM(0)).isEqualTo(1);
+    SpookyVm other = pool.acquire(executable, 16);
+    assertThat(other).isNotSameInstanceAs(vm);
+    pool.release(vm);
+    pool.release(other);
+    assertThat(pool.idleCount()).isEqualTo(2);
+
+    SpookyVm reused = pool.acquire(executable, 16);
+    assertThat(reused).isSameInstanceAs(other);
+    assertThat(reused.getM(0)).isEqualTo(0);
+    assertThat(reused.getRemainingFuel()).isEqualTo(100);
+    assertThat(pool.idleCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testKeysByExecutableAndMemorySize() throws Exception {
+    SpookyVmPool pool = new SpookyVmPool(builder -> {});
+    Executable executable = program();
+    SpookyVm vm = pool.acquire(executable, 16);
+    pool.release(vm);
+
+    assertThat(pool.acquire(executable, 32)).isNotSameInstanceAs(vm);
+    assertThat(pool.acquire(program(), 16)).isNotSameInstanceAs(vm);
+    assertThat(pool.acquire(executable, 16)).isSameInstanceAs(vm);
+  }
+
+  @Test
+  public void testReusedVmsGetNewRandomSeeds() throws Exception {
+    SpookyVmPool pool = new SpookyVmPool(builder -> builder.addStdLib());
+    List<Instruction> instructions = new ArrayList<>();
+    instructions.add(Instructions.BinDef.create("test"));
+    instructions.add(Instructions.Text.create());
+    instructions.add(Instructions.Const.create(4, Address.baseAndOffset(-1, 0)));
+    instructions.add(Instructions.Extern.create("random"));
+    instructions.add(Instructions.Halt.create());
+    instructions.add(Instructions.Data.create(0, 1));
+    Executable executable = ExecutableParser.fromInstructions(instructions);
+
+    SpookyVm vm = pool.acquire(executable, 16);
+    pool.release(vm);
+    // The random value is returned below the stack pointer.
+    Set<Integer> values = new HashSet<>();
+    for (int i = 0; i < 5; i++) {
+      SpookyVm reused = pool.acquire(executable, 16);
+      assertThat(reused).isSameInstanceAs(vm);
+      assertThat(reused.runUntilHalt()).isEqualTo(RunStatus.HALTED);
+      values.add(reused.getM(3));
+      pool.release(reused);
+    }
+    assertThat(values.size()).isGreaterThan(1);
+
+    SpookyVmPool seeded = new SpookyVmPool(builder -> builder.addStdLib().setRandomSeed(42));
+    SpookyVm first = seeded.acquire(executable, 16);
+    assertThat(first.runUntilHalt()).isEqualTo(RunStatus.HALTED);
+    int value = first.getM(3);
+    seeded.release(first);
+    SpookyVm second = seeded.acquire(executable, 16);
+    assertThat(second.runUntilHalt()).isEqualTo(RunStatus.HALTED);
+    assertThat(second.getM(3)).isEqualTo(value);
+  }
+
+  private static Executable program() throws InstructionException {
+    List<Instruction> instructions = new ArrayList<>();
+    instructions.add(Instructions.BinDef.create("test"));
+    instructions.add(Instructions.Text.create());
+    instructions.add(Instructions.Const.create(1, Address.baseAndOffset(-1, 0)));
+    instructions.add(Instructions.Halt.create());
+    instructions.add(Instructions.Data.create(0, 1));
+    return ExecutableParser.fromInstructions(instructions);
+  }
+}
@@ -0,0 +1,695 @@
+package se.jsannemo.spooky.vm;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import se.jsannemo.spooky.vm.code.Executable;
+import se.jsannemo.spooky.vm.code.ExecutableParser;
+import se.jsannemo.spooky.vm.code.InstructionException;
+import se.jsannemo.spooky.vm.code.Instructions;
+import se.jsannemo.spooky.vm.code.Instructions.Address;
+import se.jsannemo.spooky.vm.code.Instructions.Instruction;
+
+public class SpookyVmTest {
+
+  private static final Address ZERO = Address.baseAndOffset(-1, -1);
+
+  @Test
+  public void testRunHalts() throws Exception {
+    SpookyVm vm =
+        vm(
+            Instructions.Const.create(5, stack(0)),
+            Instructions.Const.create(7, stack(1)),
+            Instructions.Add.create(stack(0), stack(1), stack(2)),
+            Instructions.Halt.create());
+    assertThat(vm.runUntilHalt()).isEqualTo(RunStatus.HALTED);
+    assertThat(vm.getM(2)).isEqualTo(12);
+    assertThat(vm.getInstructionsExecuted()).isEqualTo(4);
+  }
+
+  @Test
+  public void testRunBudget() throws Exception {
+    SpookyVm vm =
+        vm(
+            Instructions.Const.create(1, stack(1)),
+            Instructions.Add.create(stack(0), stack(1), stack(0)),
+            Instructions.Jump.create(ZERO, 1));
+    assertThat(vm.run(7)).isEqualTo(RunStatus.BUDGET_EXHAUSTED);
+    assertThat(vm.getInstructionsExecuted()).isEqualTo(7);
+    assertThat(vm.getM(0)).isEqualTo(3);
+    assertThat(vm.run(2)).isEqualTo(RunStatus.BUDGET_EXHAUSTED);
+    assertThat(vm.getM(0)).isEqualTo(4);
+  }
+
+  @Test
+  public void testFuel() throws Exception {
+    for (CodeCompiler compiler : Arrays.asList(null, new ClosureCompiler())) {
+      SpookyVm vm =
+          SpookyVm.newBuilder(
+                  program(
+                      Instructions.Const.create(1, stack(1)),
+                      Instructions.Add.create(stack(0), stack(1), stack(0)),
+                      Instructions.Jump.create(ZERO, 1)))
+              .setMemorySize(16)
+              .setCodeCompiler(compiler)
+              .setCompileThreshold(0)
+              .setFuel(7)
+              .build();
+      assertThat(vm.run(5)).isEqualTo(RunStatus.BUDGET_EXHAUSTED);
+      assertThat(vm.runUntilHalt()).isEqualTo(RunStatus.OUT_OF_FUEL);
+      assertThat(vm.getInstructionsExecuted()).isEqualTo(7);
+      assertThat(vm.getRemainingFuel()).isEqualTo(0);
+      assertThat(vm.getM(0)).isEqualTo(3);
+
+      vm.addFuel(2);
+      assertThat(vm.runUntilHalt()).isEqualTo(RunStatus.OUT_OF_FUEL);
+      assertThat(vm.getM(0)).isEqualTo(4);
+    }
+  }
+
+  @Test
+  public void testTimeLimit() throws Exception {
+    long[] now = {0};
+    SpookyVm vm =
+        SpookyVm.newBuilder(
+                program(
+                    Instructions.Const.create(1, stack(1)),
+                    Instructions.Add.create(stack(0), stack(1), stack(0)),
+                    Instructions.Jump.create(ZERO, 1)))
+            .setMemorySize(16)
+            .setTimeLimit(100)
+            .setClock(() -> now[0])
+            .build();
+    assertThat(vm.run(1_000_000)).isEqualTo(RunStatus.BUDGET_EXHAUSTED);
+
+    now[0] = 100;
+    assertThat(vm.run(1_000_000)).isEqualTo(RunStatus.DEADLINE_EXCEEDED);
+    assertThat(vm.getInstructionsExecuted()).isEqualTo(1_000_000);
+
+    vm.setTimeLimit(50);
+    assertThat(vm.run(1_000)).isEqualTo(RunStatus.BUDGET_EXHAUSTED);
+    assertThat(vm.getInstructionsExecuted()).isEqualTo(1_001_000);
+  }
+
+  @Test
+  public void testReset() throws Exception {
+    for (MemoryTracking tracking : MemoryTracking.values()) {
+      SpookyVm vm =
+          SpookyVm.newBuilder(
+                  program(
+                      Instructions.Const.create(7, stack(5)),
+                      Instructions.Call.create(3, 3),
+                      Instructions.Halt.create(),
+                      Instructions.Div.create(stack(1), stack(15), stack(2)),
+                      Instructions.Return.create()))
+              .setMemorySize(16)
+              .setMemoryTracking(tracking)
+              .setFuel(10)
+              .build();
+      vm.setM(12, 4);
+      assertThat(vm.runUntilHalt()).isEqualTo(RunStatus.FAULTED);
+      assertThat(vm.getCallStack()).hasSize(1);
+
+      vm.reset();
+      assertThat(vm.getFault()).isNull();
+      assertThat(vm.getInstructionPointer()).isEqualTo(0);
+      assertThat(vm.getInstructionsExecuted()).isEqualTo(0);
+      assertThat(vm.getCallStack()).isEmpty();
+      assertThat(vm.getRemainingFuel()).isEqualTo(10);
+      for (int cell = 0; cell < 16; cell++) {
+        assertThat(vm.getM(cell)).isEqualTo(0);
+      }
+      vm.setM(15, 1);
+      assertThat(vm.runUntilHalt()).isEqualTo(RunStatus.HALTED);
+      assertThat(vm.getM(5)).isEqualTo(7);
+    }
+  }
+
+  @Test
+  public void testSnapshotAndRestore() throws Exception {
+    SpookyVm vm =
+        SpookyVm.newBuilder(
+                program(
+                    Instructions.Const.create(1, stack(1)),
+                    Instructions.Add.create(stack(0), stack(1), stack(0)),
+                    Instructions.Jump.create(ZERO, 1)))
+            .setMemorySize(3 * Snapshot.PAGE_SIZE)
+            .setFuel(100)
+            .build();
+    vm.setM(Snapshot.PAGE_SIZE, 5);
+    assertThat(vm.run(7)).isEqualTo(RunStatus.BUDGET_EXHAUSTED);
+    Snapshot first = vm.snapshot();
+    assertThat(first.getInstructionPointer()).isEqualTo(1);
+    assertThat(first.getInstructionsExecuted()).isEqualTo(7);
+
+    assertThat(vm.run(6)).isEqualTo(RunStatus.BUDGET_EXHAUSTED);
+    assertThat(vm.getM(0)).isEqualTo(6);
+    // Only the first page changed.
+    assertThat(vm.snapshot().sharedPages(first)).isEqualTo(2);
+
+    vm.restore(first);
+    assertThat(vm.getM(0)).isEqualTo(3);
+    assertThat(vm.getM(Snapshot.PAGE_SIZE)).isEqualTo(5);
+    assertThat(vm.getInstructionPointer()).isEqualTo(1);
+    assertThat(vm.getInstructionsExecuted()).isEqualTo(7);
+    assertThat(vm.getRemainingFuel()).isEqualTo(87);
+    assertThat(vm.run(2)).isEqualTo(RunStatus.BUDGET_EXHAUSTED);
+    assertThat(vm.getM(0)).isEqualTo(4);
+
+    SpookyVm other = SpookyVm.newBuilder(program(Instructions.Halt.create())).build();
+    assertThrows(IllegalArgumentException.class, () -> other.restore(first));
+  }
+
+  @Test
+  public void testRestoreRejectsDifferentlyOptimizedCode() throws Exception {
+    Executable executable =
+        program(
+            Instructions.Const.create(1, stack(1)),
+            Instructions.Jump.create(ZERO, 2),
+            Instructions.Add.create(stack(0), stack(1), stack(0)),
+            Instructions.Jump.create(ZERO, 2));
+    SpookyVm plain = SpookyVm.newBuilder(executable).setMemorySize(16).build();
+    SpookyVm optimized =
+        SpookyVm.newBuilder(executable).setMemorySize(16).setPeepholeOptimization(true).build();
+    assertThat(plain.run(5)).isEqualTo(RunStatus.BUDGET_EXHAUSTED);
+    assertThat(optimized.run(5)).isEqualTo(RunStatus.BUDGET_EXHAUSTED);
+    Snapshot fromPlain = plain.snapshot();
+    Snapshot fromOptimized = optimized.snapshot();
+    assertThrows(IllegalArgumentException.class, () -> optimized.restore(fromPlain));
+    assertThrows(IllegalArgumentException.class, () -> plain.restore(fromOptimized));
+
+    // Snapshots are still restored into VMs built the same way.
+    SpookyVm optimizedAgain =
+        SpookyVm.newBuilder(executable).setMemorySize(16).setPeepholeOptimization(true).build();
+    optimizedAgain.restore(fromOptimized);
+    assertThat(optimizedAgain.getM(0)).isEqualTo(optimized.getM(0));
+  }
+
+  @Test
+  public void testFork() throws Exception {
+    for (CodeCompiler compiler : Arrays.asList(null, new ClosureCompiler())) {
+      SpookyVm vm =
+          vm(
+              compiler,
+              Instructions.Const.create(1, stack(1)),
+              Instructions.Add.create(stack(0), stack(1), stack(0)),
+              Instructions.Jump.create(ZERO, 1));
+      assertThat(vm.run(7)).isEqualTo(RunStatus.BUDGET_EXHAUSTED);
+      SpookyVm child = vm.fork();
+      assertThat(child.getInstructionsExecuted()).isEqualTo(7);
+      assertThat(child.getPromotions()).isEqualTo(vm.getPromotions());
+
+      assertThat(child.run(4)).isEqualTo(RunStatus.BUDGET_EXHAUSTED);
+      assertThat(child.getM(0)).isEqualTo(5);
+      assertThat(vm.getM(0)).isEqualTo(3);
+      assertThat(vm.run(2)).isEqualTo(RunStatus.BUDGET_EXHAUSTED);
+      assertThat(vm.getM(0)).isEqualTo(4);
+      assertThat(child.getM(0)).isEqualTo(5);
+    }
+  }
+
+  @Test
+  public void testForkKeepsRemainingFuel() throws Exception {
+    SpookyVm vm =
+        SpookyVm.newBuilder(
+                program(
+                    Instructions.Const.create(1, stack(1)),
+                    Instructions.Add.create(stack(0), stack(1), stack(0)),
+                    Instructions.Jump.create(ZERO, 1)))
+            .setMemorySize(16)
+            .setFuel(1000)
+            .build();
+    assertThat(vm.run(600)).isEqualTo(RunStatus.BUDGET_EXHAUSTED);
+    SpookyVm child = vm.fork();
+    assertThat(child.getRemainingFuel()).isEqualTo(400);
+    assertThat(child.runUntilHalt()).isEqualTo(RunStatus.OUT_OF_FUEL);
+    assertThat(child.getInstructionsExecuted()).isEqualTo(1000);
+  }
+
+  @Test
+  public void testRandomSeed() throws Exception {
+    Executable executable = program(Instructions.Halt.create());
+    SpookyVm vm = SpookyVm.newBuilder(executable).setMemorySize(1).setRandomSeed(42).build();
+    SpookyVm same = SpookyVm.newBuilder(executable).setMemorySize(1).setRandomSeed(42).build();
+    SpookyVm other = SpookyVm.newBuilder(executable).setMemorySize(1).setRandomSeed(43).build();
+    int[] values = new int[8];
+    boolean differs = false;
+    for (int i = 0; i < values.length; i++) {
+      values[i] = vm.nextRandom();
+      assertThat(same.nextRandom()).isEqualTo(values[i]);
+      differs |= other.nextRandom() != values[i];
+    }
+    assertThat(differs).isTrue();
+
+    Snapshot snapshot = vm.snapshot();
+    SpookyVm child = vm.fork();
+    int next = vm.nextRandom();
+    assertThat(child.nextRandom()).isEqualTo(next);
+    vm.restore(snapshot);
+    assertThat(vm.nextRandom()).isEqualTo(next);
+
+    vm.reset();
+    for (int value : values) {
+      assertThat(vm.nextRandom()).isEqualTo(value);
+    }
+  }
+
+  @Test
+  public void testLazyMemoryAllocation() throws Exception {
+    SpookyVm vm =
+        SpookyVm.newBuilder(
+                program(
+                    Instructions.Const.create(7, stack(300)),
+                    Instructions.Move.create(Address.baseAndOffset(2, 0), stack(1)),
+                    Instructions.Halt.create()))
+            .setMemorySize(1 << 20)
+            .setMemoryAllocation(MemoryAllocation.LAZY)
+            .build();
+    // The cells addressed by the program are allocated up front.
+    assertThat(vm.allocatedCells()).isEqualTo(2 * Snapshot.PAGE_SIZE);
+    vm.setM(1, 5);
+    vm.setM(2, 1 << 19);
+    assertThat(vm.runUntilHalt()).isEqualTo(RunStatus.HALTED);
+    assertThat(vm.getM(1)).isEqualTo(0);
+    assertThat(vm.getM(300)).isEqualTo(7);
+    assertThat(vm.allocatedCells()).isEqualTo(2 * Snapshot.PAGE_SIZE);
+
+    Snapshot snapshot = vm.snapshot();
+    vm.setM(10 * Snapshot.PAGE_SIZE, 3);
+    assertThat(vm.allocatedCells()).isEqualTo(11 * Snapshot.PAGE_SIZE);
+    assertThat(vm.getM(10 * Snapshot.PAGE_SIZE)).isEqualTo(3);
+    vm.setM(11 * Snapshot.PAGE_SIZE, 4);
+    assertThat(vm.allocatedCells()).isEqualTo(22 * Snapshot.PAGE_SIZE);
+    assertThrows(VmException.class, () -> vm.setM(1 << 20, 1));
+
+    SpookyVm child = vm.fork();
+    assertThat(child.getM(11 * Snapshot.PAGE_SIZE)).isEqualTo(4);
+    vm.restore(snapshot);
+    assertThat(vm.getM(10 * Snapshot.PAGE_SIZE)).isEqualTo(0);
+    assertThat(vm.getM(300)).isEqualTo(7);
+  }
+
+  @Test
+  public void testSuspend() throws Exception {
+    // The stack pointer adjustments around the extern are fused with it when optimizing.
+    Executable executable =
+        program(
+            Instructions.Const.create(4, stack(0)),
+            Instructions.Const.create(2, stack(1)),
+            Instructions.Add.create(stack(0), stack(1), stack(0)),
+            Instructions.Extern.create("answer"),
+            Instructions.Const.create(2, stack(1)),
+            Instructions.Sub.create(stack(0), stack(1), stack(0)),
+            Instructions.Const.create(1, stack(2)),
+            Instructions.Halt.create());
+    for (CodeCompiler compiler : Arrays.asList(null, new ClosureCompiler())) {
+      for (boolean optimize : new boolean[] {false, true}) {
+        SpookyVm vm =
+            SpookyVm.newBuilder(executable)
+                .addExtern(
+                    "answer",
+                    v -> {
+                      CallingConvention.setReturn(v, 0, 42);
+                      v.suspend();
+                    })
+                .setMemorySize(16)
+                .setCodeCompiler(compiler)
+                .setCompileThreshold(0)
+                .setPeepholeOptimization(optimize)
+                .build();
+        assertThat(vm.runUntilHalt()).isEqualTo(RunStatus.SUSPENDED);
+        assertThat(vm.getM(5)).isEqualTo(42);
+        assertThat(vm.getM(2)).isEqualTo(0);
+        assertThat(vm.runUntilHalt()).isEqualTo(RunStatus.HALTED);
+        assertThat(vm.getM(0)).isEqualTo(4);
+        assertThat(vm.getM(2)).isEqualTo(1);
+      }
+    }
+  }
+
+  @Test
+  public void testStepAfterSuspend() throws Exception {
+    Executable executable =
+        program(
+            Instructions.Extern.create("wait"),
+            Instructions.Const.create(1, stack(2)),
+            Instructions.Halt.create());
+    for (CodeCompiler compiler : Arrays.asList(null, new ClosureCompiler())) {
+      SpookyVm vm =
+          SpookyVm.newBuilder(executable)
+              .addExtern("wait", SpookyVm::suspend)
+              .setMemorySize(16)
+              .setCodeCompiler(compiler)
+              .setCompileThreshold(0)
+              .build();
+      assertThat(vm.executeInstruction()).isTrue();
+      assertThat(vm.executeInstruction()).isTrue();
+      assertThat(vm.getM(2)).isEqualTo(1);
+      assertThat(vm.executeInstruction()).isFalse();
+      assertThat(vm.getInstructionsExecuted()).isEqualTo(3);
+    }
+  }
+
+  @Test
+  public void testRunFaults() throws Exception {
+    SpookyVm vm =
+        vm(Instructions.Div.create(stack(0), stack(1), stack(2)), Instructions.Halt.create());
+    assertThat(vm.runUntilHalt()).isEqualTo(RunStatus.FAULTED);
+    assertThat(vm.getFault().getMessage()).isEqualTo("Division by zero");
+    assertThat(vm.getInstructionsExecuted()).isEqualTo(1);
+  }
+
+  @Test
+  public void testRunOutOfText() throws Exception {
+    SpookyVm vm = vm(Instructions.Const.create(1, stack(0)));
+    assertThat(vm.runUntilHalt()).isEqualTo(RunStatus.FAULTED);
+    assertThat(vm.getFault().getMessage()).isEqualTo("Instruction pointer out-of-bounds");
+  }
+
+  @Test
+  public void testClosureCompiledRun() throws Exception {
+    SpookyVm vm =
+        vm(
+            new ClosureCompiler(),
+            Instructions.Const.create(1, stack(1)),
+            Instructions.Add.create(stack(0), stack(1), stack(0)),
+            Instructions.Jump.create(ZERO, 1));
+    assertThat(vm.run(7)).isEqualTo(RunStatus.BUDGET_EXHAUSTED);
+    assertThat(vm.getInstructionsExecuted()).isEqualTo(7);
+    assertThat(vm.getM(0)).isEqualTo(3);
+    assertThat(vm.getPromotions()).hasSize(1);
+
+    vm =
+        vm(
+            new ClosureCompiler(),
+            Instructions.Div.create(stack(0), stack(1), stack(2)),
+            Instructions.Halt.create());
+    assertThat(vm.runUntilHalt()).isEqualTo(RunStatus.FAULTED);
+    assertThat(vm.getFault().getMessage()).isEqualTo("Division by zero");
+    assertThat(vm.getInstructionsExecuted()).isEqualTo(1);
+  }
+
+  @Test
+  public void testDataTable() throws Exception {
+    int[] table = new int[10_000];
+    table[1] = 1;
+    for (int i = 2; i < table.length; i++) {
+      table[i] = i * i;
+    }
+    List<Instruction> instructions = new ArrayList<>();
+    instructions.add(Instructions.BinDef.create("test"));
+    instructions.add(Instructions.Text.create());
+    // Cell -(i + 1) holds table[i], so the square of 1234 is at offset -1235 from CONST_ZERO.
+    instructions.add(Instructions.Move.create(Address.baseAndOffset(-1, -1235), stack(0)));
+    instructions.add(Instructions.Halt.create());
+    instructions.add(Instructions.Data.create(table));
+    Executable executable = ExecutableParser.fromInstructions(instructions);
+    SpookyVm vm = SpookyVm.newBuilder(executable).setMemorySize(16).build();
+
+    assertThat(vm.runUntilHalt()).isEqualTo(RunStatus.HALTED);
+    assertThat(vm.getM(0)).isEqualTo(1234 * 1234);
+    assertThat(vm.getM(-10_000)).isEqualTo(9999 * 9999);
+  }
+
+  @Test
+  public void testMemoryTracking() throws Exception {
+    Executable executable =
+        program(
+            Instructions.Const.create(3, stack(5)),
+            Instructions.Move.create(stack(7), stack(2)),
+            Instructions.Halt.create());
+
+    SpookyVm off = SpookyVm.newBuilder(executable).setMemorySize(16).build();
+    assertThat(off.runUntilHalt()).isEqualTo(RunStatus.HALTED);
+    assertThat(off.getMaxMemoryUsed()).isEqualTo(16);
+
+    // Cell 7 is only read and holds zero, so it is not seen by sampling.
+    SpookyVm sampled =
+        SpookyVm.newBuilder(executable)
+            .setMemorySize(16)
+            .setMemoryTracking(MemoryTracking.SAMPLED)
+            .build();
+    assertThat(sampled.runUntilHalt()).isEqualTo(RunStatus.HALTED);
+    assertThat(sampled.getMaxMemoryUsed()).isEqualTo(6);
+
+    // Zeros written above the other cells are not seen by sampling either.
+    SpookyVm zeros =
+        SpookyVm.newBuilder(
+                program(
+                    Instructions.Const.create(3, stack(5)),
+                    Instructions.Const.create(0, stack(9)),
+                    Instructions.Halt.create()))
+            .setMemorySize(16)
+            .setMemoryTracking(MemoryTracking.SAMPLED)
+            .build();
+    assertThat(zeros.runUntilHalt()).isEqualTo(RunStatus.HALTED);
+    assertThat(zeros.getMaxMemoryUsed()).isEqualTo(6);
+
+    for (CodeCompiler compiler : Arrays.asList(null, new ClosureCompiler())) {
+      SpookyVm exact =
+          SpookyVm.newBuilder(executable)
+              .setMemorySize(16)
+              .setCodeCompiler(compiler)
+              .setCompileThreshold(0)
+              .setMemoryTracking(MemoryTracking.EXACT)
+              .build();
+      assertThat(exact.runUntilHalt()).isEqualTo(RunStatus.HALTED);
+      assertThat(exact.getMaxMemoryUsed()).isEqualTo(8);
+    }
+  }
+
+  @Test
+  public void testExternsLinkedOnBuild() throws Exception {
+    Executable executable =
+        program(
+            Instructions.Extern.create("inc"),
+            Instructions.Extern.create("missing"),
+            Instructions.Halt.create());
+    SpookyVm.Builder builder = SpookyVm.newBuilder(executable).setMemorySize(16);
+    IllegalStateException e = assertThrows(IllegalStateException.class, builder::build);
+    assertThat(e).hasMessageThat().contains("[inc, missing]");
+
+    SpookyVm vm =
+        SpookyVm.newBuilder(program(Instructions.Extern.create("inc"), Instructions.Halt.create()))
+            .setMemorySize(16)
+            .addExtern("inc", v -> v.setM(0, v.getM(0) + 1))
+            .build();
+    assertThat(vm.runUntilHalt()).isEqualTo(RunStatus.HALTED);
+    assertThat(vm.getM(0)).isEqualTo(1);
+  }
+
+  @Test
+  public void testPeepholeOptimization() throws Exception {
+    SpookyVm vm =
+        SpookyVm.newBuilder(
+                program(
+                    Instructions.Jump.create(ZERO, 1),
+                    Instructions.Const.create(4, stack(2)),
+                    Instructions.Div.create(stack(2), stack(3), stack(4)),
+                    Instructions.Halt.create()))
+            .setMemorySize(16)
+            .setPeepholeOptimization(true)
+            .build();
+    assertThat(vm.runUntilHalt()).isEqualTo(RunStatus.FAULTED);
+    // The jump to the next instruction is dropped, but positions still refer to the executable.
+    assertThat(vm.getInstructionsExecuted()).isEqualTo(2);
+    assertThat(vm.getInstructionPointer()).isEqualTo(3);
+  }
+
+  @Test
+  public void testSuperinstructions() throws Exception {
+    Executable executable =
+        program(
+            Instructions.Const.create(100, stack(0)),
+            // An extern call with a frame of 20 cells, fused into a single instruction.
+            Instructions.Const.create(20, stack(1)),
+            Instructions.Add.create(stack(0), stack(1), stack(0)),
+            Instructions.Extern.create("sp"),
+            Instructions.Const.create(20, stack(1)),
+            Instructions.Sub.create(stack(0), stack(1), stack(0)),
+            // A comparison and a jump on its result, fused into a single instruction.
+            Instructions.LessThan.create(stack(0), stack(1), stack(6)),
+            Instructions.Jump.create(stack(6), 9),
+            Instructions.Const.create(1, stack(7)),
+            Instructions.Halt.create());
+    for (CodeCompiler compiler : Arrays.asList(null, new ClosureCompiler())) {
+      SpookyVm vm =
+          SpookyVm.newBuilder(executable)
+              .setMemorySize(16)
+              .addExtern("sp", v -> v.setM(5, v.getM(0)))
+              .setCodeCompiler(compiler)
+              .setCompileThreshold(0)
+              .setPeepholeOptimization(true)
+              .build();
+      assertThat(vm.runUntilHalt()).isEqualTo(RunStatus.HALTED);
+      assertThat(vm.getInstructionsExecuted()).isEqualTo(4);
+      assertThat(vm.getM(5)).isEqualTo(120);
+      assertThat(vm.getM(0)).isEqualTo(100);
+      assertThat(vm.getM(1)).isEqualTo(20);
+      assertThat(vm.getM(6)).isEqualTo(0);
+      assertThat(vm.getM(7)).isEqualTo(0);
+    }
+  }
+
+  @Test
+  public void testCallAndReturn() throws Exception {
+    Executable executable =
+        program(
+            Instructions.Const.create(10, stack(0)),
+            Instructions.Call.create(3, 4),
+            Instructions.Move.create(stack(0), stack(2)),
+            Instructions.Halt.create(),
+            // A function storing its stack pointer before returning.
+            Instructions.Move.create(stack(0), stack(3)),
+            Instructions.Return.create());
+    for (CodeCompiler compiler : Arrays.asList(null, new ClosureCompiler())) {
+      SpookyVm vm =
+          SpookyVm.newBuilder(executable)
+              .setMemorySize(16)
+              .setCodeCompiler(compiler)
+              .setCompileThreshold(0)
+              .build();
+      assertThat(vm.run(3)).isEqualTo(RunStatus.BUDGET_EXHAUSTED);
+      assertThat(vm.getCallStack()).containsExactly(2);
+      assertThat(vm.runUntilHalt()).isEqualTo(RunStatus.HALTED);
+      assertThat(vm.getInstructionsExecuted()).isEqualTo(6);
+      assertThat(vm.getM(3)).isEqualTo(13);
+      assertThat(vm.getM(2)).isEqualTo(10);
+      assertThat(vm.getCallStack()).isEmpty();
+    }
+
+    SpookyVm recursive =
+        SpookyVm.newBuilder(program(Instructions.Call.create(0, 0), Instructions.Halt.create()))
+            .setMemorySize(16)
+            .setMaxCallDepth(16)
+            .build();
+    assertThat(recursive.runUntilHalt()).isEqualTo(RunStatus.FAULTED);
+    assertThat(recursive.getFault().getMessage()).isEqualTo("Call stack overflow");
+    assertThat(recursive.getCallStack()).hasSize(16);
+
+    SpookyVm unmatched = vm(Instructions.Return.create());
+    assertThat(unmatched.runUntilHalt()).isEqualTo(RunStatus.FAULTED);
+    assertThat(unmatched.getFault().getMessage()).isEqualTo("Return without call");
+  }
+
+  @Test
+  public void testCallDepthIndependentOfMemory() throws Exception {
+    // Calls without frames use no memory of the VM, so only the call depth stops the recursion.
+    SpookyVm vm =
+        SpookyVm.newBuilder(program(Instructions.Call.create(0, 0), Instructions.Halt.create()))
+            .setMemorySize(100_000_000)
+            .setMemoryAllocation(MemoryAllocation.LAZY)
+            .build();
+    assertThat(vm.runUntilHalt()).isEqualTo(RunStatus.FAULTED);
+    assertThat(vm.getFault().getMessage()).isEqualTo("Call stack overflow");
+    assertThat(vm.getCallStack()).hasSize(1 << 20);
+    assertThat(vm.allocatedCells()).isLessThan(100_000_000);
+  }
+
+  @Test
+  public void testImmediateOperands() throws Exception {
+    List<Instruction> instructions = new ArrayList<>();
+    instructions.add(Instructions.BinDef.create("test"));
+    instructions.add(Instructions.Text.create());
+    instructions.add(Instructions.Const.create(7, stack(2)));
+    instructions.add(Instructions.AddImmediate.create(stack(2), 5, stack(3)));
+    instructions.add(Instructions.SubImmediate.create(stack(2), 5, stack(4)));
+    instructions.add(Instructions.MulImmediate.create(stack(2), 5, stack(5)));
+    instructions.add(Instructions.DivImmediate.create(stack(2), 5, stack(6)));
+    instructions.add(Instructions.ModImmediate.create(stack(2), 5, stack(7)));
+    instructions.add(Instructions.LessThanImmediate.create(stack(2), 7, stack(8)));
+    instructions.add(Instructions.LessEqualsImmediate.create(stack(2), 7, stack(9)));
+    instructions.add(Instructions.GreaterThanImmediate.create(stack(2), 6, stack(10)));
+    instructions.add(Instructions.GreaterEqualsImmediate.create(stack(2), 8, stack(11)));
+    instructions.add(Instructions.EqualsImmediate.create(stack(2), 7, stack(12)));
+    instructions.add(Instructions.NotEqualsImmediate.create(stack(2), 7, stack(13)));
+    instructions.add(Instructions.DivImmediate.create(stack(2), 0, stack(14)));
+    instructions.add(Instructions.Data.create(0, 1));
+    ByteArrayOutputStream binary = new ByteArrayOutputStream();
+    for (Instruction instruction : instructions) {
+      instruction.writeBinary(binary);
+    }
+    Executable executable = ExecutableParser.fromBinary(binary.toByteArray());
+    assertThat(executable.text()).isEqualTo(instructions.subList(2, instructions.size() - 1));
+
+    for (CodeCompiler compiler : Arrays.asList(null, new ClosureCompiler())) {
+      SpookyVm vm =
+          SpookyVm.newBuilder(executable)
+              .setMemorySize(16)
+              .setCodeCompiler(compiler)
+              .setCompileThreshold(0)
+              .build();
+      assertThat(vm.runUntilHalt()).isEqualTo(RunStatus.FAULTED);
+      assertThat(vm.getFault().getMessage()).isEqualTo("Division by zero");
+      int[] expected = {12, 2, 35, 1, 2, 0, 1, 1, 0, 1, 0};
+      for (int i = 0; i < expected.length; i++) {
+        assertThat(vm.getM(3 + i)).isEqualTo(expected[i]);
+      }
+    }
+  }
+
+  @Test
+  public void testVerifiedCodeRunsUnchecked() throws Exception {
+    assertThat(program(Instructions.Jump.create(ZERO, 0)).verified()).isTrue();
+    assertThat(program(Instructions.Return.create()).verified()).isTrue();
+    assertThat(program(Instructions.Jump.create(ZERO, 1)).verified()).isFalse();
+    assertThat(program(Instructions.Const.create(1, stack(0))).verified()).isFalse();
+    assertThat(
+            program(
+                    Instructions.Const.create(1, Address.baseAndOffset(-1, -2)),
+                    Instructions.Halt.create())
+                .verified())
+        .isFalse();
+    SpookyVm inMemory = vm(Instructions.Const.create(1, stack(15)), Instructions.Halt.create());
+    assertThat(inMemory.isUnchecked()).isTrue();
+    // Fixed cells outside of the memory are only found when the VM is built.
+    SpookyVm outOfMemory = vm(Instructions.Const.create(1, stack(16)), Instructions.Halt.create());
+    assertThat(outOfMemory.isUnchecked()).isFalse();
+    assertThat(outOfMemory.runUntilHalt()).isEqualTo(RunStatus.FAULTED);
+
+    // Address jumps are still checked.
+    SpookyVm vm =
+        vm(
+            Instructions.Const.create(5, stack(2)),
+            Instructions.Add.create(stack(2), Address.baseAndOffset(-1, -2), stack(3)),
+            Instructions.JumpAddress.create(stack(3)),
+            Instructions.Halt.create());
+    assertThat(vm.isUnchecked()).isTrue();
+    assertThat(vm.runUntilHalt()).isEqualTo(RunStatus.FAULTED);
+    assertThat(vm.getFault().getMessage()).isEqualTo("Instruction pointer out-of-bounds");
+    assertThat(vm.getInstructionsExecuted()).isEqualTo(3);
+    assertThat(vm.getM(3)).isEqualTo(6);
+  }
+
+  private static SpookyVm vm(Instruction... text) throws InstructionException {
+    return vm(null, text);
+  }
+
+  /** Creates a VM running {@code text}, compiling all of it with {@code compiler} if non-null. */
+  private static SpookyVm vm(CodeCompiler compiler, Instruction... text)
+      throws InstructionException {
+    return SpookyVm.newBuilder(program(text))
+        .setMemorySize(16)
+        .setCodeCompiler(compiler)
+        .setCompileThreshold(0)
+        .build();
+  }
+
+  private static Executable program(Instruction... text) throws InstructionException {
+    List<Instruction> instructions = new ArrayList<>();
+    instructions.add(Instructions.BinDef.create("test"));
+    instructions.add(Instructions.Text.create());
+    instructions.addAll(Arrays.asList(text));
+    instructions.add(Instructions.Data.create(0, 1));
+    return ExecutableParser.fromInstructions(instructions);
+  }
+
+  private static Address stack(int cell) {
+    return Address.baseAndOffset(-1, cell);
+  }
+}
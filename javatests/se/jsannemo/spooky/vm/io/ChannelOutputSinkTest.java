@@ -0,0 +1,26 @@
+package se.jsannemo.spooky.vm.io;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+
+public class ChannelOutputSinkTest {
+
+  @Test
+  public void testWritesToChannel() {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    ChannelOutputSink sink = new ChannelOutputSink(Channels.newChannel(bos), 16);
+    for (int i = 0; i < 10; i++) {
+      sink.writeInt(i * 1000);
+      sink.writeChar(' ');
+    }
+    String expected = "0 1000 2000 3000 4000 5000 6000 7000 8000 9000 ";
+    // The last bytes are still buffered.
+    assertThat(bos.size()).isLessThan(expected.length());
+    sink.flush();
+    assertThat(new String(bos.toByteArray(), StandardCharsets.UTF_8)).isEqualTo(expected);
+  }
+}
@@ -0,0 +1,170 @@
+package se.jsannemo.spooky.vm.io;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import se.jsannemo.spooky.vm.SpookyVm;
+import se.jsannemo.spooky.vm.VmException;
+import se.jsannemo.spooky.vm.code.Executable;
+import se.jsannemo.spooky.vm.code.ExecutableParser;
+import se.jsannemo.spooky.vm.code.InstructionException;
+import se.jsannemo.spooky.vm.code.Instructions;
+import se.jsannemo.spooky.vm.code.Instructions.Address;
+import se.jsannemo.spooky.vm.code.Instructions.Instruction;
+
+/**
+ * Compares {@link OffHeapMemory} with the main memory of a {@link SpookyVm}, which is an array on
+ * the heap.
+ *
+ * <p>For both, it measures random single-cell accesses, bulk copies between the memory and a VM,
+ * a VM running a program over all of its memory, and the time of a full garbage collection while
+ * VMs holding the memory are alive.
+ */
+public final class OffHeapMemoryBenchmark {
+
+  private static final int CELLS = 1 << 24;
+  private static final int ACCESSES = 50_000_000;
+  private static final int ROUNDS = 5;
+  // The cells kept on the heap by VMs backed by off-heap memory.
+  private static final int HEAP_CELLS = 1 << 12;
+
+  private OffHeapMemoryBenchmark() {}
+
+  public static void main(String[] args) throws Exception {
+    SpookyVm vm = SpookyVm.newBuilder(halt()).setMemorySize(CELLS).build();
+    OffHeapMemory memory = OffHeapMemory.allocate(CELLS);
+    for (int round = 0; round < ROUNDS; round++) {
+      System.out.printf(
+          "random access: heap %6.2f ns, off-heap %6.2f ns%n",
+          accessNanos(vm::getM, vm::setM), accessNanos(memory::getM, memory::setM));
+    }
+    for (int round = 0; round < ROUNDS; round++) {
+      long start = System.nanoTime();
+      memory.copyFrom(vm, 0, 0, CELLS);
+      long copyFrom = System.nanoTime() - start;
+      start = System.nanoTime();
+      memory.copyTo(vm, 0, 0, CELLS);
+      long copyTo = System.nanoTime() - start;
+      System.out.printf(
+          "bulk copy: to off-heap %6.2f GB/s, to heap %6.2f GB/s%n",
+          gigabytesPerSecond(copyFrom), gigabytesPerSecond(copyTo));
+    }
+    memory.close();
+    memory = null;
+    vm = null;
+
+    Executable fillAndSum = fillAndSum();
+    for (int round = 0; round < ROUNDS; round++) {
+      System.out.printf(
+          "vm execution: heap %6.2f ns, off-heap %6.2f ns%n",
+          runNanos(SpookyVm.newBuilder(fillAndSum).setMemorySize(CELLS).build()),
+          runNanos(
+              SpookyVm.newBuilder(fillAndSum)
+                  .setMemoryBackend(OffHeapMemory.allocate(CELLS), HEAP_CELLS)
+                  .build()));
+    }
+
+    SpookyVm[] vms = new SpookyVm[16];
+    for (int i = 0; i < vms.length; i++) {
+      vms[i] = SpookyVm.newBuilder(halt()).setMemorySize(CELLS).build();
+      vms[i].setM(CELLS - 1, i);
+    }
+    gcMillis();
+    System.out.printf("full gc, %d MB on heap: %6.2f ms%n", heapMegabytes(vms.length), gcMillis());
+    for (int i = 0; i < vms.length; i++) {
+      vms[i] =
+          SpookyVm.newBuilder(halt())
+              .setMemoryBackend(OffHeapMemory.allocate(CELLS), HEAP_CELLS)
+              .build();
+      vms[i].setM(CELLS - 1, i);
+    }
+    gcMillis();
+    System.out.printf(
+        "full gc, %d MB off-heap: %6.2f ms%n", heapMegabytes(vms.length), gcMillis());
+  }
+
+  private interface Load {
+    int getM(int pos) throws VmException;
+  }
+
+  private interface Store {
+    void setM(int pos, int value) throws VmException;
+  }
+
+  /** Returns the average time of a random read followed by a write of the same cell. */
+  private static double accessNanos(Load load, Store store) throws VmException {
+    int pos = 0;
+    long start = System.nanoTime();
+    for (int i = 0; i < ACCESSES; i++) {
+      pos = (pos * 1_103_515_245 + 12_345) & (CELLS - 1);
+      store.setM(pos, load.getM(pos) + 1);
+    }
+    return (System.nanoTime() - start) / (double) ACCESSES;
+  }
+
+  /** Runs {@code vm} until it halts, and returns the average time of an instruction. */
+  private static double runNanos(SpookyVm vm) {
+    long start = System.nanoTime();
+    vm.runUntilHalt();
+    long elapsed = System.nanoTime() - start;
+    if (vm.getFault() != null) {
+      throw new IllegalStateException("Benchmark program faulted: " + vm.getFault());
+    }
+    return elapsed / (double) vm.getInstructionsExecuted();
+  }
+
+  private static double gigabytesPerSecond(long nanos) {
+    return 4.0 * CELLS / nanos;
+  }
+
+  private static long heapMegabytes(int memories) {
+    return 4L * CELLS * memories >> 20;
+  }
+
+  private static double gcMillis() {
+    long start = System.nanoTime();
+    System.gc();
+    return (System.nanoTime() - start) / 1e6;
+  }
+
+  private static Executable halt() throws InstructionException {
+    return ExecutableParser.fromInstructions(
+        Arrays.asList(
+            Instructions.BinDef.create("benchmark"),
+            Instructions.Text.create(),
+            Instructions.Halt.create(),
+            Instructions.Data.create(0, 1)));
+  }
+
+  /**
+   * Creates a program that writes its position into every cell above the stack through an
+   * indirect address, and then sums them.
+   */
+  private static Executable fillAndSum() throws InstructionException {
+    Address zero = Address.baseAndOffset(-1, -1);
+    Address pos = Address.baseAndOffset(-1, 2);
+    Address limit = Address.baseAndOffset(-1, 3);
+    Address sum = Address.baseAndOffset(-1, 4);
+    Address flag = Address.baseAndOffset(-1, 5);
+    Address cell = Address.baseAndOffset(2, 0);
+    List<Instruction> instructions = new ArrayList<>();
+    instructions.add(Instructions.BinDef.create("benchmark"));
+    instructions.add(Instructions.Text.create());
+    instructions.add(Instructions.Const.create(16, pos));
+    instructions.add(Instructions.Const.create(CELLS, limit));
+    instructions.add(Instructions.LessThan.create(pos, limit, flag));
+    instructions.add(Instructions.Jump.create(flag, 7));
+    instructions.add(Instructions.Move.create(pos, cell));
+    instructions.add(Instructions.AddImmediate.create(pos, 1, pos));
+    instructions.add(Instructions.Jump.create(zero, 2));
+    instructions.add(Instructions.Const.create(16, pos));
+    instructions.add(Instructions.LessThan.create(pos, limit, flag));
+    instructions.add(Instructions.Jump.create(flag, 13));
+    instructions.add(Instructions.Add.create(sum, cell, sum));
+    instructions.add(Instructions.AddImmediate.create(pos, 1, pos));
+    instructions.add(Instructions.Jump.create(zero, 8));
+    instructions.add(Instructions.Halt.create());
+    instructions.add(Instructions.Data.create(0, 1));
+    return ExecutableParser.fromInstructions(instructions);
+  }
+}
@@ -0,0 +1,185 @@
+package se.jsannemo.spooky.vm.io;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import se.jsannemo.spooky.vm.ClosureCompiler;
+import se.jsannemo.spooky.vm.CodeCompiler;
+import se.jsannemo.spooky.vm.MemoryAllocation;
+import se.jsannemo.spooky.vm.Snapshot;
+import se.jsannemo.spooky.vm.SpookyVm;
+import se.jsannemo.spooky.vm.VmException;
+import se.jsannemo.spooky.vm.code.Executable;
+import se.jsannemo.spooky.vm.code.ExecutableParser;
+import se.jsannemo.spooky.vm.code.InstructionException;
+import se.jsannemo.spooky.vm.code.Instructions;
+import se.jsannemo.spooky.vm.code.Instructions.Address;
+import se.jsannemo.spooky.vm.code.Instructions.Instruction;
+
+public class OffHeapMemoryTest {
+
+  @Test
+  public void testReadsAndWrites() throws Exception {
+    OffHeapMemory memory = OffHeapMemory.allocate(8);
+    assertThat(memory.size()).isEqualTo(8);
+    assertThat(memory.getM(7)).isEqualTo(0);
+    memory.setM(7, -3);
+    assertThat(memory.getM(7)).isEqualTo(-3);
+    assertThrows(VmException.class, () -> memory.getM(8));
+    assertThrows(VmException.class, () -> memory.setM(-1, 0));
+
+    memory.write(2, new int[] {9, 1, 2, 3}, 1, 3);
+    int[] cells = new int[4];
+    memory.read(1, cells, 0, 4);
+    assertThat(cells).isEqualTo(new int[] {0, 1, 2, 3});
+    assertThrows(VmException.class, () -> memory.read(6, cells, 0, 3));
+
+    memory.close();
+    assertThrows(IllegalStateException.class, () -> memory.getM(0));
+  }
+
+  @Test
+  public void testMapsFile() throws Exception {
+    Path file = Files.createTempFile("memory", ".bin");
+    try {
+      try (OffHeapMemory memory = OffHeapMemory.map(file, 4)) {
+        memory.setM(1, 0x01020304);
+      }
+      assertThat(Files.readAllBytes(file))
+          .isEqualTo(new byte[] {0, 0, 0, 0, 4, 3, 2, 1, 0, 0, 0, 0, 0, 0, 0, 0});
+      try (OffHeapMemory memory = OffHeapMemory.map(file, 4)) {
+        assertThat(memory.getM(1)).isEqualTo(0x01020304);
+      }
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  public void testCopiesToAndFromVm() throws Exception {
+    SpookyVm vm =
+        SpookyVm.newBuilder(
+                ExecutableParser.fromInstructions(
+                    Arrays.asList(
+                        Instructions.BinDef.create("test"),
+                        Instructions.Text.create(),
+                        Instructions.Halt.create(),
+                        Instructions.Data.create(0, 1))))
+            .setMemorySize(20_000)
+            .setMemoryAllocation(MemoryAllocation.LAZY)
+            .build();
+    OffHeapMemory memory = OffHeapMemory.allocate(10_000);
+    for (int i = 0; i < memory.size(); i++) {
+      memory.setM(i, i);
+    }
+    memory.copyTo(vm, 0, 10_000, 10_000);
+    assertThat(vm.getM(9_999)).isEqualTo(0);
+    assertThat(vm.getM(10_000)).isEqualTo(0);
+    assertThat(vm.getM(19_999)).isEqualTo(9_999);
+    assertThrows(VmException.class, () -> memory.copyTo(vm, 0, 10_001, 10_000));
+    // Nothing is copied by copies that fault.
+    assertThat(vm.getM(10_001)).isEqualTo(1);
+
+    OffHeapMemory copy = OffHeapMemory.allocate(10_000);
+    copy.copyFrom(vm, 5_000, 0, 10_000);
+    assertThat(copy.getM(4_999)).isEqualTo(0);
+    assertThat(copy.getM(5_000)).isEqualTo(0);
+    assertThat(copy.getM(9_999)).isEqualTo(4_999);
+  }
+
+  @Test
+  public void testBacksVmMemory() throws Exception {
+    for (CodeCompiler compiler : Arrays.asList(null, new ClosureCompiler())) {
+      OffHeapMemory memory = OffHeapMemory.allocate(10_000);
+      memory.setM(9_000, 7);
+      SpookyVm vm =
+          SpookyVm.newBuilder(fillAndSum(16, 8_000))
+              .setCodeCompiler(compiler)
+              .setCompileThreshold(0)
+              .setMemoryBackend(memory, 256)
+              .build();
+      assertThat(vm.getMemorySize()).isEqualTo(10_000);
+      // The memory starts out with the contents of the backend.
+      assertThat(vm.getM(9_000)).isEqualTo(7);
+      Snapshot initial = vm.snapshot();
+
+      vm.runUntilHalt();
+      assertThat(vm.getFault()).isNull();
+      assertThat(vm.getM(4)).isEqualTo(8_000 * 7_999 / 2 - 16 * 15 / 2);
+      // Cells written through indirect addresses past the heap cells end up in the backend.
+      assertThat(memory.getM(7_999)).isEqualTo(7_999);
+      assertThat(vm.getM(7_999)).isEqualTo(7_999);
+      int[] cells = new int[8];
+      vm.readMemory(252, cells, 0, 8);
+      assertThat(cells).isEqualTo(new int[] {252, 253, 254, 255, 256, 257, 258, 259});
+
+      SpookyVm heap =
+          SpookyVm.newBuilder(fillAndSum(16, 8_000))
+              .setCodeCompiler(compiler)
+              .setCompileThreshold(0)
+              .setMemorySize(10_000)
+              .build();
+      heap.setM(9_000, 7);
+      heap.runUntilHalt();
+      int[] expected = new int[10_000];
+      heap.readMemory(0, expected, 0, expected.length);
+      int[] actual = new int[10_000];
+      vm.readMemory(0, actual, 0, actual.length);
+      assertThat(actual).isEqualTo(expected);
+
+      SpookyVm child = vm.fork();
+      child.readMemory(0, actual, 0, actual.length);
+      assertThat(actual).isEqualTo(expected);
+
+      vm.writeMemory(250, new int[] {-1, -2, -3, -4, -5, -6, -7, -8}, 0, 8);
+      assertThat(memory.getM(257)).isEqualTo(-8);
+      vm.reset();
+      assertThat(memory.getM(7_999)).isEqualTo(0);
+      assertThat(memory.getM(9_000)).isEqualTo(0);
+      vm.restore(initial);
+      assertThat(memory.getM(7_999)).isEqualTo(0);
+      assertThat(memory.getM(9_000)).isEqualTo(7);
+      vm.runUntilHalt();
+      vm.readMemory(0, actual, 0, actual.length);
+      assertThat(actual).isEqualTo(expected);
+    }
+  }
+
+  /**
+   * Creates a program that writes its position into each cell from {@code start} up to {@code
+   * end} through an indirect address, and then sums them into cell 4.
+   */
+  private static Executable fillAndSum(int start, int end) throws InstructionException {
+    Address zero = Address.baseAndOffset(-1, -1);
+    Address pos = Address.baseAndOffset(-1, 2);
+    Address limit = Address.baseAndOffset(-1, 3);
+    Address sum = Address.baseAndOffset(-1, 4);
+    Address flag = Address.baseAndOffset(-1, 5);
+    Address cell = Address.baseAndOffset(2, 0);
+    List<Instruction> instructions = new ArrayList<>();
+    instructions.add(Instructions.BinDef.create("test"));
+    instructions.add(Instructions.Text.create());
+    instructions.add(Instructions.Const.create(start, pos));
+    instructions.add(Instructions.Const.create(end, limit));
+    instructions.add(Instructions.LessThan.create(pos, limit, flag));
+    instructions.add(Instructions.Jump.create(flag, 7));
+    instructions.add(Instructions.Move.create(pos, cell));
+    instructions.add(Instructions.AddImmediate.create(pos, 1, pos));
+    instructions.add(Instructions.Jump.create(zero, 2));
+    instructions.add(Instructions.Const.create(start, pos));
+    instructions.add(Instructions.LessThan.create(pos, limit, flag));
+    instructions.add(Instructions.Jump.create(flag, 13));
+    instructions.add(Instructions.Add.create(sum, cell, sum));
+    instructions.add(Instructions.AddImmediate.create(pos, 1, pos));
+    instructions.add(Instructions.Jump.create(zero, 8));
+    instructions.add(Instructions.Halt.create());
+    instructions.add(Instructions.Data.create(0, 1));
+    return ExecutableParser.fromInstructions(instructions);
+  }
+}
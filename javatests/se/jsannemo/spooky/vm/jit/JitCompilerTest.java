@@ -0,0 +1,285 @@
+package se.jsannemo.spooky.vm.jit;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import se.jsannemo.spooky.compiler.Errors;
+import se.jsannemo.spooky.compiler.codegen.CodeGen;
+import se.jsannemo.spooky.compiler.ir.IrProgram;
+import se.jsannemo.spooky.compiler.ir.ToIr;
+import se.jsannemo.spooky.compiler.parser.Parser;
+import se.jsannemo.spooky.compiler.parser.Tokenizer;
+import se.jsannemo.spooky.vm.CallingConvention;
+import se.jsannemo.spooky.vm.MemoryAllocation;
+import se.jsannemo.spooky.vm.MemoryTracking;
+import se.jsannemo.spooky.vm.Promotion;
+import se.jsannemo.spooky.vm.RunStatus;
+import se.jsannemo.spooky.vm.SpookyVm;
+import se.jsannemo.spooky.vm.code.Executable;
+import se.jsannemo.spooky.vm.code.ExecutableParser;
+import se.jsannemo.spooky.vm.code.InstructionException;
+import se.jsannemo.spooky.vm.code.Instructions;
+import se.jsannemo.spooky.vm.code.Instructions.Address;
+import se.jsannemo.spooky.vm.code.Instructions.Instruction;
+
+public class JitCompilerTest {
+
+  private static final ImmutableList<String> PROGRAMS =
+      ImmutableList.of(
+          "binary.spooky",
+          "callafterprint.spooky",
+          "fizzbuzz.spooky",
+          "globalassign.spooky",
+          "globals_calling_functions.spooky",
+          "globals_stack.spooky",
+          "helloworld.spooky",
+          "isprime.spooky",
+          "shortcircuit.spooky",
+          "ternary.spooky",
+          "printfun.spooky",
+          "printglobal.spooky",
+          "printliteral.spooky");
+
+  // Compile thresholds for running the executable interpreted, compiled and tiered.
+  private static final long INTERPRETED = -1;
+  private static final long COMPILED = 0;
+  private static final long TIERED = 3;
+
+  @Test
+  public void testProgramsMatchInterpreter() {
+    for (String name : PROGRAMS) {
+      Executable executable = compileProgram(name);
+      String interpreted = run(executable, INTERPRETED, Long.MAX_VALUE);
+      assertThat(run(executable, COMPILED, Long.MAX_VALUE)).isEqualTo(interpreted);
+      assertThat(run(executable, TIERED, Long.MAX_VALUE)).isEqualTo(interpreted);
+    }
+  }
+
+  @Test
+  public void testOptimizedProgramsMatchInterpreter() {
+    for (String name : PROGRAMS) {
+      Executable executable = compileProgram(name);
+      String interpreted = run(executable, INTERPRETED, 7, true);
+      assertThat(run(executable, COMPILED, 7, true)).isEqualTo(interpreted);
+      assertThat(run(executable, TIERED, 7, true)).isEqualTo(interpreted);
+    }
+  }
+
+  @Test
+  public void testBudgetsMatchInterpreter() {
+    Executable executable = compileProgram("isprime.spooky");
+    for (long budget = 1; budget < 20; budget++) {
+      String interpreted = run(executable, INTERPRETED, budget);
+      assertThat(run(executable, COMPILED, budget)).isEqualTo(interpreted);
+      assertThat(run(executable, TIERED, budget)).isEqualTo(interpreted);
+    }
+  }
+
+  @Test
+  public void testSuspensionsMatchInterpreter() {
+    for (String name : PROGRAMS) {
+      Executable executable = compileProgram(name);
+      for (boolean optimize : new boolean[] {false, true}) {
+        String interpreted = run(executable, INTERPRETED, Long.MAX_VALUE, optimize, true);
+        assertThat(run(executable, COMPILED, Long.MAX_VALUE, optimize, true))
+            .isEqualTo(interpreted);
+        assertThat(run(executable, TIERED, Long.MAX_VALUE, optimize, true))
+            .isEqualTo(interpreted);
+      }
+    }
+  }
+
+  @Test
+  public void testLazyMemoryMatchesInterpreter() {
+    Address one = Address.baseAndOffset(-1, -2);
+    Address counter = Address.baseAndOffset(-1, 1);
+    Address flag = Address.baseAndOffset(-1, 2);
+    // Writes every cell from 3 upwards with its position, until writing past the memory.
+    Executable fill =
+        executable(
+            Instructions.Const.create(3, counter),
+            Instructions.Move.create(counter, Address.baseAndOffset(1, 0)),
+            Instructions.Add.create(counter, one, counter),
+            Instructions.Const.create(2000, flag),
+            Instructions.LessThan.create(counter, flag, flag),
+            Instructions.JumpN.create(flag, 1),
+            Instructions.Halt.create());
+    List<Executable> executables = new ArrayList<>();
+    executables.add(fill);
+    for (String name : PROGRAMS) {
+      executables.add(compileProgram(name));
+    }
+    for (Executable executable : executables) {
+      String interpreted = run(executable, INTERPRETED, 7, true, false, MemoryAllocation.EAGER);
+      assertThat(run(executable, INTERPRETED, 7, true, false, MemoryAllocation.LAZY))
+          .isEqualTo(interpreted);
+      assertThat(run(executable, COMPILED, 7, true, false, MemoryAllocation.LAZY))
+          .isEqualTo(interpreted);
+      assertThat(run(executable, TIERED, 7, true, false, MemoryAllocation.LAZY))
+          .isEqualTo(interpreted);
+    }
+  }
+
+  @Test
+  public void testPromotesHotFunctions() {
+    SpookyVm vm =
+        SpookyVm.newBuilder(compileProgram("isprime.spooky"))
+            .addStdLib()
+            .setStdOut(new PrintStream(new ByteArrayOutputStream()))
+            .setMemorySize(1000)
+            .setCodeCompiler(new JitCompiler())
+            .setCompileThreshold(10)
+            .build();
+    assertThat(vm.getPromotions()).isEmpty();
+    assertThat(vm.runUntilHalt()).isEqualTo(RunStatus.HALTED);
+    assertThat(vm.getPromotions()).isNotEmpty();
+    for (Promotion promotion : vm.getPromotions()) {
+      assertThat(promotion.compiled()).isTrue();
+      assertThat(vm.getHotness().get(promotion.functionEntry())).isAtLeast(10L);
+    }
+  }
+
+  @Test
+  public void testShortProgramsStayInterpreted() {
+    SpookyVm vm =
+        SpookyVm.newBuilder(compileProgram("helloworld.spooky"))
+            .addStdLib()
+            .setStdOut(new PrintStream(new ByteArrayOutputStream()))
+            .setMemorySize(1000)
+            .setCodeCompiler(new JitCompiler())
+            .build();
+    assertThat(vm.runUntilHalt()).isEqualTo(RunStatus.HALTED);
+    assertThat(vm.getPromotions()).isEmpty();
+    assertThat(vm.getHotness()).isNotEmpty();
+  }
+
+  @Test
+  public void testFaultsMatchInterpreter() {
+    Address zero = Address.baseAndOffset(-1, -1);
+    Address counter = Address.baseAndOffset(-1, 0);
+    // Counts down from 2 until dividing by zero.
+    Executable division =
+        executable(
+            Instructions.Const.create(2, counter),
+            Instructions.Div.create(counter, counter, Address.baseAndOffset(-1, 1)),
+            Instructions.Sub.create(counter, Address.baseAndOffset(-1, -2), counter),
+            Instructions.Jump.create(zero, 1));
+    Executable outOfBounds =
+        executable(
+            Instructions.Const.create(100, counter),
+            Instructions.Move.create(Address.baseAndOffset(0, 0), counter));
+    Executable badJump = executable(Instructions.Jump.create(zero, 100));
+    for (Executable executable : ImmutableList.of(division, outOfBounds, badJump)) {
+      String interpreted = run(executable, INTERPRETED, Long.MAX_VALUE);
+      assertThat(interpreted).contains("FAULTED");
+      assertThat(run(executable, COMPILED, Long.MAX_VALUE)).isEqualTo(interpreted);
+    }
+  }
+
+  private static String run(Executable executable, long compileThreshold, long budget) {
+    return run(executable, compileThreshold, budget, false);
+  }
+
+  private static String run(
+      Executable executable, long compileThreshold, long budget, boolean optimize) {
+    return run(executable, compileThreshold, budget, optimize, false);
+  }
+
+  private static String run(
+      Executable executable,
+      long compileThreshold,
+      long budget,
+      boolean optimize,
+      boolean suspend) {
+    return run(executable, compileThreshold, budget, optimize, suspend, MemoryAllocation.EAGER);
+  }
+
+  /**
+   * Runs {@code executable} with a fixed budget per run, summarizing the observable results. If
+   * {@code suspend} is set, the print externs suspend the VM after printing.
+   */
+  private static String run(
+      Executable executable,
+      long compileThreshold,
+      long budget,
+      boolean optimize,
+      boolean suspend,
+      MemoryAllocation memoryAllocation) {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    SpookyVm.Builder builder = SpookyVm.newBuilder(executable);
+    if (suspend) {
+      builder
+          .addExtern("random", vm -> CallingConvention.setReturn(vm, 0, 4))
+          .addExtern("print", vm -> suspendAfter(vm, (char) CallingConvention.getArg(vm, 0)))
+          .addExtern("printInt", vm -> suspendAfter(vm, CallingConvention.getArg(vm, 0)));
+    } else {
+      builder.addStdLib();
+    }
+    builder
+        .setStdOut(new PrintStream(bos))
+        .setMemorySize(1000)
+        .setMemoryTracking(MemoryTracking.EXACT)
+        .setMemoryAllocation(memoryAllocation)
+        .setPeepholeOptimization(optimize);
+    if (compileThreshold != INTERPRETED) {
+      builder.setCodeCompiler(new JitCompiler()).setCompileThreshold(compileThreshold);
+    }
+    SpookyVm vm = builder.build();
+    List<String> results = new ArrayList<>();
+    RunStatus status;
+    do {
+      status = vm.run(budget);
+      results.add(status + " " + vm.getInstructionsExecuted() + " " + bos);
+    } while (status == RunStatus.BUDGET_EXHAUSTED || status == RunStatus.SUSPENDED);
+    if (status == RunStatus.FAULTED) {
+      results.add(vm.getFault().getMessage());
+    }
+    results.add("max memory " + vm.getMaxMemoryUsed());
+    return String.join("\n", results);
+  }
+
+  private static void suspendAfter(SpookyVm vm, Object printed) {
+    vm.getStdOut().print(printed);
+    vm.suspend();
+  }
+
+  private static Executable executable(Instruction... text) {
+    List<Instruction> instructions = new ArrayList<>();
+    instructions.add(Instructions.BinDef.create("test"));
+    instructions.add(Instructions.Text.create());
+    instructions.addAll(ImmutableList.copyOf(text));
+    instructions.add(Instructions.Data.create(0, 1));
+    try {
+      return ExecutableParser.fromInstructions(instructions);
+    } catch (InstructionException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  private static Executable compileProgram(String name) {
+    byte[] bytes;
+    try {
+      bytes = Files.readAllBytes(Paths.get("test_programs", "sources", name));
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Could not read " + name);
+    }
+    Errors errs = new Errors();
+    Tokenizer tokenizer = Tokenizer.create(new String(bytes, StandardCharsets.UTF_8));
+    IrProgram irProgram = ToIr.generate(Parser.parse(tokenizer, errs), errs);
+    assertThat(errs.errors()).isEmpty();
+    try {
+      return ExecutableParser.fromInstructions(CodeGen.codegen(name, irProgram));
+    } catch (InstructionException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+}
@@ -0,0 +1,86 @@
+package se.jsannemo.spooky.vm.sched;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import se.jsannemo.spooky.vm.RunStatus;
+import se.jsannemo.spooky.vm.SpookyVm;
+import se.jsannemo.spooky.vm.VmException;
+import se.jsannemo.spooky.vm.code.Executable;
+import se.jsannemo.spooky.vm.code.ExecutableParser;
+import se.jsannemo.spooky.vm.code.InstructionException;
+import se.jsannemo.spooky.vm.code.Instructions;
+import se.jsannemo.spooky.vm.code.Instructions.Address;
+import se.jsannemo.spooky.vm.code.Instructions.Instruction;
+
+/**
+ * Measures the throughput of {@link VirtualThreadRunner} running many VMs whose externs block.
+ *
+ * <p>Every VM calls an extern that sleeps a number of times, standing in for I/O. With virtual
+ * threads all VMs sleep concurrently, so the run takes little more than the sleeping time of a
+ * single VM. The number of VMs can be given as the first argument.
+ */
+public final class BlockingExternBenchmark {
+
+  private static final int DEFAULT_VMS = 100_000;
+  private static final int CALLS = 10;
+  private static final long SLEEP_MILLIS = 10;
+
+  private static final Address ZERO = Address.baseAndOffset(-1, -1);
+
+  private BlockingExternBenchmark() {}
+
+  public static void main(String[] args) throws Exception {
+    int vms = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_VMS;
+    Executable executable = program();
+    try (VirtualThreadRunner runner = new VirtualThreadRunner()) {
+      System.out.println("Virtual threads: " + runner.usesVirtualThreads());
+      long start = System.nanoTime();
+      List<CompletableFuture<RunStatus>> results = new ArrayList<>();
+      for (int i = 0; i < vms; i++) {
+        SpookyVm vm =
+            SpookyVm.newBuilder(executable)
+                .setMemorySize(4)
+                .addExtern("sleep", v -> sleep())
+                .build();
+        vm.setM(0, CALLS);
+        results.add(runner.submit(vm));
+      }
+      for (CompletableFuture<RunStatus> result : results) {
+        if (result.get() != RunStatus.HALTED) {
+          throw new IllegalStateException("Benchmark program stopped with " + result.get());
+        }
+      }
+      long elapsed = System.nanoTime() - start;
+      System.out.printf(
+          "%d VMs sleeping %d x %d ms: %.2f s, %.0f VMs/s%n",
+          vms, CALLS, SLEEP_MILLIS, elapsed / 1e9, vms / (elapsed / 1e9));
+    }
+  }
+
+  private static void sleep() throws VmException {
+    try {
+      Thread.sleep(SLEEP_MILLIS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new VmException("Interrupted");
+    }
+  }
+
+  /** Returns a program that calls the sleep extern as many times as cell 0 says. */
+  private static Executable program() throws InstructionException {
+    Address counter = Address.baseAndOffset(-1, 0);
+    Address done = Address.baseAndOffset(-1, 1);
+    List<Instruction> instructions = new ArrayList<>();
+    instructions.add(Instructions.BinDef.create("benchmark"));
+    instructions.add(Instructions.Text.create());
+    instructions.add(Instructions.Equals.create(counter, ZERO, done));
+    instructions.add(Instructions.JumpN.create(done, 5));
+    instructions.add(Instructions.Extern.create("sleep"));
+    instructions.add(Instructions.SubImmediate.create(counter, 1, counter));
+    instructions.add(Instructions.Jump.create(ZERO, 0));
+    instructions.add(Instructions.Halt.create());
+    instructions.add(Instructions.Data.create(0, 1));
+    return ExecutableParser.fromInstructions(instructions);
+  }
+}
@@ -0,0 +1,86 @@
+package se.jsannemo.spooky.vm.sched;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import se.jsannemo.spooky.vm.RunStatus;
+import se.jsannemo.spooky.vm.SpookyVm;
+import se.jsannemo.spooky.vm.code.Executable;
+import se.jsannemo.spooky.vm.code.ExecutableParser;
+import se.jsannemo.spooky.vm.code.InstructionException;
+import se.jsannemo.spooky.vm.code.Instructions;
+import se.jsannemo.spooky.vm.code.Instructions.Address;
+import se.jsannemo.spooky.vm.code.Instructions.Instruction;
+
+/**
+ * Measures the throughput of {@link VmScheduler} running many VMs, for every number of threads up
+ * to the number of available processors.
+ *
+ * <p>Every VM counts down from a fixed number, so all VMs do the same work. Since the VMs share
+ * nothing, the throughput should grow linearly with the number of threads.
+ */
+public final class SchedulerBenchmark {
+
+  private static final int VMS = 2_000;
+  // Every iteration of the countdown executes 4 instructions.
+  private static final int ITERATIONS = 250_000;
+  private static final long INSTRUCTIONS = 4L * ITERATIONS * VMS;
+
+  private static final Address ZERO = Address.baseAndOffset(-1, -1);
+
+  private SchedulerBenchmark() {}
+
+  public static void main(String[] args) throws Exception {
+    Executable executable = countdown();
+    int processors = Runtime.getRuntime().availableProcessors();
+    run(executable, processors);
+    double base = 0;
+    for (int threads = 1; threads <= processors; threads *= 2) {
+      long start = System.nanoTime();
+      run(executable, threads);
+      long elapsed = System.nanoTime() - start;
+      double throughput = INSTRUCTIONS / (elapsed / 1e9);
+      if (threads == 1) {
+        base = throughput;
+      }
+      System.out.printf(
+          "%3d threads %8.1f M instructions/s %5.2fx%n",
+          threads, throughput / 1e6, throughput / base);
+      if (threads < processors && threads * 2 > processors) {
+        threads = processors / 2;
+      }
+    }
+  }
+
+  private static void run(Executable executable, int threads) throws Exception {
+    try (VmScheduler scheduler = new VmScheduler(threads, VmScheduler.DEFAULT_QUANTUM)) {
+      List<CompletableFuture<RunStatus>> results = new ArrayList<>();
+      for (int i = 0; i < VMS; i++) {
+        SpookyVm vm = SpookyVm.newBuilder(executable).setMemorySize(4).build();
+        vm.setM(0, ITERATIONS);
+        results.add(scheduler.submit(vm));
+      }
+      for (CompletableFuture<RunStatus> result : results) {
+        if (result.get() != RunStatus.HALTED) {
+          throw new IllegalStateException("Benchmark program stopped with " + result.get());
+        }
+      }
+    }
+  }
+
+  /** Returns a program that counts cell 0 down to zero. */
+  private static Executable countdown() throws InstructionException {
+    Address counter = Address.baseAndOffset(-1, 0);
+    Address done = Address.baseAndOffset(-1, 1);
+    List<Instruction> instructions = new ArrayList<>();
+    instructions.add(Instructions.BinDef.create("benchmark"));
+    instructions.add(Instructions.Text.create());
+    instructions.add(Instructions.Equals.create(counter, ZERO, done));
+    instructions.add(Instructions.JumpN.create(done, 4));
+    instructions.add(Instructions.SubImmediate.create(counter, 1, counter));
+    instructions.add(Instructions.Jump.create(ZERO, 0));
+    instructions.add(Instructions.Halt.create());
+    instructions.add(Instructions.Data.create(0, 1));
+    return ExecutableParser.fromInstructions(instructions);
+  }
+}
@@ -0,0 +1,73 @@
+package se.jsannemo.spooky.vm.sched;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import se.jsannemo.spooky.vm.RunStatus;
+import se.jsannemo.spooky.vm.SpookyVm;
+import se.jsannemo.spooky.vm.VmException;
+import se.jsannemo.spooky.vm.code.Executable;
+import se.jsannemo.spooky.vm.code.ExecutableParser;
+import se.jsannemo.spooky.vm.code.InstructionException;
+import se.jsannemo.spooky.vm.code.Instructions;
+import se.jsannemo.spooky.vm.code.Instructions.Address;
+import se.jsannemo.spooky.vm.code.Instructions.Instruction;
+
+public class VirtualThreadRunnerTest {
+
+  @Test
+  public void testExternsBlockConcurrently() throws Exception {
+    int vms = 100;
+    // Every VM blocks until all of them have called the extern, which only finishes if they all
+    // run at the same time.
+    CountDownLatch latch = new CountDownLatch(vms);
+    Executable executable =
+        program(
+            Instructions.Extern.create("await"),
+            Instructions.Const.create(1, Address.baseAndOffset(-1, 3)),
+            Instructions.Halt.create());
+    try (VirtualThreadRunner runner = new VirtualThreadRunner()) {
+      List<SpookyVm> started = new ArrayList<>();
+      List<CompletableFuture<RunStatus>> results = new ArrayList<>();
+      for (int i = 0; i < vms; i++) {
+        SpookyVm vm =
+            SpookyVm.newBuilder(executable)
+                .setMemorySize(4)
+                .addExtern("await", v -> await(latch))
+                .build();
+        started.add(vm);
+        results.add(runner.submit(vm));
+      }
+      for (int i = 0; i < vms; i++) {
+        assertThat(results.get(i).get(10, TimeUnit.SECONDS)).isEqualTo(RunStatus.HALTED);
+        assertThat(started.get(i).getM(3)).isEqualTo(1);
+      }
+    }
+  }
+
+  private static void await(CountDownLatch latch) throws VmException {
+    latch.countDown();
+    try {
+      if (!latch.await(10, TimeUnit.SECONDS)) {
+        throw new VmException("Timed out");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new VmException("Interrupted");
+    }
+  }
+
+  private static Executable program(Instruction... text) throws InstructionException {
+    List<Instruction> instructions = new ArrayList<>();
+    instructions.add(Instructions.BinDef.create("test"));
+    instructions.add(Instructions.Text.create());
+    instructions.addAll(List.of(text));
+    instructions.add(Instructions.Data.create(0, 1));
+    return ExecutableParser.fromInstructions(instructions);
+  }
+}
@@ -0,0 +1,204 @@
+package se.jsannemo.spooky.vm.sched;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import se.jsannemo.spooky.vm.ExternCall;
+import se.jsannemo.spooky.vm.RunStatus;
+import se.jsannemo.spooky.vm.SpookyVm;
+import se.jsannemo.spooky.vm.code.Executable;
+import se.jsannemo.spooky.vm.code.ExecutableParser;
+import se.jsannemo.spooky.vm.code.InstructionException;
+import se.jsannemo.spooky.vm.code.Instructions;
+import se.jsannemo.spooky.vm.code.Instructions.Address;
+import se.jsannemo.spooky.vm.code.Instructions.Instruction;
+
+public class VmSchedulerTest {
+
+  private static final Address ZERO = Address.baseAndOffset(-1, -1);
+
+  @Test
+  public void testRunsVmsUntilTheyStop() throws Exception {
+    Executable countdown = countdown();
+    try (VmScheduler scheduler = new VmScheduler(4, 10)) {
+      List<SpookyVm> vms = new ArrayList<>();
+      List<CompletableFuture<RunStatus>> results = new ArrayList<>();
+      for (int i = 0; i < 100; i++) {
+        SpookyVm vm = SpookyVm.newBuilder(countdown).setMemorySize(4).build();
+        vm.setM(0, 1000 + i);
+        vms.add(vm);
+        results.add(scheduler.submit(vm, 1 + i % 3));
+      }
+      for (int i = 0; i < vms.size(); i++) {
+        assertThat(results.get(i).get(10, TimeUnit.SECONDS)).isEqualTo(RunStatus.HALTED);
+        assertThat(vms.get(i).getM(0)).isEqualTo(0);
+      }
+    }
+  }
+
+  @Test
+  public void testReportsLimitsAndFaults() throws Exception {
+    try (VmScheduler scheduler = new VmScheduler(2, 10)) {
+      SpookyVm limited = SpookyVm.newBuilder(countdown()).setMemorySize(4).setFuel(100).build();
+      limited.setM(0, 1000);
+      SpookyVm faulting =
+          SpookyVm.newBuilder(program(Instructions.Div.create(ZERO, ZERO, ZERO)))
+              .setMemorySize(4)
+              .build();
+      assertThat(scheduler.submit(limited).get(10, TimeUnit.SECONDS))
+          .isEqualTo(RunStatus.OUT_OF_FUEL);
+      assertThat(scheduler.submit(faulting).get(10, TimeUnit.SECONDS))
+          .isEqualTo(RunStatus.FAULTED);
+      assertThat(faulting.getFault()).hasMessageThat().isEqualTo("Division by zero");
+    }
+  }
+
+  @Test
+  public void testCancelStopsVm() throws Exception {
+    try (VmScheduler scheduler = new VmScheduler(1, 10)) {
+      SpookyVm vm = SpookyVm.newBuilder(program(Instructions.Jump.create(ZERO, 0))).build();
+      CompletableFuture<RunStatus> result = scheduler.submit(vm);
+      result.cancel(false);
+      assertThat(scheduler.shutdown(10, TimeUnit.SECONDS)).isTrue();
+    }
+  }
+
+  @Test
+  public void testShutdownLetsVmsStop() throws Exception {
+    VmScheduler scheduler = new VmScheduler(1, 10);
+    SpookyVm vm = SpookyVm.newBuilder(countdown()).setMemorySize(4).build();
+    vm.setM(0, 100_000);
+    CompletableFuture<RunStatus> result = scheduler.submit(vm);
+    assertThat(scheduler.shutdown(10, TimeUnit.SECONDS)).isTrue();
+    assertThat(result.getNow(null)).isEqualTo(RunStatus.HALTED);
+    assertThat(vm.getM(0)).isEqualTo(0);
+    assertThrows(RejectedExecutionException.class, () -> scheduler.submit(vm));
+  }
+
+  @Test
+  public void testShutdownCancelsVmsThatDoNotStop() throws Exception {
+    VmScheduler scheduler = new VmScheduler(1, 10);
+    SpookyVm looping = SpookyVm.newBuilder(program(Instructions.Jump.create(ZERO, 0))).build();
+    SpookyVm suspended =
+        SpookyVm.newBuilder(program(Instructions.Extern.create("wait"), Instructions.Halt.create()))
+            .addExtern("wait", scheduler.async(0, vm -> new CompletableFuture<>()))
+            .setMemorySize(4)
+            .build();
+    List<CompletableFuture<RunStatus>> results =
+        List.of(scheduler.submit(looping), scheduler.submit(suspended));
+    assertThat(scheduler.shutdown(100, TimeUnit.MILLISECONDS)).isFalse();
+    for (CompletableFuture<RunStatus> result : results) {
+      assertThat(result.isCancelled()).isTrue();
+    }
+  }
+
+  @Test
+  public void testAsyncExternsSuspendVms() throws Exception {
+    // A single thread drives all VMs, which only completes if waiting ones give it up.
+    try (VmScheduler scheduler = new VmScheduler(1, 10)) {
+      List<CompletableFuture<Integer>> requests = new ArrayList<>();
+      ExternCall fetch =
+          scheduler.async(
+              1,
+              vm -> {
+                CompletableFuture<Integer> request = new CompletableFuture<>();
+                synchronized (requests) {
+                  requests.add(request);
+                }
+                return request;
+              });
+      Executable executable =
+          program(
+              Instructions.Const.create(7, Address.baseAndOffset(-1, 4)),
+              Instructions.Const.create(6, Address.baseAndOffset(-1, 0)),
+              Instructions.Extern.create("fetch"),
+              Instructions.Const.create(1, Address.baseAndOffset(-1, 1)),
+              Instructions.Halt.create());
+      List<SpookyVm> vms = new ArrayList<>();
+      List<CompletableFuture<RunStatus>> results = new ArrayList<>();
+      for (int i = 0; i < 100; i++) {
+        SpookyVm vm =
+            SpookyVm.newBuilder(executable).addExtern("fetch", fetch).setMemorySize(8).build();
+        vms.add(vm);
+        results.add(scheduler.submit(vm));
+      }
+      while (true) {
+        synchronized (requests) {
+          if (requests.size() == vms.size()) {
+            break;
+          }
+        }
+        Thread.sleep(1);
+      }
+      for (CompletableFuture<RunStatus> result : results) {
+        assertThat(result.isDone()).isFalse();
+      }
+      requests.get(0).completeExceptionally(new IllegalStateException("Unavailable"));
+      for (int i = 1; i < requests.size(); i++) {
+        requests.get(i).complete(i);
+      }
+
+      ExecutionException e =
+          assertThrows(ExecutionException.class, () -> results.get(0).get(10, TimeUnit.SECONDS));
+      assertThat(e.getCause()).hasMessageThat().isEqualTo("Unavailable");
+      for (int i = 1; i < vms.size(); i++) {
+        assertThat(results.get(i).get(10, TimeUnit.SECONDS)).isEqualTo(RunStatus.HALTED);
+        // The argument of the extern is at position 5, and its return value below it.
+        assertThat(vms.get(i).getM(4)).isEqualTo(i);
+        assertThat(vms.get(i).getM(1)).isEqualTo(1);
+      }
+    }
+  }
+
+  @Test
+  public void testCompletedAsyncExternsDoNotSuspend() throws Exception {
+    try (VmScheduler scheduler = new VmScheduler(1, 10)) {
+      ExternCall answer = scheduler.async(0, vm -> CompletableFuture.completedFuture(42));
+      SpookyVm vm =
+          SpookyVm.newBuilder(
+                  program(
+                      Instructions.Const.create(4, Address.baseAndOffset(-1, 0)),
+                      Instructions.Extern.create("answer"),
+                      Instructions.Halt.create()))
+              .addExtern("answer", answer)
+              .setMemorySize(8)
+              .build();
+      assertThat(scheduler.submit(vm).get(10, TimeUnit.SECONDS)).isEqualTo(RunStatus.HALTED);
+      assertThat(vm.getM(3)).isEqualTo(42);
+
+      SpookyVm unscheduled =
+          SpookyVm.newBuilder(program(Instructions.Extern.create("answer")))
+              .addExtern("answer", answer)
+              .build();
+      assertThat(unscheduled.runUntilHalt()).isEqualTo(RunStatus.FAULTED);
+    }
+  }
+
+  /** Returns a program that counts cell 0 down to zero. */
+  private static Executable countdown() throws InstructionException {
+    Address counter = Address.baseAndOffset(-1, 0);
+    Address done = Address.baseAndOffset(-1, 1);
+    return program(
+        Instructions.Equals.create(counter, ZERO, done),
+        Instructions.JumpN.create(done, 4),
+        Instructions.SubImmediate.create(counter, 1, counter),
+        Instructions.Jump.create(ZERO, 0),
+        Instructions.Halt.create());
+  }
+
+  private static Executable program(Instruction... text) throws InstructionException {
+    List<Instruction> instructions = new ArrayList<>();
+    instructions.add(Instructions.BinDef.create("test"));
+    instructions.add(Instructions.Text.create());
+    instructions.addAll(List.of(text));
+    instructions.add(Instructions.Data.create(0, 1));
+    return ExecutableParser.fromInstructions(instructions);
+  }
+}